@@ -157,6 +157,13 @@ public abstract class NanoHTTPD {
             safeClose(this.acceptSocket);
         }
 
+        // prh addition - lets an AsyncRunner answer a
+        // connection it cannot run (i.e. with a 503)
+
+        public Socket getSocket() {
+            return this.acceptSocket;
+        }
+
         @Override
         public void run() {
             OutputStream outputStream = null;
@@ -1093,6 +1100,8 @@ public abstract class NanoHTTPD {
             METHOD_NOT_ALLOWED(405, "Method Not Allowed"),
             RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"),
             INTERNAL_ERROR(500, "Internal Server Error"),
+            SERVICE_UNAVAILABLE(503, "Service Unavailable"),
+                // prh added
             UNSUPPORTED_HTTP_VERSION(505, "HTTP Version Not Supported"),
                 // prh added
             BAD_PARAMETER(800,"Bad Parameter"),
@@ -1357,7 +1366,9 @@ public abstract class NanoHTTPD {
          * @throws IOException
          *             if something goes wrong while sending the data.
          */
-        private void sendBody(OutputStream outputStream, long pending) throws IOException {
+        // prh - made protected so that file responses can send
+        // their body straight from a FileChannel
+        protected void sendBody(OutputStream outputStream, long pending) throws IOException {
             long BUFFER_SIZE = 16 * 1024;
             byte[] buff = new byte[(int) BUFFER_SIZE];
             boolean sendEverything = pending == -1;
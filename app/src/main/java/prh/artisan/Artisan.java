@@ -39,6 +39,7 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
@@ -81,7 +82,7 @@ import prh.base.PlaylistSource;
 import prh.base.Renderer;
 import prh.types.intList;
 import prh.utils.Utils;
-import prh.utils.loopingRunnable;
+import prh.utils.networkRequest;
 
 public class Artisan extends Activity implements
     View.OnClickListener,
@@ -170,6 +171,9 @@ public class Artisan extends Activity implements
     private VolumeControl volume_control = null;
     public VolumeControl getVolumeControl() { return volume_control; }
 
+    private ArtisanEventBus event_bus = null;
+        // delivers ArtisanEvents to the above on the UI thread
+
     // Private Variables
 
     private int num_progress = 0;
@@ -194,6 +198,8 @@ public class Artisan extends Activity implements
 
         Utils.static_init(this);
         Prefs.static_init(this);
+        managedCursor.setTrackLeaks(
+            (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
 
         default_renderer_name = getDefaultDeviceName(
             "RENDERER",Prefs.id.DEFAULT_RENDERER,Prefs.id.SELECTED_RENDERER);
@@ -276,6 +282,10 @@ public class Artisan extends Activity implements
         volume_control = new VolumeControl(this);
         Utils.log(dbg_main,0,"VolumeControl created");
 
+        // subscribe the views to the events they handle
+
+        initEventBus();
+
         // start off in full screen mode
         // with the menu showing
 
@@ -532,8 +542,14 @@ public class Artisan extends Activity implements
             local_playlist_source.stopPlaylistSource(true);
         local_playlist_source = null;
 
+        // the shared networkRequest threads
+
+        networkRequest.shutdown();
+
         // 2 = unwind view pager and fragments
 
+        event_bus = null;
+
         if (volume_control != null)
             volume_control.dismiss();
         volume_control = null;
@@ -875,7 +891,7 @@ public class Artisan extends Activity implements
         Prefs.id prefs_id = null;
         String thing = "";
         String cur_name = "";
-        String event_name = "";
+        eventType event_name = null;
         String prefs_name = name;
 
         if (group == Device.deviceGroup.DEVICE_GROUP_LIBRARY)
@@ -1135,36 +1151,6 @@ public class Artisan extends Activity implements
     }
 
 
-    //---------------------------------------------------------------------
-    // EVENT UTILITIES
-    //---------------------------------------------------------------------
-    // delay OpenHome events
-
-    boolean defer_openhome_events = false;
-    loopingRunnable open_home_delayer;
-
-    private class OpenHomeEventDelayer implements Runnable
-    {
-        public void run()
-        {
-            defer_openhome_events = false;
-            handleArtisanEvent(ArtisanEventHandler.DISPATCH_UPNP,null);
-        }
-    }
-
-    public void setDeferOpenHomeEvents()
-    {
-        defer_openhome_events = true;
-        if (open_home_delayer != null)
-            open_home_delayer.stop(false);
-        open_home_delayer = new loopingRunnable(
-            "open_home_event_delayer",
-            new OpenHomeEventDelayer(),
-            1200);
-        open_home_delayer.start();
-    }
-
-
     //------------------------------------------
     // restart the device search
     //------------------------------------------
@@ -1250,23 +1236,26 @@ public class Artisan extends Activity implements
     // Currently Changes made outside of Artisan to the underlying stream/mtc volume
     // are not evented back to Artisan, except when the VolumeControl window is open
     // and the device is hit during the RENDERER'S loop!
+    //
+    // The UI clients are called through the event_bus, which only
+    // posts an event to the UI thread if someone subscribed to it,
+    // and coalesces the frequent ones (i.e. POSITION_CHANGED).
 
     @Override
-    public void handleArtisanEvent(final String event_id,final Object data)
+    public void handleArtisanEvent(final eventType event_id,final Object data)
     // run on UI async task to pass events to UI clients
     {
-        String dbg_data2 = data == null ? "null" : data.toString();
-        dbg_data2 = dbg_data2.replaceFirst("\t|\n","==");
-        dbg_data2 = dbg_data2.replaceAll("[\t|\n].*","");
-        final String dbg_data = dbg_data2;
-
         int use_dbg = dbg_main+1;
-        if (// event_id.equals(DISPATCH_UPNP) ||
-            event_id.equals(EVENT_POSITION_CHANGED))
+        if (event_id == EVENT_POSITION_CHANGED)
             use_dbg++;
 
-
-        Utils.log(use_dbg,0,"artisan.handleRendererEvent(" + event_id + ") " + dbg_data);
+        if (use_dbg <= Utils.global_debug_level)
+        {
+            String dbg_data = data == null ? "null" : data.toString();
+            dbg_data = dbg_data.replaceFirst("\t|\n","==");
+            dbg_data = dbg_data.replaceAll("[\t|\n].*","");
+            Utils.log(use_dbg,0,"artisan.handleRendererEvent(" + event_id + ") " + dbg_data);
+        }
 
         // We do not wait for the UI thread to handle EVENT_DEVICE_STATUS_CHANGED
         // for a current device.  If a device goes offline, we call checkDeviceOffline(),
@@ -1274,7 +1263,7 @@ public class Artisan extends Activity implements
         // finds, and sets the local device, and issues the LIBRARY_CHANGED,
         // RENDERER_CHANGED, or PLAYLIST_SOURCE_CHANGED event
 
-        if (event_id.equals(EVENT_DEVICE_STATUS_CHANGED))
+        if (event_id == EVENT_DEVICE_STATUS_CHANGED)
         {
             Device device = (Device) data;
             if (device.getDeviceStatus() == Device.deviceStatus.OFFLINE)
@@ -1283,29 +1272,105 @@ public class Artisan extends Activity implements
             }
         }
 
+        // The UPnP events are raised on this thread, and sent
+        // on the event manager's dispatcher thread.
 
+        raiseUpnpEvents(event_id);
 
-        runOnUiThread(new Runnable()
+        // pass the event to the UI clients
+
+        ArtisanEventBus bus = event_bus;
+        if (bus != null)
+            bus.post(event_id,data);
+
+    }   // handleArtisanEvent()
+
+
+    //----------------------------------------------------------
+    // UI thread event handling
+    //----------------------------------------------------------
+
+    private void initEventBus()
+        // Artisan's own handler is subscribed first, so that
+        // it sees NEW_DEVICE before the pages do.
+    {
+        event_bus = new ArtisanEventBus(this);
+        event_bus.setFilter(new pageFilter());
+
+        event_bus.subscribe(ui_event_handler,
+            EVENT_NEW_DEVICE,
+            EVENT_SSDP_SEARCH_FINISHED,
+            COMMAND_EVENT_PLAY_TRACK);
+
+        event_bus.subscribe(main_menu,
+            EVENT_SSDP_SEARCH_STARTED,
+            EVENT_SSDP_SEARCH_FINISHED,
+            EVENT_NEW_DEVICE,
+            EVENT_DEVICE_STATUS_CHANGED,
+            EVENT_LIBRARY_CHANGED,
+            EVENT_RENDERER_CHANGED,
+            EVENT_PLAYLIST_SOURCE_CHANGED);
+        event_bus.subscribe(aRenderer,
+            EVENT_POSITION_CHANGED,
+            EVENT_STATE_CHANGED,
+            EVENT_TRACK_CHANGED,
+            EVENT_PLAYLIST_CHANGED,
+            EVENT_RENDERER_CHANGED,
+            EVENT_PLAYLIST_SOURCE_CHANGED);
+        event_bus.subscribe(aPlaylist,
+            EVENT_PLAYLIST_CHANGED,
+            EVENT_PLAYLIST_CONTENT_CHANGED);
+        event_bus.subscribe(aLibrary,
+            EVENT_LIBRARY_CHANGED);
+        event_bus.subscribe(aPrefs,
+            EVENT_NEW_DEVICE,
+            EVENT_LIBRARY_CHANGED,
+            EVENT_RENDERER_CHANGED,
+            EVENT_PLAYLIST_SOURCE_CHANGED);
+        event_bus.subscribe(volume_control,
+            EVENT_VOLUME_CHANGED);
+    }
+
+
+    private class pageFilter implements ArtisanEventBus.eventFilter
+        // Send events to the main menu only if it is showing,
+        // to the fragments only if they have a view, and to
+        // the volumeControl only if it's showing
+    {
+        public boolean isListening(ArtisanEventHandler handler)
         {
-            @Override
-            public void run()
-            {
-                int use_dbg = dbg_main-1;
-                if (// event_id.equals(DISPATCH_UPNP) ||
-                    event_id.equals(EVENT_POSITION_CHANGED))
-                    use_dbg++;
-                Utils.log(use_dbg,0,"----> " + event_id + "(" + dbg_data + ")");
+            if (handler == ui_event_handler)
+                return true;
+            if (handler == main_menu)
+                return main_menu.getAlpha() != 0F &&
+                    main_menu.getVisibility() == View.VISIBLE;
+            if (handler == volume_control)
+                return volume_control.isShowing();
+            if (handler instanceof Fragment)
+                return ((Fragment) handler).getView() != null;
+            return false;
+        }
+    }
 
+
+    private ArtisanEventHandler ui_event_handler = new ArtisanEventHandler()
+        // the events Artisan itself handles on the UI thread
+    {
+        @Override
+        public void handleArtisanEvent(eventType event_id, Object data)
+        {
+            switch (event_id)
+            {
                 //----------------------------------------------
                 // Command Events
                 //----------------------------------------------
 
-                if (event_id.equals(COMMAND_EVENT_PLAY_TRACK))
+                case COMMAND_EVENT_PLAY_TRACK:
                 {
                     Track track = (Track) data;
                     if (renderer != null)
                         renderer.setRendererTrack(track,false);
-                    return;
+                    break;
                 }
 
                 //----------------------------------------------------------
@@ -1313,7 +1378,7 @@ public class Artisan extends Activity implements
                 //----------------------------------------------------------
                 // check NEW_DEVICES if still looking for a Default Devices
 
-                if (event_id.equals(EVENT_NEW_DEVICE))
+                case EVENT_NEW_DEVICE:
                 {
                     Device device = (Device) data;
                     if (device.getDeviceGroup() == Device.deviceGroup.DEVICE_GROUP_LIBRARY &&
@@ -1334,12 +1399,13 @@ public class Artisan extends Activity implements
                     {
                         default_playlist_source_name = "";
                     }
+                    break;
                 }
 
                 // give an error on SSDP_SEARCH_FINISHED if we have not
                 // found the default devices ...
 
-                if (event_id.equals(EVENT_SSDP_SEARCH_FINISHED))
+                case EVENT_SSDP_SEARCH_FINISHED:
                 {
                     if (!default_library_name.isEmpty())
                         Utils.error("SSDPSearch could not find DEFAULT LIBRARY(" + default_library_name + ")");
@@ -1351,99 +1417,60 @@ public class Artisan extends Activity implements
                     default_library_name = "";
                     default_renderer_name = "";
                     default_playlist_source_name = "";
+                    break;
                 }
+            }
+        }
+    };
 
-                //----------------------------------------------------------
-                // Global Events to main Views
-                //----------------------------------------------------------
-                // Send all events non-IDLE to all known event handlers
-                // Note the selective dispatch to the volumeControl only
-                // if it's showing
-
-                if (!event_id.equals(DISPATCH_UPNP))
-                {
-                    if (main_menu != null &&
-                        main_menu.getAlpha() != 0F &&
-                        main_menu.getVisibility() == View.VISIBLE)
-                        main_menu.handleArtisanEvent(event_id,data);
-
-                    if (aRenderer != null &&
-                        aRenderer.getView() != null)
-                        aRenderer.handleArtisanEvent(event_id,data);
-
-                    if (aPlaylist != null &&
-                        aPlaylist.getView() != null)
-                        aPlaylist.handleArtisanEvent(event_id,data);
-
-                    if (aLibrary != null &&
-                        aLibrary.getView() != null)
-                        aLibrary.handleArtisanEvent(event_id,data);
-
-                    if (aPrefs != null &&
-                        aPrefs.getView() != null)
-                        aPrefs.handleArtisanEvent(event_id,data);
-
-                    if (volume_control != null &&
-                        volume_control.isShowing())
-                    {
-                        volume_control.handleArtisanEvent(event_id,data);
-                    }
-
-                }   // Non-DISPATCH_UPNP events
-
-
-                //-----------------------------------------------------
-                // UPnP Event dispatching
-                //------------------------------------------------
-                // if there's an http_server it means there are UPnP
-                // Services ... we bump the use counts on the underlying
-                // objects, and dispatch the UPnP events on DISPATCH_UPNP ..
-                //
-                // This should NOT be done except if the LocalRenderer is active
-
-                if (http_server != null && renderer == local_renderer)
-                {
-                    UpnpEventManager event_manager = http_server.getEventManager();
-
-                    if (event_id.equals(EVENT_STATE_CHANGED))
-                    {
-                        event_manager.incUpdateCount("Playlist");
-                        event_manager.incUpdateCount("AVTransport");
-                    }
-                    else if (
-                        event_id.equals(EVENT_PLAYLIST_CHANGED) ||
-                        event_id.equals(EVENT_PLAYLIST_CONTENT_CHANGED) ||
-                        event_id.equals(EVENT_PLAYLIST_TRACKS_EXPOSED))
-                        event_manager.incUpdateCount("Playlist");
-
-                    else if (event_id.equals(EVENT_TRACK_CHANGED))
-                    {
-                        event_manager.incUpdateCount("AVTransport");
-                        event_manager.incUpdateCount("Info");
-                    }
-                    else if (event_id.equals(EVENT_POSITION_CHANGED))
-                        event_manager.incUpdateCount("Time");
-
-                    else if (event_id.equals(EVENT_VOLUME_CHANGED))
-                    {
-                        event_manager.incUpdateCount("Volume");
-                        event_manager.incUpdateCount("RenderingControl");
-                    }
-
-                    else if (event_id.equals(EVENT_VIRTUAL_FOLDER_CHANGED))
-                    {
-                        event_manager.incUpdateCount("ContentDirectory");
-                    }
 
-                    // send the events
+    //-----------------------------------------------------
+    // UPnP Event dispatching
+    //------------------------------------------------
+    // if there's an http_server it means there are UPnP
+    // Services ... we raise the services changed by the event,
+    // and the event manager bumps the use counts on the underlying
+    // objects, and sends the UPnP events, on its dispatcher thread.
+    // Other events (and DISPATCH_UPNP) just send any events that are
+    // due, i.e. from changes the UPnP services made themselves.
+    // Bursts are coalesced per service by the event manager.
+    //
+    // This should NOT be done except if the LocalRenderer is active
 
-                    if (!defer_openhome_events)
-                        event_manager.send_events();
-                }
+    private void raiseUpnpEvents(eventType event_id)
+    {
+        HTTPServer server = http_server;
+        if (server == null || renderer != local_renderer)
+            return;
+        UpnpEventManager event_manager = server.getEventManager();
 
-            }   // run()
-        }); // runOnUiThread()
-    }   // handleArtisanEvent()
+        switch (event_id)
+        {
+            case EVENT_STATE_CHANGED:
+                event_manager.raiseEvent("Playlist","AVTransport");
+                break;
+            case EVENT_PLAYLIST_CHANGED:
+            case EVENT_PLAYLIST_CONTENT_CHANGED:
+            case EVENT_PLAYLIST_TRACKS_EXPOSED:
+                event_manager.raiseEvent("Playlist");
+                break;
+            case EVENT_TRACK_CHANGED:
+                event_manager.raiseEvent("AVTransport","Info");
+                break;
+            case EVENT_POSITION_CHANGED:
+                event_manager.raiseEvent("Time");
+                break;
+            case EVENT_VOLUME_CHANGED:
+                event_manager.raiseEvent("Volume","RenderingControl");
+                break;
+            case EVENT_VIRTUAL_FOLDER_CHANGED:
+                event_manager.raiseEvent("ContentDirectory");
+                break;
+            default:
+                event_manager.raiseEvent();
+                break;
+        }
+    }
 
 
 
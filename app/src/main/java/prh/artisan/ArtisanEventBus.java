@@ -0,0 +1,144 @@
+package prh.artisan;
+
+import android.app.Activity;
+
+import java.util.EnumMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import prh.base.ArtisanEventHandler;
+import prh.base.ArtisanEventHandler.eventType;
+import prh.utils.Utils;
+
+
+public class ArtisanEventBus
+    // Delivers ArtisanEvents to the handlers that subscribed
+    // to them, on the UI thread.
+    //
+    // Each eventType has its own list of subscribers, so an event
+    // only wakes the pages that handle it, and an event with no
+    // subscribers is not posted to the UI thread at all.
+    //
+    // Coalesced eventTypes (i.e. POSITION_CHANGED) have at most one
+    // delivery waiting on the UI thread. If another is posted before
+    // it runs, the newer data replaces the older, so a busy UI thread
+    // gets one update per type rather than a backlog of stale ones.
+    //
+    // post() may be called from any thread. The lists are copy on
+    // write, as subscribing is rare, and posting is not.
+{
+    private static int dbg_bus = 1;
+
+    public interface eventFilter
+        // lets Artisan skip pages that are not showing
+    {
+        boolean isListening(ArtisanEventHandler handler);
+    }
+
+    private static Object NULL_DATA = new Object();
+        // stands for null data in a pending coalesced event
+
+    private final Activity activity;
+    private eventFilter filter = null;
+
+    private final EnumMap<eventType,CopyOnWriteArrayList<ArtisanEventHandler>> subscribers =
+        new EnumMap<eventType,CopyOnWriteArrayList<ArtisanEventHandler>>(eventType.class);
+    private final AtomicReferenceArray<Object> pending =
+        new AtomicReferenceArray<Object>(eventType.values().length);
+        // the newest data for a coalesced event waiting
+        // on the UI thread, or null if none is waiting
+
+
+    public ArtisanEventBus(Activity the_activity)
+    {
+        activity = the_activity;
+        for (eventType type : eventType.values())
+            subscribers.put(type,new CopyOnWriteArrayList<ArtisanEventHandler>());
+    }
+
+
+    public void setFilter(eventFilter the_filter)
+    {
+        filter = the_filter;
+    }
+
+
+    //-------------------------------------------
+    // subscribers
+    //-------------------------------------------
+
+    public void subscribe(ArtisanEventHandler handler, eventType... types)
+        // handlers are called in the order they subscribed
+    {
+        if (handler == null)
+            return;
+        for (eventType type : types)
+            subscribers.get(type).addIfAbsent(handler);
+    }
+
+
+    public void unsubscribe(ArtisanEventHandler handler)
+    {
+        for (CopyOnWriteArrayList<ArtisanEventHandler> list : subscribers.values())
+            list.remove(handler);
+    }
+
+
+    public boolean hasSubscribers(eventType type)
+    {
+        return !subscribers.get(type).isEmpty();
+    }
+
+
+    //-------------------------------------------
+    // posting
+    //-------------------------------------------
+
+    public void post(final eventType type, final Object data)
+    {
+        if (!hasSubscribers(type))
+            return;
+
+        if (type.isCoalesced())
+        {
+            Object was = pending.getAndSet(type.ordinal(),data == null ? NULL_DATA : data);
+            if (was != null)
+            {
+                Utils.log(dbg_bus+2,0,"coalesced " + type);
+                return;
+            }
+            activity.runOnUiThread(new Runnable()
+            {
+                @Override public void run()
+                {
+                    Object newest = pending.getAndSet(type.ordinal(),null);
+                    deliver(type,newest == NULL_DATA ? null : newest);
+                }
+            });
+        }
+        else
+        {
+            activity.runOnUiThread(new Runnable()
+            {
+                @Override public void run()
+                {
+                    deliver(type,data);
+                }
+            });
+        }
+    }
+
+
+    private void deliver(eventType type, Object data)
+        // on the UI thread
+    {
+        Utils.log(dbg_bus+1,0,"----> " + type);
+        for (ArtisanEventHandler handler : subscribers.get(type))
+        {
+            if (filter == null || filter.isListening(handler))
+                handler.handleArtisanEvent(type,data);
+        }
+    }
+
+
+}   // class ArtisanEventBus
@@ -3,6 +3,7 @@ package prh.artisan;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import java.util.HashMap;
 
@@ -27,6 +28,41 @@ public class Database
 
     public static SQLiteDatabase getDB() { return db; }
 
+    // Query shapes used by the LocalLibrary.
+    // All values are passed as bind args, so that each shape
+    // is compiled once, and then found in the connection's
+    // statement cache (or our scalar statement cache below).
+
+    public static final String SQL_TRACK_BY_ID =
+        "SELECT * FROM tracks WHERE id=?";
+    public static final String SQL_FOLDER_BY_ID =
+        "SELECT * FROM folders WHERE id=?";
+    public static final String SQL_TRACKS_BY_PARENT =
+        "SELECT * FROM tracks WHERE parent_id=? ORDER BY path LIMIT ? OFFSET ?";
+    public static final String SQL_FOLDERS_BY_PARENT =
+        "SELECT * FROM folders WHERE parent_id=? ORDER BY dirtype DESC,path LIMIT ? OFFSET ?";
+    public static final String SQL_COUNT_TRACKS_BY_PARENT =
+        "SELECT COUNT(*) FROM tracks WHERE parent_id=?";
+    public static final String SQL_COUNT_FOLDERS_BY_PARENT =
+        "SELECT COUNT(*) FROM folders WHERE parent_id=?";
+
+    private static int MAX_SQL_CACHE = 50;
+        // compiled statements kept by SQLiteDatabase per connection
+
+    private static HashMap<String,SQLiteStatement> statements =
+        new HashMap<String,SQLiteStatement>();
+        // compiled scalar (i.e. COUNT) statements
+
+    // Indexes on the library tables, created if missing
+    // The folder index matches the ORDER BY in SQL_FOLDERS_BY_PARENT
+    // so that sub-folders come out of the index already sorted.
+
+    private static String index_defs[][] = {
+        { "tracks_id",              "tracks",   "id" },
+        { "tracks_parent_path",     "tracks",   "parent_id,path" },
+        { "folders_id",             "folders",  "id" },
+        { "folders_parent_path",    "folders",  "parent_id,dirtype DESC,path" }};
+
 
     public static boolean start()
     {
@@ -44,6 +80,8 @@ public class Database
                 db = null;
                 return false;
             }
+            db.setMaxSqlCacheSize(MAX_SQL_CACHE);
+            createIndexes(db);
             Utils.log(0,0,"Database started");
         }
         else
@@ -59,6 +97,8 @@ public class Database
         try
         {
             Utils.log(dbg_db,0,"stopping database ...");
+            closeStatements();
+            managedCursor.checkOpen("Database.stop()");
             if (db != null) db.close();
             Utils.log(0,0,"database stopped");
         }
@@ -76,8 +116,23 @@ public class Database
 
     public static fieldNameHash get_fields(String table)
     {
-        Cursor cursor = db.rawQuery("SELECT * FROM " + table + " LIMIT 0",null);
-        return get_fields(table,cursor);
+        fieldNameHash rslt = fields.get(table);
+        if (rslt == null)
+        {
+            Cursor cursor = rawQuery(db,"SELECT * FROM " + table + " LIMIT 0",null);
+            if (cursor != null)
+            {
+                try
+                {
+                    rslt = get_fields(table,cursor);
+                }
+                finally
+                {
+                    cursor.close();
+                }
+            }
+        }
+        return rslt;
     }
 
 
@@ -99,29 +154,6 @@ public class Database
     }
 
 
-    public static String getStringField(String table, Cursor cursor, String name)
-    {
-        String rslt = "";
-        if (cursor != null)
-        {
-            fieldNameHash fields = get_fields(table,cursor);
-            rslt = cursor.getString(fields.get(name));
-        }
-        return rslt;
-    }
-
-    public static int getIntField(String table, Cursor cursor, String name)
-    {
-        int rslt = 0;
-        if (cursor != null)
-        {
-            fieldNameHash fields = get_fields(table,cursor);
-            rslt = cursor.getInt(fields.get(name));
-        }
-        return rslt;
-    }
-
-
     // static field definitions
 
     public static class fieldDefs extends HashMap<String,String []> {}
@@ -215,6 +247,142 @@ public class Database
 
 
 
+    //-------------------------------------------------------------
+    // indexes and queries
+    //-------------------------------------------------------------
+
+    private static void createIndexes(SQLiteDatabase in_db)
+        // Create any missing indexes on the library tables.
+        // Failures (i.e. a read-only database, or a database
+        // without the table) are reported, but not fatal.
+    {
+        for (String def[] : index_defs)
+        {
+            String query = "CREATE INDEX IF NOT EXISTS " + def[0] + " ON " + def[1] + "(" + def[2] + ")";
+            try
+            {
+                long start = System.currentTimeMillis();
+                in_db.execSQL(query);
+                Utils.log(dbg_db,1,"index " + def[0] + " ok in " + (System.currentTimeMillis() - start) + "ms");
+            }
+            catch (Exception e)
+            {
+                Utils.warning(0,0,"Could not create index: " + query + " exception=" + e.toString());
+            }
+        }
+    }
+
+
+    public static managedCursor query(String sql, String... args)
+        // Run one of the SQL_ shapes with bind args on the main database.
+        // Returns null on error. The caller MUST close() the cursor,
+        // in a finally block, or use forEachRow() instead.
+    {
+        return rawQuery(db,sql,args);
+    }
+
+
+    public static managedCursor rawQuery(SQLiteDatabase in_db, String sql, String args[])
+        // Run a query on any database (i.e. a playlist db)
+        // and return it as a counted managedCursor.
+        // Returns null on error.
+    {
+        if (in_db == null)
+            return null;
+        try
+        {
+            return new managedCursor(in_db.rawQuery(sql,args),sql);
+        }
+        catch (Exception e)
+        {
+            Utils.error("SQL Error: " + e + " in " + sql);
+        }
+        return null;
+    }
+
+
+    public interface rowHandler
+        // called by forEachRow() with the cursor positioned
+        // on each row. Return false to stop early.
+    {
+        boolean handleRow(Cursor cursor);
+    }
+
+
+    public static int forEachRow(SQLiteDatabase in_db, String sql, String args[], rowHandler handler)
+        // Run the query and call the handler for each row.
+        // The cursor is always closed before returning.
+        // Returns the number of rows handled, or -1 on error.
+    {
+        managedCursor cursor = rawQuery(in_db,sql,args);
+        if (cursor == null)
+            return -1;
+        int num_rows = 0;
+        try
+        {
+            while (cursor.moveToNext())
+            {
+                num_rows++;
+                if (!handler.handleRow(cursor))
+                    break;
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return num_rows;
+    }
+
+
+    public static long queryLong(String sql, String... args)
+        // Run a scalar query (i.e. COUNT) on a cached
+        // compiled SQLiteStatement. Returns -1 on error.
+    {
+        if (db == null)
+            return -1;
+        try
+        {
+            SQLiteStatement statement;
+            synchronized (statements)
+            {
+                statement = statements.get(sql);
+                if (statement == null)
+                {
+                    statement = db.compileStatement(sql);
+                    statements.put(sql,statement);
+                }
+            }
+
+            // a statement's bindings are not thread safe
+
+            synchronized (statement)
+            {
+                statement.clearBindings();
+                for (int i=0; i<args.length; i++)
+                    statement.bindString(i + 1,args[i]);
+                return statement.simpleQueryForLong();
+            }
+        }
+        catch (Exception e)
+        {
+            Utils.error("SQL Error: " + e + " in " + sql);
+        }
+        return -1;
+    }
+
+
+    private static void closeStatements()
+    {
+        synchronized (statements)
+        {
+            for (SQLiteStatement statement : statements.values())
+                statement.close();
+            statements.clear();
+        }
+    }
+
+
     public static ContentValues getContentValues(String table, Record rec)
         // set ContentValues to only those fields in the database
         // missing fields set to null ....
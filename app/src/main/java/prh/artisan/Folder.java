@@ -19,27 +19,83 @@ public class Folder extends Record implements Fetcher.FetcherSource
 {
     private static int dbg_folder = 0;
 
+    // field slots
+
+    private static final int IS_LOCAL               = 0;
+    private static final int HAS_ART                = 1;
+    private static final int NUM_ELEMENTS           = 2;
+    private static final int DURATION               = 3;
+    private static final int FOLDER_ERROR           = 4;
+    private static final int HIGHEST_FOLDER_ERROR   = 5;
+    private static final int HIGHEST_TRACK_ERROR    = 6;
+
+    private static final int ID                     = 7;
+    private static final int PARENT_ID              = 8;
+    private static final int DIRTYPE                = 9;
+    private static final int PATH                   = 10;
+    private static final int ART_URI                = 11;
+    private static final int TITLE                  = 12;
+    private static final int ARTIST                 = 13;
+    private static final int GENRE                  = 14;
+    private static final int YEAR_STR               = 15;
+
+    public static final fieldSet FIELDS = new fieldSet(
+        new String[]{
+            "is_local",
+            "has_art",
+            "num_elements",
+            "duration",
+            "folder_error",
+            "highest_folder_error",
+            "highest_track_error" },
+        new String[]{
+            "id",
+            "parent_id",
+            "dirtype",
+            "path",
+            "art_uri",
+            "title",
+            "artist",
+            "genre",
+            "year_str" },
+        new String[]{
+            "parent_id",
+            "dirtype",
+            "artist",
+            "genre",
+            "year_str" });
+
+
     // Construction
 
     public Folder()
     {
+        super(FIELDS);
     }
 
     public Folder(Cursor cursor)
         // construct from a cursor pointing at a database record
     {
-        super(cursor);
+        super(FIELDS,cursor);
+    }
+
+    public Folder(Cursor cursor, rowMapper mapper)
+        // construct from one of many rows, with a mapper
+        // gotten once with Record.rowMapper.get(Folder.FIELDS,cursor)
+    {
+        super(FIELDS,cursor,mapper);
     }
 
     public Folder(Folder other)
         // Copy Constructor
     {
-        this.clear();
+        super(FIELDS);
         this.putAll(other);
     }
 
     public Folder(Node didl_node)
     {
+        super(FIELDS);
         Element node_ele = (Element) didl_node;
 
         setTitle(Utils.getTagValue(node_ele,"dc:title"));
@@ -62,60 +118,60 @@ public class Folder extends Record implements Fetcher.FetcherSource
     //------------------------------------------
     // in memory only
 
-    public boolean isLocal()                { return getInt("is_local") > 0; }
-    private String getPath()                { return getString("path"); }
-    public boolean hasArt()                 { return getInt("has_art") > 0; }
-    private String privateGetPublicArtUri() { return getString("art_uri"); }
+    public boolean isLocal()                { return getInt(IS_LOCAL) > 0; }
+    private String getPath()                { return getString(PATH); }
+    public boolean hasArt()                 { return getInt(HAS_ART) > 0; }
+    private String privateGetPublicArtUri() { return getString(ART_URI); }
 
     // dlna representation
 
-    public String getId()           { return getString("id"); }
-    public String getParentId()     { return getString("parent_id"); }
-    public String getType()         { return getString("dirtype"); }
-    public int getNumElements()     { return getInt("num_elements"); }
-    public String getTitle()        { return getString("title"); }
-    public String getArtist()       { return getString("artist"); }
-    public String getGenre()        { return getString("genre"); }
-    public String getYearString()   { return getString("year_str"); }
-    public int getDuration()        { return getInt("duration"); }
+    public String getId()           { return getString(ID); }
+    public String getParentId()     { return getString(PARENT_ID); }
+    public String getType()         { return getString(DIRTYPE); }
+    public int getNumElements()     { return getInt(NUM_ELEMENTS); }
+    public String getTitle()        { return getString(TITLE); }
+    public String getArtist()       { return getString(ARTIST); }
+    public String getGenre()        { return getString(GENRE); }
+    public String getYearString()   { return getString(YEAR_STR); }
+    public int getDuration()        { return getInt(DURATION); }
 
     // My raw database accessors
 
-    public int getFolderError()        { return getInt("folder_error"); }
-    public int getHighestFolderError() { return getInt("highest_folder_error"); }
-    public int getHighestTrackError()  { return getInt("highest_track_error"); }
+    public int getFolderError()        { return getInt(FOLDER_ERROR); }
+    public int getHighestFolderError() { return getInt(HIGHEST_FOLDER_ERROR); }
+    public int getHighestTrackError()  { return getInt(HIGHEST_TRACK_ERROR); }
 
 
     // setters
 
-    public void setIsLocal            (boolean value){ putInt("is_local",value? 1 : 0); }
-    public void setHasArt             (boolean value){ putInt("has_art",value ? 1 : 0); }
-    public void setPath               (String  value){ putString("path",value); }
+    public void setIsLocal            (boolean value){ putInt(IS_LOCAL,value? 1 : 0); }
+    public void setHasArt             (boolean value){ putInt(HAS_ART,value ? 1 : 0); }
+    public void setPath               (String  value){ putString(PATH,value); }
         // if is_local, art is folder.jpg at path/folder.jpg,
         // and art_uri is blank
-    public void setArtUri             (String  value){ putString("art_uri",value); }
+    public void setArtUri             (String  value){ putString(ART_URI,value); }
         // this is the art_uri for external folders
         // if is_local, it is the mp3's relative path for the folder
 
-    public void setId                 (String  value){ putString("id",value); }
-    public void setParentId           (String  value){ putString("parent_id",value); }
-    public void setType               (String  value){ putString("dirtype",value); }
+    public void setId                 (String  value){ putString(ID,value); }
+    public void setParentId           (String  value){ putString(PARENT_ID,value); }
+    public void setType               (String  value){ putString(DIRTYPE,value); }
         // root
         // folder
         // album
-    public void setNumElements        (int     value){ putInt("num_elements",value); }
-    public void incNumElements        ()             { putInt("num_elements",getNumElements() + 1); }
-
-    public void setTitle              (String  value){ putString("title",value); }
-    public void setArtist             (String  value){ putString("artist",value); }
-    public void setGenre              (String  value){ putString("genre",value); }
-    public void setYearString         (String  value){ putString("year_str",value); }
-    public void setDuration           (int     value){ putInt("duration",value); }
-    public void addDuration           (int     value){ putInt("duration",getDuration() + value); }
-
-    public void setFolderError        (int     value){ putInt("folder_error",value); }
-    public void setHighestFolderError (int     value){ putInt("highest_folder_error",value); }
-    public void setHighestTrackError  (int     value){ putInt("highest_track_error",value); }
+    public void setNumElements        (int     value){ putInt(NUM_ELEMENTS,value); }
+    public void incNumElements        ()             { putInt(NUM_ELEMENTS,getNumElements() + 1); }
+
+    public void setTitle              (String  value){ putString(TITLE,value); }
+    public void setArtist             (String  value){ putString(ARTIST,value); }
+    public void setGenre              (String  value){ putString(GENRE,value); }
+    public void setYearString         (String  value){ putString(YEAR_STR,value); }
+    public void setDuration           (int     value){ putInt(DURATION,value); }
+    public void addDuration           (int     value){ putInt(DURATION,getDuration() + value); }
+
+    public void setFolderError        (int     value){ putInt(FOLDER_ERROR,value); }
+    public void setHighestFolderError (int     value){ putInt(HIGHEST_FOLDER_ERROR,value); }
+    public void setHighestTrackError  (int     value){ putInt(HIGHEST_TRACK_ERROR,value); }
 
 
     //------------------------------------------------------------
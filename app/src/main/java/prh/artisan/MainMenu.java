@@ -192,22 +192,22 @@ public class MainMenu extends ListView implements
     // ARTISAN EVENTS
 
     @Override
-    public void handleArtisanEvent(String event_id, Object data)
+    public void handleArtisanEvent(eventType event_id, Object data)
     {
-        if (event_id.equals(EVENT_SSDP_SEARCH_STARTED) ||
-            event_id.equals(EVENT_SSDP_SEARCH_FINISHED))
+        if (event_id == EVENT_SSDP_SEARCH_STARTED ||
+            event_id == EVENT_SSDP_SEARCH_FINISHED)
         {
             View v = ((mainMenuListAdapter) getAdapter()).getItem(0);
             View progress = v.findViewById(R.id.ssdp_progress);
-            progress.setVisibility( event_id.equals(EVENT_SSDP_SEARCH_STARTED) ?
+            progress.setVisibility( event_id == EVENT_SSDP_SEARCH_STARTED ?
                 View.VISIBLE : View.GONE );
         }
         else
-        if (event_id.equals(EVENT_NEW_DEVICE) ||
-            event_id.equals(EVENT_DEVICE_STATUS_CHANGED) ||
-            event_id.equals(EVENT_LIBRARY_CHANGED) ||
-            event_id.equals(EVENT_RENDERER_CHANGED) ||
-            event_id.equals(EVENT_PLAYLIST_SOURCE_CHANGED))
+        if (event_id == EVENT_NEW_DEVICE ||
+            event_id == EVENT_DEVICE_STATUS_CHANGED ||
+            event_id == EVENT_LIBRARY_CHANGED ||
+            event_id == EVENT_RENDERER_CHANGED ||
+            event_id == EVENT_PLAYLIST_SOURCE_CHANGED)
         {
             for (int i = FIRST_DEVICE; i <= LAST_DEVICE; i++)
             {
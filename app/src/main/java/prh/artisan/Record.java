@@ -1,96 +1,423 @@
 package prh.artisan;
 
-import android.content.ContentValues;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 
-import java.sql.Blob;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import prh.types.objectHash;
 
-public class Record extends objectHash
-    // Class that should already exist
-    // Maps a cursor to a Hash of Typed Objects by field name.
+public abstract class Record
+    // Compact base class of Tracks and Folders.
+    //
+    // The fields of a record are kept in two arrays, one of ints
+    // and one of Strings, described once per class by a fieldSet.
+    // Subclasses access them by slot number, so getters are an
+    // array index rather than a hash lookup, and ints are never boxed.
+    // Strings that repeat across records (genre, artist, album, etc)
+    // are pooled so that all the records share one copy.
+    //
+    // The old HashMap<String,Object> view is still available through
+    // get(), put(), keySet() and putAll(). A bit mask remembers which
+    // fields have been set, so keySet() returns the same names the
+    // hash did, and Database.getContentValues() writes the same values.
+    // Unknown names are kept in a (rarely used) extras hash.
+    //
+    // Like the hash it replaces, equals() and hashCode() compare
+    // the contents, so Selections keyed by Record behave the same.
 {
-    /*
-    private boolean exists = false;
-    private boolean dirty = true;
+    public static class fieldSet
+        // the names and types of the fields of one Record class
+    {
+        private final int num_ints;
+        private final String names[];
+        private final boolean shared[];
+        private final HashMap<String,Integer> slots = new HashMap<String,Integer>();
+
+        public fieldSet(String int_names[], String string_names[], String shared_names[])
+            // int fields are slots 0..num_ints-1, followed by the strings
+        {
+            num_ints = int_names.length;
+            names = new String[num_ints + string_names.length];
+            shared = new boolean[names.length];
+            if (names.length > 64)
+                throw new IllegalArgumentException("too many Record fields");
+
+            for (int i=0; i<names.length; i++)
+            {
+                names[i] = i < num_ints ? int_names[i] : string_names[i - num_ints];
+                slots.put(names[i],i);
+            }
+            for (String name : shared_names)
+                shared[slots.get(name)] = true;
+        }
+
+        public int numInts()                { return num_ints; }
+        public int numFields()              { return names.length; }
+        public String getName(int slot)     { return names[slot]; }
+        public boolean isInt(int slot)      { return slot < num_ints; }
+
+        public int getSlot(String name)
+            // returns -1 if not a field of this class
+        {
+            Integer slot = slots.get(name);
+            return slot == null ? -1 : slot;
+        }
+    }
+
+
+    private final fieldSet field_set;
+    private final int ints[];
+    private final String strings[];
+    private long present = 0;
+    private objectHash extras = null;
+    private volatile int version = 0;
+        // bumped on every change, for caches of derived values
 
-    public boolean exists()             { return exists; }
-    public boolean dirty()              { return dirty; }
-    public void setDirty(boolean value) { dirty = value; }
-    */
 
-    protected Record()
+    protected Record(fieldSet fields)
     {
+        field_set = fields;
+        ints = new int[fields.numInts()];
+        strings = new String[fields.numFields() - fields.numInts()];
     }
 
-    protected Record(Cursor cursor)
+    protected Record(fieldSet fields, Cursor cursor)
     {
+        this(fields);
         this.from_cursor(cursor);
     }
 
+    protected Record(fieldSet fields, Cursor cursor, rowMapper mapper)
+        // construct from one row of a multi-row query
+        // with a mapper gotten once for the cursor
+    {
+        this(fields);
+        mapper.fill(this,cursor);
+    }
+
+    public fieldSet getFieldSet()  { return field_set; }
+    public int getVersion()        { return version; }
+
+
     protected void from_cursor(Cursor cursor)
     {
-        //exists = true;
-        //dirty = false;
-        for (int i=0; i<cursor.getColumnCount(); i++)
+        rowMapper.get(field_set,cursor).fill(this,cursor);
+    }
+
+
+    //---------------------------------------
+    // rowMapper
+    //---------------------------------------
+
+    public static class rowMapper
+        // Maps the columns of one query shape to the slots of
+        // one Record class. The column names are resolved to slots,
+        // and the slots to types, once, so that filling a record is
+        // just indexed getInt() and getString() calls on the cursor.
+        //
+        // Columns that are not fields of the class are rare, and
+        // go through the old by-name, by-type path into the extras.
+        // A NULL column leaves the field unset, as before, so
+        // keySet() and getContentValues() do not gain a field.
+    {
+        private static HashMap<String,rowMapper> mappers = new HashMap<String,rowMapper>();
+            // by fieldSet and column names
+
+        private final int slots[];
+        private final boolean is_int[];
+        private final String names[];
+
+
+        public static rowMapper get(fieldSet fields, Cursor cursor)
+            // get the (cached) mapper for the cursor's columns
         {
-            int type = cursor.getType(i);
-            String name = cursor.getColumnName(i);
-            switch (type)
+            String names[] = cursor.getColumnNames();
+            String key = Integer.toString(System.identityHashCode(fields));
+            for (String name : names)
+                key += "," + name;
+
+            synchronized (mappers)
+            {
+                rowMapper mapper = mappers.get(key);
+                if (mapper == null)
+                {
+                    mapper = new rowMapper(fields,names);
+                    mappers.put(key,mapper);
+                }
+                return mapper;
+            }
+        }
+
+
+        private rowMapper(fieldSet fields, String column_names[])
+        {
+            names = column_names;
+            slots = new int[names.length];
+            is_int = new boolean[names.length];
+            for (int i=0; i<names.length; i++)
+            {
+                slots[i] = fields.getSlot(names[i]);
+                is_int[i] = slots[i] >= 0 && fields.isInt(slots[i]);
+            }
+        }
+
+
+        public void fill(Record rec, Cursor cursor)
+        {
+            for (int i=0; i<slots.length; i++)
+            {
+                int slot = slots[i];
+                if (slot < 0)
+                    fillExtra(rec,cursor,i);
+                else if (is_int[i])
+                {
+                    if (!cursor.isNull(i))
+                        rec.putInt(slot,cursor.getInt(i));
+                }
+                else
+                {
+                    String value = cursor.getString(i);
+                    if (value != null)
+                        rec.putString(slot,value);
+                }
+            }
+        }
+
+
+        private void fillExtra(Record rec, Cursor cursor, int i)
+        {
+            switch (cursor.getType(i))
             {
                 case Cursor.FIELD_TYPE_STRING:
-                    put(name,new String(cursor.getString(i)));
+                    rec.put(names[i],cursor.getString(i));
                     break;
                 case Cursor.FIELD_TYPE_INTEGER:
-                    put(name,new Integer(cursor.getInt(i)));
+                    rec.put(names[i],cursor.getInt(i));
                     break;
                 case Cursor.FIELD_TYPE_FLOAT:
-                    put(name,new Float(cursor.getFloat(i)));
+                    rec.put(names[i],cursor.getFloat(i));
                     break;
             }
         }
     }
 
 
-    protected Object get(String field_name)
+    //---------------------------------------
+    // typed slot accessors
+    //---------------------------------------
+
+    protected int getInt(int slot)
     {
-        return super.get(field_name);
+        return ints[slot];
     }
+    protected String getString(int slot)
+    {
+        String value = strings[slot - ints.length];
+        return value == null ? "" : value;
+    }
+
+    protected void putInt(int slot, int value)
+    {
+        ints[slot] = value;
+        present |= 1L << slot;
+        version++;
+    }
+    protected void putIntQuiet(int slot, int value)
+        // for bookkeeping fields that no cached value is derived
+        // from, so setting them does not invalidate the caches
+    {
+        ints[slot] = value;
+        present |= 1L << slot;
+    }
+    protected void putString(int slot, String value)
+    {
+        if (value != null && field_set.shared[slot])
+            value = share(value);
+        strings[slot - ints.length] = value;
+        present |= 1L << slot;
+        version++;
+    }
+
+    private static final ConcurrentHashMap<String,String> shared_strings =
+        new ConcurrentHashMap<String,String>();
+        // Our own pool rather than String.intern(), which is a
+        // native table lookup that cost more than the rest of
+        // filling a Track from a cursor. The shared fields are
+        // genres, artists, albums and the like, so the pool
+        // stays about the size of the library's index.
+
+    private static String share(String value)
+    {
+        String was = shared_strings.putIfAbsent(value,value);
+        return was == null ? value : was;
+    }
+
+    public boolean has(int slot)
+    {
+        return (present & (1L << slot)) != 0;
+    }
+
+
+    //---------------------------------------
+    // HashMap compatibility view
+    //---------------------------------------
+
+    public Object get(String field_name)
+    {
+        int slot = field_set.getSlot(field_name);
+        if (slot < 0)
+            return extras == null ? null : extras.get(field_name);
+        if (!has(slot))
+            return null;
+        if (field_set.isInt(slot))
+            return ints[slot];
+        return strings[slot - ints.length];
+    }
+
+    public void put(String field_name, Object value)
+    {
+        int slot = field_set.getSlot(field_name);
+        if (slot >= 0 && field_set.isInt(slot) && value instanceof Integer)
+            putInt(slot,(Integer) value);
+        else if (slot >= 0 && !field_set.isInt(slot) && (value == null || value instanceof String))
+            putString(slot,(String) value);
+        else
+        {
+            if (extras == null)
+                extras = new objectHash();
+            extras.put(field_name,value);
+            version++;
+        }
+    }
+
+    public boolean containsKey(String field_name)
+    {
+        int slot = field_set.getSlot(field_name);
+        if (slot >= 0)
+            return has(slot);
+        return extras != null && extras.containsKey(field_name);
+    }
+
+    public Set<String> keySet()
+        // the names of the fields that have been set
+    {
+        Set<String> rslt = new LinkedHashSet<String>();
+        for (int slot=0; slot<field_set.numFields(); slot++)
+        {
+            if (has(slot))
+                rslt.add(field_set.getName(slot));
+        }
+        if (extras != null)
+            rslt.addAll(extras.keySet());
+        return rslt;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(ints,0);
+        Arrays.fill(strings,null);
+        present = 0;
+        extras = null;
+        version++;
+    }
+
+    public void putAll(Record other)
+        // copy another record of the same class
+    {
+        if (other.field_set != field_set)
+        {
+            for (String key : other.keySet())
+                put(key,other.get(key));
+            return;
+        }
+        if (present == 0)
+        {
+            System.arraycopy(other.ints,0,ints,0,ints.length);
+            System.arraycopy(other.strings,0,strings,0,strings.length);
+        }
+        else
+        {
+            for (int slot=0; slot<ints.length; slot++)
+                if (other.has(slot))
+                    ints[slot] = other.ints[slot];
+            for (int i=0; i<strings.length; i++)
+                if (other.has(ints.length + i))
+                    strings[i] = other.strings[i];
+        }
+        present |= other.present;
+        version++;
+        if (other.extras != null)
+        {
+            if (extras == null)
+                extras = new objectHash();
+            extras.putAll(other.extras);
+        }
+    }
+
+
+    // The old Record API
+
     protected String getString(String field_name)
     {
-        String value = (String) super.get(field_name);
-        if (value==null) value = new String();
-        return value;
+        Object value = get(field_name);
+        return value instanceof String ? (String) value : "";
     }
     protected Integer getInt(String field_name)
     {
-        Integer value = (Integer) super.get(field_name);
-        if (value==null) value = new Integer(0);
-        return value;
+        Object value = get(field_name);
+        return value instanceof Integer ? (Integer) value : 0;
     }
     protected Float getFloat(String field_name)
     {
-        Float value = (Float) super.get(field_name);
-        if (value==null) value = new Float(0F);
-        return value;
+        Object value = get(field_name);
+        return value instanceof Float ? (Float) value : 0F;
     }
 
     protected void putString(String field_name, String value)
     {
-        super.put(field_name,value);
+        put(field_name,value);
     }
     protected void putInt(String field_name, Integer value)
     {
-        super.put(field_name,value);
+        put(field_name,value);
     }
     protected void putFloat(String field_name, Float value)
     {
-        super.put(field_name,value);
+        put(field_name,value);
     }
 
 
+    //---------------------------------------
+    // value semantics
+    //---------------------------------------
+
+    @Override public boolean equals(Object obj)
+    {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof Record))
+            return false;
+        Record other = (Record) obj;
+        return other.field_set == field_set &&
+            other.present == present &&
+            Arrays.equals(other.ints,ints) &&
+            Arrays.equals(other.strings,strings) &&
+            (extras == null ? other.extras == null : extras.equals(other.extras));
+    }
+
+    @Override public int hashCode()
+    {
+        int hash = (int) (present ^ (present >>> 32));
+        hash = 31 * hash + Arrays.hashCode(ints);
+        hash = 31 * hash + Arrays.hashCode(strings);
+        if (extras != null)
+            hash = 31 * hash + extras.hashCode();
+        return hash;
+    }
+
 
 }
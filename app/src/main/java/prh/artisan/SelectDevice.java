@@ -304,14 +304,14 @@ public class SelectDevice extends RelativeLayout implements
     // Artisan Event Handling
     //------------------------------------
 
-    public void handleArtisanEvent(String event_id, Object data)
+    public void handleArtisanEvent(eventType event_id, Object data)
         // called only with interesting events
     {
-        // if (event_id.equals(EVENT_NEW_DEVICE) ||
-        //     event_id.equals(EVENT_DEVICE_STATUS_CHANGED) ||
-        //     event_id.equals(EVENT_LIBRARY_CHANGED) ||
-        //     event_id.equals(EVENT_RENDERER_CHANGED) ||
-        //     event_id.equals(EVENT_PLAYLIST_SOURCE_CHANGED))
+        // if (event_id == EVENT_NEW_DEVICE ||
+        //     event_id == EVENT_DEVICE_STATUS_CHANGED ||
+        //     event_id == EVENT_LIBRARY_CHANGED ||
+        //     event_id == EVENT_RENDERER_CHANGED ||
+        //     event_id == EVENT_PLAYLIST_SOURCE_CHANGED)
         {
             populateDevices();
         }
@@ -6,7 +6,6 @@ import android.database.Cursor;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import prh.device.LocalLibrary;
@@ -36,29 +35,105 @@ public class Track extends Record
     public static boolean CONVERT_TO_LOCAL = true;
         // if the url matches us, convert the thing to a local path
 
+    // field slots
+
+    private static final int POSITION       = 0;
+    private static final int IS_LOCAL       = 1;
+    private static final int HAS_ART        = 2;
+    private static final int DURATION       = 3;
+    private static final int SIZE           = 4;
+    private static final int TIMESTAMP      = 5;
+    private static final int HIGHEST_ERROR  = 6;
+    private static final int OPEN_ID        = 7;
+    private static final int POSITION_REF   = 8;
+    private static final int DIRTY          = 9;
+
+    private static final int ID             = 10;
+    private static final int PARENT_ID      = 11;
+    private static final int PATH           = 12;
+    private static final int ART_URI        = 13;
+    private static final int TYPE           = 14;
+    private static final int TITLE          = 15;
+    private static final int ARTIST         = 16;
+    private static final int ALBUM_TITLE    = 17;
+    private static final int ALBUM_ARTIST   = 18;
+    private static final int TRACKNUM       = 19;
+    private static final int GENRE          = 20;
+    private static final int YEAR_STR       = 21;
+    private static final int FILE_MD5       = 22;
+    private static final int ERROR_CODES    = 23;
+
+    public static final fieldSet FIELDS = new fieldSet(
+        new String[]{
+            "position",
+            "is_local",
+            "has_art",
+            "duration",
+            "size",
+            "timestamp",
+            "highest_error",
+            "open_id",
+            "position_ref",
+            "dirty" },
+        new String[]{
+            "id",
+            "parent_id",
+            "path",
+            "art_uri",
+            "type",
+            "title",
+            "artist",
+            "album_title",
+            "album_artist",
+            "tracknum",
+            "genre",
+            "year_str",
+            "file_md5",
+            "error_codes" },
+        new String[]{
+            "parent_id",
+            "type",
+            "artist",
+            "album_title",
+            "album_artist",
+            "genre",
+            "year_str" });
+
 
    // Construction
 
-    public Track()  {};
+    public Track()
+    {
+        super(FIELDS);
+    }
 
 
     public Track(Cursor cursor)
         // construct from a cursor pointing at a database record
     {
-        super(cursor);
+        super(FIELDS,cursor);
+    }
+
+
+    public Track(Cursor cursor, rowMapper mapper)
+        // construct from one of many rows, with a mapper
+        // gotten once with Record.rowMapper.get(Track.FIELDS,cursor)
+    {
+        super(FIELDS,cursor,mapper);
     }
 
 
     public Track(Track track)
         // Copy Contructor
     {
-        this.clear();
+        super(FIELDS);
         this.putAll(track);
     }
 
 
     public Track(Node didl_node)
     {
+        super(FIELDS);
         Element node_ele = (Element) didl_node;
 
         setTitle(Utils.getTagValue(node_ele,"dc:title"));
@@ -109,10 +184,11 @@ public class Track extends Record
     public Track(String uri,String didl)
         // construct from a URI and some didl encoded METADATA from a dlna client
     {
+        super(FIELDS);
         boolean isLocal = false;
         this.put("dirty",1);
         didl = httpUtils.decode_lite(didl);
-        String id = extract_value("\\sid=\"(.+?)\"",didl);
+        String id = extract_value(RE_ID,didl);
 
         // convert to local
         // not if there's no local database
@@ -123,11 +199,10 @@ public class Track extends Record
             if (local_library != null)
             {
                 String got_id = "";
-                String re = "http:\\/\\/" + Utils.server_ip + ":" + Utils.server_port + "\\/ContentDirectory\\/media\\/(.*)\\.mp3$";
-                Pattern pattern = Pattern.compile(re);
-                Matcher matcher = pattern.matcher(uri);
-                if (matcher.find()) got_id = matcher.group(1);
-                if (got_id == null) got_id = "";
+                String prefix = "http://" + Utils.server_ip + ":" + Utils.server_port + "/ContentDirectory/media/";
+                int at = uri.indexOf(prefix);
+                if (at >= 0 && uri.endsWith(".mp3"))
+                    got_id = uri.substring(at + prefix.length(),uri.length() - 4);
                 if (!got_id.equals(""))
                 {
                     // got an url that looks like ours
@@ -147,8 +222,7 @@ public class Track extends Record
                         isLocal = false;
                     else
                     {
-                        for (String key:track.keySet())
-                            this.put(key,track.get(key));
+                        this.putAll(track);
                         this.put("dirty",0);
                         return;
 
@@ -164,27 +238,45 @@ public class Track extends Record
         if (!isLocal) this.put("path",uri);
         this.put("is_local",isLocal?1:0);
         this.put("id",id);
-        this.put("parent_id",extract_value("parentID=\"(.*?)\"",didl));
+        this.put("parent_id",extract_value(RE_PARENT_ID,didl));
         // has_art
         // path
-        this.put("art_uri",extract_value("<upnp:albumArtURI>(.*?)<\\/upnp:albumArtURI>",didl));
-        String dur_str = Utils.extract_re("duration=\"(.*?)\"",didl);;
+        this.put("art_uri",extract_value(RE_ART_URI,didl));
+        String dur_str = Utils.extract_re(RE_DURATION,didl);
         this.put("duration",Utils.stringToDuration(dur_str));
-        this.put("size",Utils.parseInt(Utils.extract_re("size =\"(\\d+)\"",didl)));
+        this.put("size",Utils.parseInt(Utils.extract_re(RE_SIZE,didl)));
         this.put("type",type);
-        this.put("title",extract_value("<dc:title>(.*?)<\\/dc:title>",didl));
-        this.put("artist",extract_value("<upnp:artist>(.*?)<\\/upnp:artist>",didl));
-        this.put("album_title",extract_value("<upnp:album>(.*?)<\\/upnp:album>",didl));
-        this.put("album_artist",extract_value("<upnp:albumArtist>(.*?)<\\/upnp:albumArtist>",didl));
-        this.put("tracknum",extract_value("<upnp:originalTrackNumber>(.*?)<\\/upnp:originalTrackNumber>",didl));
-        this.put("genre",extract_value("<upnp:genre>(.*?)<\\/upnp:genre",didl));
-        this.put("year_str",Utils.extract_re("<dc:date>(.*?)<\\/dc:date>",didl));
+        this.put("title",extract_value(RE_TITLE,didl));
+        this.put("artist",extract_value(RE_ARTIST,didl));
+        this.put("album_title",extract_value(RE_ALBUM_TITLE,didl));
+        this.put("album_artist",extract_value(RE_ALBUM_ARTIST,didl));
+        this.put("tracknum",extract_value(RE_TRACKNUM,didl));
+        this.put("genre",extract_value(RE_GENRE,didl));
+        this.put("year_str",Utils.extract_re(RE_YEAR_STR,didl));
 
     }   // Track() from uri and didl
 
 
+    // the didl fields, compiled once
+
+    private static final Pattern RE_ID = Utils.extract_pattern("\\sid=\"(.+?)\"");
+    private static final Pattern RE_PARENT_ID = Utils.extract_pattern("parentID=\"(.*?)\"");
+    private static final Pattern RE_ART_URI = Utils.extract_pattern("<upnp:albumArtURI>(.*?)<\\/upnp:albumArtURI>");
+    private static final Pattern RE_DURATION = Utils.extract_pattern("duration=\"(.*?)\"");
+    private static final Pattern RE_SIZE = Utils.extract_pattern("size =\"(\\d+)\"");
+    private static final Pattern RE_TITLE = Utils.extract_pattern("<dc:title>(.*?)<\\/dc:title>");
+    private static final Pattern RE_ARTIST = Utils.extract_pattern("<upnp:artist>(.*?)<\\/upnp:artist>");
+    private static final Pattern RE_ALBUM_TITLE = Utils.extract_pattern("<upnp:album>(.*?)<\\/upnp:album>");
+    private static final Pattern RE_ALBUM_ARTIST = Utils.extract_pattern("<upnp:albumArtist>(.*?)<\\/upnp:albumArtist>");
+    private static final Pattern RE_TRACKNUM = Utils.extract_pattern("<upnp:originalTrackNumber>(.*?)<\\/upnp:originalTrackNumber>");
+    private static final Pattern RE_GENRE = Utils.extract_pattern("<upnp:genre>(.*?)<\\/upnp:genre");
+    private static final Pattern RE_YEAR_STR = Utils.extract_pattern("<dc:date>(.*?)<\\/dc:date>");
+    private static final Pattern RE_WMA = Utils.extract_pattern("(audio/x-ms-wma)");
+    private static final Pattern RE_WAV = Utils.extract_pattern("(audio/x-wav)");
+    private static final Pattern RE_M4A = Utils.extract_pattern("(audio/x-m4a)");
 
-    private static String extract_value(String re, String didl)
+
+    private static String extract_value(Pattern re, String didl)
     {
         String rslt = Utils.extract_re(re,didl);
         rslt = httpUtils.decode_xml(rslt);
@@ -195,9 +287,9 @@ public class Track extends Record
     public static String extractType(String didl)
     {
         String type = "mp3";
-        if (!Utils.extract_re("(audio/x-ms-wma)",didl).equals("")) type = "wma";
-        if (!Utils.extract_re("(audio/x-wav)",didl).equals("")) type = "wav";
-        if (!Utils.extract_re("(audio/x-m4a)",didl).equals("")) type = "m4a";
+        if (!Utils.extract_re(RE_WMA,didl).equals("")) type = "wma";
+        if (!Utils.extract_re(RE_WAV,didl).equals("")) type = "wav";
+        if (!Utils.extract_re(RE_M4A,didl).equals("")) type = "m4a";
         return type;
     }
 
@@ -218,70 +310,72 @@ public class Track extends Record
     // base fields needed for minimum dlna representation
 
     // NOT IN DATABASE
+    // These, and the position, are not in the didl, so they are
+    // set quietly, without invalidating the cached didl.
 
-    public int getOpenId()                  { return getInt("open_id"); }
-    public void setOpenId(Integer value)    { putInt("open_id",value); }
-    public int getPositionRef()             { return getInt("position_ref");}
-    public void setPositionRef(int value)   { putInt("position_ref",value);}
+    public int getOpenId()                  { return getInt(OPEN_ID); }
+    public void setOpenId(Integer value)    { putIntQuiet(OPEN_ID,value); }
+    public int getPositionRef()             { return getInt(POSITION_REF);}
+    public void setPositionRef(int value)   { putIntQuiet(POSITION_REF,value);}
 
     // rest in database
 
-    public boolean isLocal()                { return getInt("is_local") > 0; }
-    private String getPath()                { return getString("path"); }
-    public int getHasArt()                  { return getInt("has_art"); }
-    private String privateGetPublicArtUri() { return getString("art_uri"); }
+    public boolean isLocal()                { return getInt(IS_LOCAL) > 0; }
+    private String getPath()                { return getString(PATH); }
+    public int getHasArt()                  { return getInt(HAS_ART); }
+    private String privateGetPublicArtUri() { return getString(ART_URI); }
 
     // dlna representation
 
-    public String getId()           { return getString("id"); }
-    public String getParentId()     { return getString("parent_id"); }
-    public int getDuration()        { return getInt("duration"); }
-    public String getType()         { return getString("type"); }
-    public int getSize()            { return getInt("size"); }
-    public String getTitle()        { return getString("title"); }
-    public String getArtist()       { return getString("artist"); }
-    public String getAlbumTitle()   { return getString("album_title"); }
-    public String getAlbumArtist()  { return getString("album_artist"); }
-    public String getTrackNum()     { return getString("tracknum"); }
-    public String getGenre()        { return getString("genre"); }
-    public String getYearString()   { return getString("year_str"); }
+    public String getId()           { return getString(ID); }
+    public String getParentId()     { return getString(PARENT_ID); }
+    public int getDuration()        { return getInt(DURATION); }
+    public String getType()         { return getString(TYPE); }
+    public int getSize()            { return getInt(SIZE); }
+    public String getTitle()        { return getString(TITLE); }
+    public String getArtist()       { return getString(ARTIST); }
+    public String getAlbumTitle()   { return getString(ALBUM_TITLE); }
+    public String getAlbumArtist()  { return getString(ALBUM_ARTIST); }
+    public String getTrackNum()     { return getString(TRACKNUM); }
+    public String getGenre()        { return getString(GENRE); }
+    public String getYearString()   { return getString(YEAR_STR); }
 
     // extra main database fields
 
-    public int getTimeStamp()       { return getInt("timestamp"); }
-    public String getFileMd5()      { return getString("file_md5"); }
-    public String getErrorCodes()   { return getString("error_codes"); }
-    public int getHighestError()    { return getInt("highest_error"); }
-    public int getPosition()        { return getInt("position"); }
+    public int getTimeStamp()       { return getInt(TIMESTAMP); }
+    public String getFileMd5()      { return getString(FILE_MD5); }
+    public String getErrorCodes()   { return getString(ERROR_CODES); }
+    public int getHighestError()    { return getInt(HIGHEST_ERROR); }
+    public int getPosition()        { return getInt(POSITION); }
 
     // correctly used PUBLIC setter:
 
-    public void setPosition(Integer value)  { putInt("position",value); }
+    public void setPosition(Integer value)  { putIntQuiet(POSITION,value); }
 
     //-------------------------------------------------------------
     // Restricted setters should only be used by clients who
     //-------------------------------------------------------------
     // have detailed knowledge of path and has_art internal scheme
 
-    public void setId            (String value)    { putString("id",value); }
-    public void setParentId      (String value)    { putString("parent_id",value); }
-    public void setDuration      (int    value)    { putInt("duration",value); }
-    public void setType          (String value)    { putString("type",value); }
-    public void setSize          (int    value)    { putInt("size",value); }
-    public void setTitle         (String value)    { putString("title",value); }
-    public void setArtist        (String value)    { putString("artist",value); }
-    public void setAlbumTitle    (String value)    { putString("album_title",value); }
-    public void setAlbumArtist   (String value)    { putString("album_artist",value); }
-    public void setTrackNum      (String value)    { putString("tracknum",value); }
-    public void setGenre         (String value)    { putString("genre",value); }
-    public void setYearString    (String value)    { putString("year_str",value); }
-    public void setTimeStamp     (int    value)    { putInt("timestamp",value); }
-    public void setFileMd5       (String value)    { putString("file_md5",value); }
-    public void setErrorCodes    (String value)    { putString("error_codes",value); }
-    public void setHighestError  (int    value)    { putInt("highest_error",value); }
-    public void setPosition      (int    value)    { putInt("position",value); }
-    public void setArtUri        (String value)    { putString("art_uri",value); }
-    public void setPath          (String value)    { putString("path",value); }
+    public void setId            (String value)    { putString(ID,value); }
+    public void setParentId      (String value)    { putString(PARENT_ID,value); }
+    public void setDuration      (int    value)    { putInt(DURATION,value); }
+    public void setType          (String value)    { putString(TYPE,value); }
+    public void setSize          (int    value)    { putInt(SIZE,value); }
+    public void setTitle         (String value)    { putString(TITLE,value); }
+    public void setArtist        (String value)    { putString(ARTIST,value); }
+    public void setAlbumTitle    (String value)    { putString(ALBUM_TITLE,value); }
+    public void setAlbumArtist   (String value)    { putString(ALBUM_ARTIST,value); }
+    public void setTrackNum      (String value)    { putString(TRACKNUM,value); }
+    public void setGenre         (String value)    { putString(GENRE,value); }
+    public void setYearString    (String value)    { putString(YEAR_STR,value); }
+    public void setTimeStamp     (int    value)    { putInt(TIMESTAMP,value); }
+    public void setFileMd5       (String value)    { putString(FILE_MD5,value); }
+    public void setErrorCodes    (String value)    { putString(ERROR_CODES,value); }
+    public void setHighestError  (int    value)    { putInt(HIGHEST_ERROR,value); }
+    public void setPosition      (int    value)    { putIntQuiet(POSITION,value); }
+    public void setArtUri        (String value)    { putString(ART_URI,value); }
+    public void setPath          (String value)    { putString(PATH,value); }
 
 
     //------------------------------------------------------------
@@ -366,19 +460,66 @@ public class Track extends Record
     }
 
 
+    //------------------------------------------------------------
+    // DIDL
+    //------------------------------------------------------------
+    // The metadata and didl are built once, and cached until
+    // the record changes (or the server uri they contain does).
+    // ReadList, Browse, and the OpenHome and AVTransport events
+    // ask for the same tracks over and over.
+
+    private static class didlCache
+    {
+        final int version;
+        final String server_uri;
+        final String metadata;
+        final String didl;
+
+        didlCache(int version, String server_uri, String metadata)
+        {
+            this.version = version;
+            this.server_uri = server_uri;
+            this.metadata = metadata;
+            this.didl = httpUtils.encode_lite(
+                httpUtils.start_didl() +
+                    metadata +
+                    httpUtils.end_didl());
+        }
+    }
+
+    private didlCache didl_cache = null;
+
+
+    private didlCache getDidlCache()
+    {
+        didlCache cache = didl_cache;
+        if (cache == null ||
+            cache.version != getVersion() ||
+            cache.server_uri != Utils.server_uri)
+        {
+            int version = getVersion();
+            cache = new didlCache(version,Utils.server_uri,buildMetadata());
+            didl_cache = cache;
+        }
+        return cache;
+    }
+
+
     public String getDidl()
         // return the metadata, wrapped in Didl tags, and xml_encoded
     {
-        return httpUtils.encode_lite(
-            httpUtils.start_didl() +
-                getMetadata() +
-                httpUtils.end_didl());
+        return getDidlCache().didl;
     }
 
 
-
     public String getMetadata()
         // returns the metadata without <didl> wrapper or xml_encoding
+    {
+        return getDidlCache().metadata;
+    }
+
+
+    private String buildMetadata()
     {
         return "<item id=\"" + getId() + "\" parentID=\"" + getParentId() + "\" restricted=\"1\">" +
             "<dc:title>" +  httpUtils.encode_xml(getTitle()) + "</dc:title>" +
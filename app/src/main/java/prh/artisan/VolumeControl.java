@@ -365,10 +365,10 @@ public class VolumeControl extends Dialog implements
     // Artisan Event Handling
     //---------------------------------------------------
 
-    public void handleArtisanEvent(String event_id,Object data)
+    public void handleArtisanEvent(eventType event_id,Object data)
         // null is handled easiest by a re-init_controls
     {
-        if (event_id.equals(EVENT_VOLUME_CHANGED))
+        if (event_id == EVENT_VOLUME_CHANGED)
         {
             volume = (Volume) data;
             if (volume == null)
@@ -798,9 +798,9 @@ public class aLibrary extends Fragment implements
     // Artisan Event Handling
     //--------------------------------------------------------------
 
-    @Override public void handleArtisanEvent(final String event_id,final Object data)
+    @Override public void handleArtisanEvent(final eventType event_id,final Object data)
     {
-        if (event_id.equals(EVENT_LIBRARY_CHANGED))
+        if (event_id == EVENT_LIBRARY_CHANGED)
         {
             Library new_library = (Library) data;
             if (new_library == null || library == null ||
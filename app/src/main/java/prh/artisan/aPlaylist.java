@@ -748,11 +748,11 @@ public class aPlaylist extends Fragment implements
     // Artisan Event Handling
     //--------------------------------------------------------------
 
-    @Override public void handleArtisanEvent(final String event_id,final Object data)
+    @Override public void handleArtisanEvent(final eventType event_id,final Object data)
     {
-        if (event_id.equals(EVENT_PLAYLIST_CHANGED))
+        if (event_id == EVENT_PLAYLIST_CHANGED)
             init(true);
-        else if (event_id.equals(EVENT_PLAYLIST_CONTENT_CHANGED))
+        else if (event_id == EVENT_PLAYLIST_CONTENT_CHANGED)
             init(false);
     }
 
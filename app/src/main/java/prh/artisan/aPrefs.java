@@ -143,7 +143,7 @@ public class aPrefs extends PreferenceFragment implements
     // Artisan Event Handling
     //------------------------------------------------
 
-    @Override public void handleArtisanEvent( String event_id, Object data )
+    @Override public void handleArtisanEvent( eventType event_id, Object data )
     {
         /**********
 
@@ -153,10 +153,10 @@ public class aPrefs extends PreferenceFragment implements
         // in all these cases, the data is a Device
         // from which can get it's group, and thus it's preferences
 
-        if (event_id.equals(EVENT_NEW_DEVICE) ||
-            event_id.equals(EVENT_LIBRARY_CHANGED) ||
-            event_id.equals(EVENT_RENDERER_CHANGED) ||
-            event_id.equals(EVENT_PLAYLIST_SOURCE_CHANGED))
+        if (event_id == EVENT_NEW_DEVICE ||
+            event_id == EVENT_LIBRARY_CHANGED ||
+            event_id == EVENT_RENDERER_CHANGED ||
+            event_id == EVENT_PLAYLIST_SOURCE_CHANGED)
         {
             Device device = (Device) data;
             Device.deviceGroup group = device.getDeviceGroup();
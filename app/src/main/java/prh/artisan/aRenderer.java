@@ -638,21 +638,21 @@ public class aRenderer extends Fragment implements
 
 
 
-    @Override public void handleArtisanEvent(String event_id,Object data)
+    @Override public void handleArtisanEvent(eventType event_id,Object data)
     // handle changes ...
     // in order of most minor, to most major changes
     // where major changes require more updating.
     {
-        if (event_id.equals(EVENT_POSITION_CHANGED))
+        if (event_id == EVENT_POSITION_CHANGED)
         {
             update_position((Integer) data);
         }
-        else if (event_id.equals(EVENT_STATE_CHANGED))
+        else if (event_id == EVENT_STATE_CHANGED)
         {
             update_state((String) data);
             updateTitleBar();
         }
-        else if (event_id.equals(EVENT_TRACK_CHANGED))
+        else if (event_id == EVENT_TRACK_CHANGED)
         {
             current_state = renderer.getRendererState();
             current_position = renderer.getPosition();
@@ -662,7 +662,7 @@ public class aRenderer extends Fragment implements
             update_state(current_state);
             updateTitleBar();
         }
-        else if (event_id.equals(EVENT_PLAYLIST_CHANGED))
+        else if (event_id == EVENT_PLAYLIST_CHANGED)
         {
             current_state = renderer.getRendererState();
             current_position = renderer.getPosition();
@@ -683,7 +683,7 @@ public class aRenderer extends Fragment implements
         // but really complicated for openHome renderers.
         // FOR NOW JUST SWITCHES TO THE CORRECT RENDERER
 
-        else if (event_id.equals(EVENT_RENDERER_CHANGED))
+        else if (event_id == EVENT_RENDERER_CHANGED)
         {
             renderer = (Renderer) data;
 
@@ -704,13 +704,13 @@ public class aRenderer extends Fragment implements
             updateTitleBar();
         }
 
-        else if (event_id.equals(EVENT_PLAYLIST_SOURCE_CHANGED))
+        else if (event_id == EVENT_PLAYLIST_SOURCE_CHANGED)
         {
             update_playlist();
             setPlayListNames();
         }
 
-        else if (event_id.equals(COMMAND_EVENT_PLAY_TRACK))
+        else if (event_id == COMMAND_EVENT_PLAY_TRACK)
         {
             if (renderer != null)
             {
@@ -0,0 +1,200 @@
+//----------------------------------------------------------
+// managedCursor - a Cursor that is counted while it is open
+//----------------------------------------------------------
+// Every Cursor handed out by Database is wrapped in one of
+// these. Each open cursor can pin a CursorWindow (up to 2MB)
+// until it is closed, or until the GC finalizes it, which on
+// a server that runs for days may be never.
+//
+// The class keeps counts of open, peak and leaked cursors,
+// and an estimate of the window memory they hold, for
+// getStats().
+//
+// When leak tracking is on (debuggable builds, see Artisan)
+// each cursor remembers where it was opened. A cursor that is
+// finalized without having been closed is reported with that
+// stack, and checkOpen() lists any that are still open when
+// the database is stopped.
+
+package prh.artisan;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import prh.utils.Utils;
+
+
+public class managedCursor extends CursorWrapper
+{
+    private static int dbg_cursor = 1;
+
+    public static long CURSOR_WINDOW_SIZE = 2 * 1024 * 1024;
+        // the default (maximum) size of a CursorWindow
+
+    private static boolean track_leaks = false;
+
+    private static AtomicInteger num_open = new AtomicInteger(0);
+    private static AtomicInteger num_opened = new AtomicInteger(0);
+    private static AtomicInteger num_leaked = new AtomicInteger(0);
+    private static int peak_open = 0;
+
+    private static Set<managedCursor> open_cursors =
+        Collections.newSetFromMap(new WeakHashMap<managedCursor,Boolean>());
+        // only populated when tracking leaks, and weak
+        // so that a leaked cursor can still be finalized
+
+    private String sql;
+    private Throwable origin = null;
+    private boolean closed = false;
+
+
+    public static void setTrackLeaks(boolean track)
+    {
+        track_leaks = track;
+    }
+
+
+    public managedCursor(Cursor cursor, String the_sql)
+    {
+        super(cursor);
+        sql = the_sql;
+
+        int open = num_open.incrementAndGet();
+        num_opened.incrementAndGet();
+        synchronized (open_cursors)
+        {
+            if (open > peak_open)
+                peak_open = open;
+            if (track_leaks)
+            {
+                origin = new Throwable("opened here");
+                open_cursors.add(this);
+            }
+        }
+        Utils.log(dbg_cursor+2,0,"managedCursor(" + open + ") opened for " + sql);
+    }
+
+
+    @Override
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            closed = true;
+        }
+        num_open.decrementAndGet();
+        if (origin != null)
+        {
+            synchronized (open_cursors)
+            {
+                open_cursors.remove(this);
+            }
+        }
+        super.close();
+    }
+
+
+    @Override
+    protected void finalize() throws Throwable
+    {
+        try
+        {
+            if (!closed)
+            {
+                num_leaked.incrementAndGet();
+                Utils.warning(0,0,"managedCursor leaked for " + sql);
+                if (origin != null)
+                    Utils.warning(0,1,"opened " + where(origin));
+                close();
+            }
+        }
+        finally
+        {
+            super.finalize();
+        }
+    }
+
+
+    private static String where(Throwable origin)
+        // the callers that opened the cursor,
+        // skipping Database and this class
+    {
+        String rslt = "";
+        for (StackTraceElement e : origin.getStackTrace())
+        {
+            String class_name = e.getClassName();
+            if (!class_name.startsWith("prh") ||
+                class_name.equals(managedCursor.class.getName()) ||
+                class_name.equals(Database.class.getName()))
+                continue;
+            if (!rslt.isEmpty())
+                rslt += " <- ";
+            rslt += class_name + "::" + e.getMethodName() + "(" + e.getFileName() + ":" + e.getLineNumber() + ")";
+        }
+        return rslt;
+    }
+
+
+    //-------------------------------------------
+    // metrics
+    //-------------------------------------------
+
+    public static int getNumOpen()      { return num_open.get(); }
+    public static int getNumOpened()    { return num_opened.get(); }
+    public static int getNumLeaked()    { return num_leaked.get(); }
+
+    public static int getPeakOpen()
+    {
+        synchronized (open_cursors)
+        {
+            return peak_open;
+        }
+    }
+
+    public static long getWindowBytes()
+        // upper bound, each open cursor holds at most one window
+    {
+        return (long) num_open.get() * CURSOR_WINDOW_SIZE;
+    }
+
+
+    public static String getStats()
+    {
+        return "open=" + getNumOpen() +
+            " peak=" + getPeakOpen() +
+            " opened=" + getNumOpened() +
+            " leaked=" + getNumLeaked() +
+            " window_bytes<=" + getWindowBytes();
+    }
+
+
+    public static int checkOpen(String when)
+        // Report any cursors that are still open.
+        // Returns the number of open cursors.
+    {
+        int open = num_open.get();
+        if (open > 0)
+        {
+            Utils.warning(0,0,open + " cursors still open at " + when);
+            synchronized (open_cursors)
+            {
+                for (managedCursor cursor : open_cursors)
+                {
+                    Utils.warning(0,1,"open cursor for " + cursor.sql);
+                    Utils.warning(0,2,"opened " + where(cursor.origin));
+                }
+            }
+        }
+        Utils.log(dbg_cursor,0,"managedCursor stats at " + when + ": " + getStats());
+        return open;
+    }
+
+
+}   // class managedCursor
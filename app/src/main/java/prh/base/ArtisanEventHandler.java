@@ -5,42 +5,83 @@ public interface ArtisanEventHandler
     // handles events from a renderer
     // to update the Now Playing and other UI
 {
-    // general message dispatched to all listeners
-
-    public static String EVENT_VOLUME_CHANGED          = "VOLUME_CHANGED";                // data = Volume object
-    public static String EVENT_STATE_CHANGED           = "STATE_CHANGED";                 // data = String renderer_state
-    public static String EVENT_POSITION_CHANGED        = "POSITION_CHANGED";              // data = Integer renderer position
-    public static String EVENT_TRACK_CHANGED           = "TRACK_CHANGED";                 // data = Track
-    public static String EVENT_PLAYLIST_CHANGED        = "PLAYLIST_CHANGED";              // data = Playlist
-    public static String EVENT_PLAYLIST_CONTENT_CHANGED = "PLAYLIST_CONTENTS_CHANGED";    // data = Playlist
-    public static String EVENT_LIBRARY_CHANGED         = "LIBRARY_CHANGED";               // data = New Library
-    public static String EVENT_RENDERER_CHANGED        = "RENDERER_CHANGED";              // data = New Renderer
-    public static String EVENT_PLAYLIST_SOURCE_CHANGED = "PLAYLIST_SOURCE_CHANGED";       // data = New PlaylistSource
-    public static String EVENT_NEW_DEVICE              = "NEW_DEVICE";                    // data = New Device found in SSDP Search
-    public static String EVENT_DEVICE_STATUS_CHANGED   = "DEVICE_STATUS_CHANGED";         // data = Device
-    public static String EVENT_SSDP_SEARCH_STARTED     = "SSDP_SEARCH_STARTED";           // data = null
-    public static String EVENT_SSDP_SEARCH_FINISHED    = "SSDP_SEARCH_FINISHED";          // data = null
-    public static String EVENT_VIRTUAL_FOLDER_CHANGED  = "VIRTUAL_FOLDER_CHANGED";        // data = Virtual Folder Id
-
-
     //-----------------------------
-    // ARTISAN ONLY EVENTS
+    // event ids
     //-----------------------------
-    // Not otherwise received as events
-    // Interpreted in Artisan
+    // The ids are an enum, so handlers switch on them, and the
+    // ArtisanEventBus keeps its subscriber lists by them.
+    //
+    // A coalesced event carries the full state in its data, so if
+    // several are raised before the UI thread gets to them, only
+    // the newest is delivered.
+
+    public enum eventType
+    {
+        // general message dispatched to all listeners
+
+        EVENT_VOLUME_CHANGED            (true),     // data = Volume object
+        EVENT_STATE_CHANGED             (true),     // data = String renderer_state
+        EVENT_POSITION_CHANGED          (true),     // data = Integer renderer position
+        EVENT_TRACK_CHANGED             (false),    // data = Track
+        EVENT_PLAYLIST_CHANGED          (false),    // data = Playlist
+        EVENT_PLAYLIST_CONTENT_CHANGED  (true),     // data = Playlist
+        EVENT_LIBRARY_CHANGED           (false),    // data = New Library
+        EVENT_RENDERER_CHANGED          (false),    // data = New Renderer
+        EVENT_PLAYLIST_SOURCE_CHANGED   (false),    // data = New PlaylistSource
+        EVENT_NEW_DEVICE                (false),    // data = New Device found in SSDP Search
+        EVENT_DEVICE_STATUS_CHANGED     (false),    // data = Device
+        EVENT_SSDP_SEARCH_STARTED       (false),    // data = null
+        EVENT_SSDP_SEARCH_FINISHED      (false),    // data = null
+        EVENT_VIRTUAL_FOLDER_CHANGED    (false),    // data = Virtual Folder Id
+
+        // ARTISAN ONLY EVENTS
+        // Not otherwise received as events
+        // Interpreted in Artisan
+
+        DISPATCH_UPNP                   (false),
+            // data = null
+            // sends any UPnP events that are due, without
+            // going through the UI thread
+        EVENT_PLAYLIST_TRACKS_EXPOSED   (false),
+            // data = Playlist
+            // used in expose scheme
 
-    public static String DISPATCH_UPNP = "DISPATCH_UPNP";
-        // data = null
-        // called by artisan itself when UPNP_Events have been deferred
-    public static String EVENT_PLAYLIST_TRACKS_EXPOSED = "PLAYLIST_TRACKS_EXPOSED";
-        // data = Playlist
-        // used in expose scheme
+        // control commands
 
-    // control commands
+        COMMAND_EVENT_PLAY_TRACK        (false);
+            // data = track
+            // play the given track in immediate mode
 
-    public static String COMMAND_EVENT_PLAY_TRACK = "COMMAND_PLAY_TRACK";
-        // data = track
-        // play the given track in immediate mode
+        private final boolean coalesce;
+
+        eventType(boolean coalesced)
+        {
+            coalesce = coalesced;
+        }
+
+        public boolean isCoalesced()    { return coalesce; }
+    }
+
+
+    // the old constant names, for callers
+
+    public static eventType EVENT_VOLUME_CHANGED           = eventType.EVENT_VOLUME_CHANGED;
+    public static eventType EVENT_STATE_CHANGED            = eventType.EVENT_STATE_CHANGED;
+    public static eventType EVENT_POSITION_CHANGED         = eventType.EVENT_POSITION_CHANGED;
+    public static eventType EVENT_TRACK_CHANGED            = eventType.EVENT_TRACK_CHANGED;
+    public static eventType EVENT_PLAYLIST_CHANGED         = eventType.EVENT_PLAYLIST_CHANGED;
+    public static eventType EVENT_PLAYLIST_CONTENT_CHANGED = eventType.EVENT_PLAYLIST_CONTENT_CHANGED;
+    public static eventType EVENT_LIBRARY_CHANGED          = eventType.EVENT_LIBRARY_CHANGED;
+    public static eventType EVENT_RENDERER_CHANGED         = eventType.EVENT_RENDERER_CHANGED;
+    public static eventType EVENT_PLAYLIST_SOURCE_CHANGED  = eventType.EVENT_PLAYLIST_SOURCE_CHANGED;
+    public static eventType EVENT_NEW_DEVICE               = eventType.EVENT_NEW_DEVICE;
+    public static eventType EVENT_DEVICE_STATUS_CHANGED    = eventType.EVENT_DEVICE_STATUS_CHANGED;
+    public static eventType EVENT_SSDP_SEARCH_STARTED      = eventType.EVENT_SSDP_SEARCH_STARTED;
+    public static eventType EVENT_SSDP_SEARCH_FINISHED     = eventType.EVENT_SSDP_SEARCH_FINISHED;
+    public static eventType EVENT_VIRTUAL_FOLDER_CHANGED   = eventType.EVENT_VIRTUAL_FOLDER_CHANGED;
+    public static eventType DISPATCH_UPNP                  = eventType.DISPATCH_UPNP;
+    public static eventType EVENT_PLAYLIST_TRACKS_EXPOSED  = eventType.EVENT_PLAYLIST_TRACKS_EXPOSED;
+    public static eventType COMMAND_EVENT_PLAY_TRACK       = eventType.COMMAND_EVENT_PLAY_TRACK;
 
 
 
@@ -48,7 +89,6 @@ public interface ArtisanEventHandler
     // method signature
     //--------------------------
 
-    void handleArtisanEvent( String event_id, Object data );
+    void handleArtisanEvent( eventType event_id, Object data );
 
 }   // class ArtisanEventHandler
-
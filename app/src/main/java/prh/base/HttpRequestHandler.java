@@ -1,9 +1,8 @@
 package prh.base;
 
-import org.w3c.dom.Document;
-
 import fi.iki.elonen.NanoHTTPD;
 import prh.server.utils.UpnpEventSubscriber;
+import prh.utils.soapRequest;
 
 public interface HttpRequestHandler
 {
@@ -13,9 +12,10 @@ public interface HttpRequestHandler
         String uri,
         String service,
         String action,
-        Document doc,
+        soapRequest args,
         UpnpEventSubscriber subscriber);
 
+    // args are the arguments of a /control action, or null.
     // subscriber will be null, except for OpenPlaylist
     // subscribers that are using the EXPOSE_SCHEME
 }
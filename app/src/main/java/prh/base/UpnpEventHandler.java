@@ -17,6 +17,16 @@ abstract public interface UpnpEventHandler
     int getUpdateCount();
     int incUpdateCount();
 
+    boolean sendsFullState();
+        // true if every event carries all of the evented state,
+        // so that a newer event can replace one not yet sent.
+        // false if events only carry the changes since the
+        // subscriber's last event, which must all be sent.
+
+    boolean sharesEventContent();
+        // true if getEventContent() does not depend on the
+        // subscriber, so one rendering can be sent to all.
+
     String getEventContent(UpnpEventSubscriber subscriber);
     void notifySubscribed(UpnpEventSubscriber subscriber,boolean subscribe);
         // subscribe==false means unsubscribe
@@ -3,7 +3,14 @@ package prh.device;
 
 import org.w3c.dom.Document;
 
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import prh.artisan.Artisan;
 import prh.base.ArtisanEventHandler;
@@ -86,7 +93,7 @@ public abstract class Device implements Comparable<Device>
 
     protected int failure_count = 0;
     public static int NUM_FAILURE_RETRIES = 3;
-        // networkRequest times out after about 10 seconds
+        // networkRequest times out after 10 seconds
         // so this means we might retry for 30 seconds
 
     public void deviceSuccess()
@@ -344,46 +351,258 @@ public abstract class Device implements Comparable<Device>
 
     static int dbg_da = 1;
 
+    // Actions run concurrently on the shared networkRequest executor,
+    // except for those that change the state of the device (Play, Seek,
+    // SetVolume, Insert, etc), which are run one at a time, in the order
+    // they were issued, on an ordered lane for their service. Writes to
+    // different services (i.e. SetVolume and Seek) do not wait for each
+    // other. Identical reads (same service, action, and args) that are
+    // already in flight are coalesced, and share one request and result.
+    //
+    // A read issued while a write to the same service is pending is
+    // queued on that service's lane behind it, so that a Get after a Set
+    // sees the new state, and queueing a write forgets the service's reads
+    // in flight, so that later reads do not join one that started before
+    // the write. Reads of other services are not held up.
+
+    private class serviceLane
+        // the ordered lane, last write, and reads in flight of
+        // one service of this device, all guarded by the serviceLane
+    {
+        final Service.serviceType service_type;
+        volatile ThreadPoolExecutor executor = null;
+        networkRequest last_write = null;
+        final HashMap<String,networkRequest> reads_in_flight =
+            new HashMap<String,networkRequest>();
+
+        serviceLane(Service.serviceType type)
+        {
+            service_type = type;
+        }
+
+        final networkRequest.networkResponseHandler readDone =
+            new networkRequest.networkResponseHandler()
+        {
+            public void handleNetworkResponse(networkRequest request)
+                // remove a completed read from reads_in_flight
+                // timed out and cancelled ones are replaced
+                // by the next identical read
+            {
+                synchronized (serviceLane.this)
+                {
+                    if (reads_in_flight.get(request.caller_id) == request)
+                        reads_in_flight.remove(request.caller_id);
+                }
+            }
+        };
+
+        boolean writePending()
+            // true if a write has not finished, or is still running on
+            // the lane after timing out. Called with the serviceLane held.
+        {
+            if (last_write != null && !last_write.isDone())
+                return true;
+            ThreadPoolExecutor lane = executor;
+            return lane != null &&
+                (lane.getActiveCount() > 0 || !lane.getQueue().isEmpty());
+        }
+
+        synchronized ThreadPoolExecutor getExecutor()
+        {
+            if (executor == null)
+            {
+                executor = new ThreadPoolExecutor(
+                    1,
+                    1,
+                    30,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable runnable)
+                        {
+                            Thread thread = new Thread(runnable);
+                            thread.setDaemon(true);
+                            thread.setName("doAction(" + getFriendlyName() + "," + service_type + ")");
+                            return thread;
+                        }
+                    });
+                executor.allowCoreThreadTimeOut(true);
+            }
+            return executor;
+        }
+    }
+
+    private final EnumMap<Service.serviceType,serviceLane> lanes =
+        new EnumMap<Service.serviceType,serviceLane>(Service.serviceType.class);
+
+    private static final AtomicInteger num_actions = new AtomicInteger(0);
+    private static final AtomicInteger num_coalesced = new AtomicInteger(0);
+    public static int getNumActions()       { return num_actions.get(); }
+    public static int getNumCoalesced()     { return num_coalesced.get(); }
+
+
+    //------------------------------------------
+    // read actions
+    //------------------------------------------
+    // The actions of each service that only read state from the
+    // device, and may be run in any order and coalesced, from the
+    // UPnP AV and OpenHome service descriptions. Anything else,
+    // including an action we do not know, is treated as a write.
+
+    private static final EnumMap<Service.serviceType,HashSet<String>> read_actions =
+        new EnumMap<Service.serviceType,HashSet<String>>(Service.serviceType.class);
+
+    private static void readActions(Service.serviceType service_type, String... actions)
+    {
+        HashSet<String> set = new HashSet<String>();
+        for (String action : actions)
+            set.add(action);
+        read_actions.put(service_type,set);
+    }
+
+    static
+    {
+        readActions(Service.serviceType.ContentDirectory,
+            "Browse", "Search", "GetSearchCapabilities",
+            "GetSortCapabilities", "GetSystemUpdateID");
+        readActions(Service.serviceType.AVTransport,
+            "GetMediaInfo", "GetPositionInfo", "GetTransportInfo",
+            "GetTransportSettings", "GetDeviceCapabilities",
+            "GetCurrentTransportActions");
+        readActions(Service.serviceType.RenderingControl,
+            "ListPresets", "GetMute", "GetVolume", "GetVolumeDB",
+            "GetVolumeDBRange", "GetLoudness");
+        readActions(Service.serviceType.OpenProduct,
+            "Manufacturer", "Model", "Product", "Standby",
+            "SourceCount", "SourceXml", "SourceXmlChangeCount",
+            "SourceIndex", "Source", "Attributes");
+        readActions(Service.serviceType.OpenPlaylist,
+            "TransportState", "Repeat", "Shuffle", "Id", "Read",
+            "ReadList", "TracksMax", "IdArray", "IdArrayChanged",
+            "ProtocolInfo");
+        readActions(Service.serviceType.OpenInfo,
+            "Counters", "Track", "Details", "Metatext");
+        readActions(Service.serviceType.OpenTime,
+            "Time");
+        readActions(Service.serviceType.OpenVolume,
+            "Characteristics", "Volume", "Mute", "Balance",
+            "Fade", "VolumeLimit", "UnityGain");
+    }
+
+
+    public static boolean isReadAction(Service.serviceType service_type, String action)
+    {
+        HashSet<String> set = read_actions.get(service_type);
+        return set != null && set.contains(action);
+    }
+
+
+    private serviceLane getLane(Service.serviceType service_type)
+    {
+        synchronized (lanes)
+        {
+            serviceLane lane = lanes.get(service_type);
+            if (lane == null)
+            {
+                lane = new serviceLane(service_type);
+                lanes.put(service_type,lane);
+            }
+            return lane;
+        }
+    }
+
 
     public Document doAction(Service.serviceType service_type, String action, stringHash args)
+        // synchronous doAction() returns the result Document,
+        // or null if the action failed, or timed out.
+    {
+        networkRequest request = doActionAsync(service_type,action,args);
+        if (request == null)
+            return null;
+
+        Document doc = (Document) request.get();
+        if (doc == null)
+            Utils.warning(0,0,"doAction(" + service_type + "," + action + ") failed: " + request.error_reason);
+        return doc;
+    }
+
+
+    public networkRequest doActionAsync(Service.serviceType service_type, String action, stringHash args)
+        // Start the action and return the request as a handle.
+        // Call get() on it for the result Document (or null).
+        // Coalesced reads return the same handle to more than
+        // one caller, so they should not be cancel()ed.
+        // Returns null if the service does not exist.
     {
         // make sure it's a valid service
 
+        Service service_object;
         synchronized (this)
         {
-            Service service_object = getServices().get(service_type);
-            if (service_object == null)
-            {
-                Utils.error("Could not find service for " + getFriendlyName());
-                return null;
-            }
-            String url = service_object.getControlUrl();
+            service_object = getServices().get(service_type);
+        }
+        if (service_object == null)
+        {
+            Utils.error("Could not find service for " + getFriendlyName());
+            return null;
+        }
+        String url = service_object.getControlUrl();
 
-            // build the SOAP xml reply
-            // Note that we remove "Open" from "OpenProduct", "OpenInfo", etc
+        // build the SOAP xml reply
+        // Note that we remove "Open" from "OpenProduct", "OpenInfo", etc
 
-            String service_string = service_type.toString();
-            service_string = service_string.replaceAll("^Open","");
-            String xml = getSoapBody(device_urn,service_string,action,args);
+        String service_string = service_type.toString();
+        service_string = service_string.replaceAll("^Open","");
+        String xml = getSoapBody(device_urn,service_string,action,args);
 
-            // create the thread and start the request
+        String use_urn = device_urn;
+        if (use_urn.equals("linn-co-uk"))
+            use_urn = "av-openhome-org";
 
-            String use_urn = device_urn;
-            if (use_urn.equals("linn-co-uk"))
-                use_urn = "av-openhome-org";
+        stringHash headers = new stringHash();
+        headers.put("soapaction","\"urn:" + use_urn + ":service:" + service_string + ":1#" + action + "\"");
 
-            stringHash headers = new stringHash();
-            headers.put("soapaction","\"urn:" + use_urn + ":service:" + service_string + ":1#" + action + "\"");
+        num_actions.incrementAndGet();
 
+        // state changing actions go on the service's ordered lane
+
+        serviceLane lane = getLane(service_type);
+        if (!isReadAction(service_type,action))
+        {
+            Utils.log(dbg_da,0,"doAction(" + service_string + "," + action + ") ordered");
             networkRequest request = new networkRequest("text/xml",null,null,url,headers,xml);
-            Thread request_thread = new Thread(request);
-            request_thread.start();
-            request.wait_for_result();
+            synchronized (lane)
+            {
+                lane.reads_in_flight.clear();
+                lane.last_write = request;
+                return request.start(lane.getExecutor());
+            }
+        }
 
-            if (request.the_result == null)
-                Utils.warning(0,0,"doAction(" + service_string + "," + action + ") failed: " + request.error_reason);
+        // reads are coalesced by their url and soap body
 
-            return (Document) request.the_result;
+        String key = url + "\n" + xml;
+        synchronized (lane)
+        {
+            networkRequest request = lane.reads_in_flight.get(key);
+            if (request != null && !request.isDone())
+            {
+                num_coalesced.incrementAndGet();
+                Utils.log(dbg_da+1,0,"doAction(" + service_string + "," + action + ") coalesced");
+                return request;
+            }
+
+            request = new networkRequest("text/xml",lane.readDone,key,url,headers,xml);
+            request.idempotent = true;
+            lane.reads_in_flight.put(key,request);
+            if (lane.writePending())
+            {
+                Utils.log(dbg_da+1,0,"doAction(" + service_string + "," + action + ") ordered behind write");
+                return request.start(lane.getExecutor());
+            }
+            lane.last_write = null;
+            return request.start();
         }
     }
 
@@ -4,6 +4,9 @@ package prh.device;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import prh.artisan.Artisan;
 import prh.artisan.Database;
 import prh.artisan.Folder;
@@ -34,6 +37,21 @@ public class LocalLibrary extends Device implements Library
 
     private Folder root_folder = null;
 
+    // Browse paging
+    // The library does not change while we are running, so the
+    // number of children of a folder is counted once and cached.
+
+    private static int COUNT_CACHE_SIZE = 256;
+
+    private final LinkedHashMap<String,Integer> child_counts =
+        new LinkedHashMap<String,Integer>(COUNT_CACHE_SIZE,0.75f,true)
+        {
+            @Override protected boolean removeEldestEntry(Map.Entry<String,Integer> eldest)
+            {
+                return size() > COUNT_CACHE_SIZE;
+            }
+        };
+
 
     //----------------------------------------
     // Device Interface
@@ -94,6 +112,10 @@ public class LocalLibrary extends Device implements Library
     @Override public void stopLibrary(boolean wait)
     {
         Utils.log(0,0,"LocalLibary stopped");
+        synchronized (child_counts)
+        {
+            child_counts.clear();
+        }
         // db = null;
         // local_library = null;
     }
@@ -113,21 +135,19 @@ public class LocalLibrary extends Device implements Library
     {
         // return the first record found by the query
 
-        Cursor cursor = null;
-        try
-        {
-            cursor = db.rawQuery("SELECT * FROM tracks WHERE ID=\"" + id + "\"",new String[]{});
-        }
-        catch (Exception e)
-        {
-            Utils.error("SQL Error: " + e);
-            cursor = null;
-        }
+        Cursor cursor = Database.query(Database.SQL_TRACK_BY_ID,id);
         if (cursor != null)
         {
-            if (cursor.moveToFirst())
+            try
             {
-                return new Track(cursor);
+                if (cursor.moveToFirst())
+                {
+                    return new Track(cursor);
+                }
+            }
+            finally
+            {
+                cursor.close();
             }
         }
 
@@ -151,17 +171,7 @@ public class LocalLibrary extends Device implements Library
         {
             int num_elements = SHOW_PLAYLISTS ? 1 : 0;
 
-            Cursor cursor = null;
-            try
-            {
-                cursor = db.rawQuery("SELECT id FROM folders WHERE parent_id='0'",null);
-            }
-            catch (Exception e)
-            {
-                Utils.error("SQL Error: " + e);
-                return null;
-            }
-            num_elements += cursor.getCount();
+            num_elements += getChildCount("folders","0");
 
             Folder folder = new Folder();
 
@@ -275,21 +285,19 @@ public class LocalLibrary extends Device implements Library
         //--------------------------------------
         // return the first record found by the query
 
-        String[] args = new String[]{};
-        Cursor cursor = null;
-        try
-        {
-            cursor = db.rawQuery("SELECT * FROM folders WHERE id=\"" + id + "\"", args);
-        }
-        catch (Exception e)
-        {
-            Utils.error("SQL Error: " + e);
-        }
+        Cursor cursor = Database.query(Database.SQL_FOLDER_BY_ID,id);
         if (cursor != null)
         {
-            if (cursor.moveToFirst())
+            try
             {
-                return new Folder(cursor);
+                if (cursor.moveToFirst())
+                {
+                    return new Folder(cursor);
+                }
+            }
+            finally
+            {
+                cursor.close();
             }
         }
 
@@ -346,54 +354,78 @@ public class LocalLibrary extends Device implements Library
         // normal request for database items
         // currently do not support calls for meta_data,
         // or sub-items of tracks ...
+        //
+        // Only the requested window of records is read from
+        // the database, with LIMIT and OFFSET, and the total
+        // comes from a (cached) COUNT.
 
         else
         {
             // ROOT VIRTUAL FOLDER(S)
             // add the select_playlist virtual folder first
+            // it occupies position 0 ahead of the database items
 
+            int num_virtual = 0;
             if (SHOW_PLAYLISTS && id.equals("0"))      // the "mp3s" solitary single non-root node
             {
                 Utils.log(dbg_lib,2,"adding virtual folder: select_playlist");
+                num_virtual = 1;
                 total_found ++;
-                Folder vfolder = getLibraryFolder("select_playlist");
-                location = addItem(retval,start,location,count,vfolder);
+                if (start == 0)
+                {
+                    Folder vfolder = getLibraryFolder("select_playlist");
+                    location = addItem(retval,start,location,count,vfolder);
+                }
             }
 
             // SUBITEMS of current folder
 
             Folder folder = getLibraryFolder(id);
+            if (folder == null)
+            {
+                Utils.error("getSubItems() could not get folder(" + id + ")");
+                return retval;
+            }
+
             boolean is_album = folder.getType().equals("album");
             String table = is_album ? "tracks" : "folders";
-            String sort_clause = is_album ? "" : "dirtype DESC,";
-            String query = "SELECT * FROM " + table + " " +
-                "WHERE parent_id=\"" + id + "\" " +
-                "ORDER BY " + sort_clause + "path";
+            int num_records = getChildCount(table,id);
+            total_found += num_records;
 
-            Utils.log(dbg_lib + 2,1,"query=" + query);
-            Cursor cursor = null;
-            try
+            int offset = Math.max(0,start - num_virtual);
+            int limit = count - retval.size();
+            if (limit > 0 && offset < num_records)
             {
-                cursor = db.rawQuery(query,null);
-            }
-            catch (Exception e)
-            {
-                Utils.error("SQL Error: " + e);
-            }
-            Utils.log(dbg_lib + 2,1,"cursor created");
+                String query = is_album ?
+                    Database.SQL_TRACKS_BY_PARENT :
+                    Database.SQL_FOLDERS_BY_PARENT;
 
-            if (cursor != null)
-                total_found += cursor.getCount();
+                Utils.log(dbg_lib + 2,1,"query=" + query + " parent_id=" + id + " limit=" + limit + " offset=" + offset);
+                Cursor cursor = Database.query(query,id,Integer.toString(limit),Integer.toString(offset));
+                Utils.log(dbg_lib + 2,1,"cursor created");
 
-            if (cursor != null && retval.size() < count)
-            {
-                Utils.log(dbg_lib +1,1,"found " + cursor.getCount() + " " + table + " records");
-                if (cursor.moveToFirst())
+                if (cursor != null)
                 {
-                    if (retval.size() < count)
-                        location = addItemFromCursor(retval,start,location,count,table,cursor);
-                    while (retval.size() < count && cursor.moveToNext())
-                        location = addItemFromCursor(retval,start,location,count,table,cursor);
+                    try
+                    {
+                        Utils.log(dbg_lib +1,1,"got " + cursor.getCount() + " of " + num_records + " " + table + " records");
+                        long map_start = System.currentTimeMillis();
+                        int num_mapped = 0;
+                        Record.rowMapper mapper = Record.rowMapper.get(
+                            is_album ? Track.FIELDS : Folder.FIELDS,cursor);
+                        while (retval.size() < count && cursor.moveToNext())
+                        {
+                            addRecordFromCursor(retval,is_album,cursor,mapper);
+                            num_mapped++;
+                        }
+                        long map_millis = System.currentTimeMillis() - map_start;
+                        Utils.log(dbg_lib+1,1,"mapped " + num_mapped + " " + table + " in " + map_millis + "ms " +
+                            "(" + (num_mapped * 1000L / Math.max(1,map_millis)) + " rows/sec)");
+                    }
+                    finally
+                    {
+                        cursor.close();
+                    }
                 }
             }
         }
@@ -416,19 +448,42 @@ public class LocalLibrary extends Device implements Library
         return location;
     }
 
-    private static int addItemFromCursor(libraryBrowseResult list,int start,int location, int count, String table, Cursor cursor)
+    private static void addRecordFromCursor(libraryBrowseResult list, boolean is_album, Cursor cursor, Record.rowMapper mapper)
+        // the cursor is already positioned at the window
     {
-        if (start <= location && list.size() < count)
+        Record rec;
+        if (!is_album)
+            rec = new Folder(cursor,mapper);
+        else
+            rec = new Track(cursor,mapper);
+        Utils.log(dbg_lib+1,2,rec.get("id") + "  " + rec.get("title"));
+        list.addItem(rec);
+    }
+
+
+    private int getChildCount(String table, String parent_id)
+        // cached COUNT of the tracks or folders in a folder
+    {
+        String key = table + ":" + parent_id;
+        synchronized (child_counts)
         {
-            Record rec;
-            if (table.equals("folders"))
-                rec = new Folder(cursor);
-            else
-                rec = new Track(cursor);
-            return addItem(list,start,location,count,rec);
+            Integer cached = child_counts.get(key);
+            if (cached != null)
+                return cached;
         }
-        location++;
-        return location;
+
+        long count = Database.queryLong(table.equals("tracks") ?
+            Database.SQL_COUNT_TRACKS_BY_PARENT :
+            Database.SQL_COUNT_FOLDERS_BY_PARENT,
+            parent_id);
+        if (count < 0)
+            return 0;
+
+        synchronized (child_counts)
+        {
+            child_counts.put(key,(int) count);
+        }
+        return (int) count;
     }
 
 
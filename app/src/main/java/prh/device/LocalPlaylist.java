@@ -28,6 +28,7 @@ import prh.artisan.Database;
 import prh.base.Playlist;
 import prh.base.PlaylistSource;
 import prh.artisan.Prefs;
+import prh.artisan.Record;
 import prh.artisan.Track;
 import prh.server.HTTPServer;
 import prh.server.http.OpenPlaylist;
@@ -322,28 +323,33 @@ public class LocalPlaylist implements Playlist // EditablePlaylist
                 }
                 else
                 {
-                    Cursor cursor = null;
-                    String query = "SELECT * FROM tracks ORDER BY position";
-                    try
+                    // construct and add the tracks
+                    // the column mapping is resolved on the first row
+
+                    long start = System.currentTimeMillis();
+                    int num_added = Database.forEachRow(track_db,
+                        "SELECT * FROM tracks ORDER BY position",null,
+                        new Database.rowHandler()
                     {
-                        cursor = track_db.rawQuery(query,null);
-                    }
-                    catch (Exception e)
+                        private Record.rowMapper mapper = null;
+
+                        public boolean handleRow(Cursor cursor)
+                        {
+                            if (mapper == null)
+                                mapper = Record.rowMapper.get(Track.FIELDS,cursor);
+                            tracks_by_position.add(new Track(cursor,mapper));
+                            return true;
+                        }
+                    });
+
+                    if (num_added < 0)
                     {
-                        Utils.error("Could not execute query: " + query + ":" + e);
                         clean_init();
                         return false;
                     }
-
-                    // construct and add the tracks
-
-                    if (cursor != null && cursor.moveToFirst())
-                    {
-                        Utils.log(dbg_lp,1,"adding " + cursor.getCount() + " tracks ...");
-                        tracks_by_position.add(new Track(cursor));
-                        while (cursor.moveToNext())
-                            tracks_by_position.add(new Track(cursor));
-                    }
+                    long millis = System.currentTimeMillis() - start;
+                    Utils.log(dbg_lp,1,"added " + num_added + " tracks in " + millis + "ms " +
+                        "(" + (num_added * 1000L / Math.max(1,millis)) + " rows/sec)");
                 }
             }
         }
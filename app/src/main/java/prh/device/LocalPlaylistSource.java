@@ -170,30 +170,24 @@ public class LocalPlaylistSource extends Device implements PlaylistSource
             // get the names from it
 
             Utils.log(dbg_pls,1,"getting playlist.db records ...");
-            String query = "SELECT * FROM playlists ORDER BY num,name";
-            Cursor cursor = null;
-            try
-            {
-                cursor = playlist_db.rawQuery(query,null);
-            }
-            catch (Exception e)
-            {
-                Utils.error("Could not execute query: " + query);
-                return true; // false;
-            }
-
             // construct the playlists
             // the name is 0th field in the cursor
 
-            if (cursor != null && cursor.moveToFirst())
+            int num_added = Database.forEachRow(playlist_db,
+                "SELECT * FROM playlists ORDER BY num,name",null,
+                new Database.rowHandler()
             {
-                Utils.log(dbg_pls,1,"adding " + cursor.getCount() + " playlists ...");
-                addLocalPlayList(cursor);
-                while (cursor.moveToNext())
+                public boolean handleRow(Cursor cursor)
+                {
                     addLocalPlayList(cursor);
-            }
+                    return true;
+                }
+            });
 
             playlist_db.close();
+            if (num_added < 0)
+                return true; // false;
+            Utils.log(dbg_pls,1,"added " + num_added + " playlists");
 
         }
         return true;
@@ -3,6 +3,7 @@ package prh.device;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import fi.iki.elonen.NanoHTTPD;
 import prh.artisan.Artisan;
 import prh.artisan.Prefs;
 import prh.base.ArtisanEventHandler;
@@ -11,12 +12,14 @@ import prh.base.Renderer;
 import prh.artisan.Track;
 import prh.base.Volume;
 import prh.artisan.VolumeControl;
+import prh.server.HTTPServer;
+import prh.utils.httpUtils;
 import prh.utils.loopingRunnable;
 import prh.device.service.RenderingControl;
 import prh.utils.Utils;
+import prh.utils.networkRequest;
 import prh.types.stringHash;
 
-// TODO: Implemenent as UpnpEventSubscriber
 // TODO: Pref to use external MediaRenderer events
 
 // Represents a DLNA AVTransport, with a possible
@@ -34,6 +37,17 @@ import prh.types.stringHash;
 //     Detects song change on remote_renderer from current track/playlist
 //          Gives up control (stops the current playlist) if it's not
 //          the expected track that we expect it to be playing
+//
+// If the remote accepts a SUBSCRIBE to its AVTransport, the state,
+// track, and number of tracks come from its LastChange events, and
+// the network is only hit every POSITION_SYNC_MILLIS to resynch the
+// position, which is otherwise extrapolated while PLAYING. RenderingControl
+// LastChange events likewise keep the Volume up to date. If the device
+// refuses the subscription (or a renewal fails) we fall back to polling.
+//
+// The remote is polled adaptively: at REFRESH_INTERVAL while playing
+// or just after a command, faster near the end of a track, and
+// backing off while paused or stopped. See getPollStats().
 
 public class MediaRenderer extends Device implements
     Renderer,
@@ -44,11 +58,26 @@ public class MediaRenderer extends Device implements
 
     private static int STOP_RETRIES = 20;
     private static int REFRESH_INTERVAL = 400;
+        // the base polling interval, used while PLAYING,
+        // TRANSITIONING, and just after we send a command
+    private static int NEAR_END_INTERVAL = 200;
+    private static int NEAR_END_MILLIS = 5000;
+        // poll faster in the last few seconds of a track
+        // to catch the remote STOPPED and advance quickly
+    private static int PAUSED_INTERVAL = 1500;
+    private static int STOPPED_INTERVAL = 3000;
+        // back off when the remote is paused or idle
+    private static int FAST_POLLS_AFTER_COMMAND = 5;
+        // number of base rate polls after a command
     private static int DETECT_TRANSPORT_SECONDS = 3;
         // if the song_position is > this, or < duration-this
         // and the renderer is STOPPED, then we consider it
         // a user control, and stop the current playlist
     private static boolean GET_REMOTE_MEDIA_INFO = true;
+    private static boolean USE_REMOTE_EVENTS = true;
+    private static int POSITION_SYNC_MILLIS = 5000;
+        // in event mode, how often we call GetPositionInfo
+        // to resynch the position and check the device is alive
 
 
     //------------------------------------------
@@ -61,6 +90,19 @@ public class MediaRenderer extends Device implements
     private RenderingControl volume;
     private loopingRunnable my_looper;
 
+    // event mode
+
+    private HTTPServer http_server;
+    private Subscription av_subscription;
+    private Subscription rc_subscription;
+    private final stringHash event_values = new stringHash();
+        // accumulated AVTransport LastChange values
+    private int event_count;
+    private int synced_position;
+    private long position_sync_time;
+    private String last_synced_state;
+    private String last_synced_uri;
+
     // Status and State
 
     private String renderer_status;
@@ -103,6 +145,38 @@ public class MediaRenderer extends Device implements
     private int last_remote_num_tracks;
         // used to reset use_external_playlist if the number changes
     private String last_immediate_track_uri;
+    private String last_media_info_state;
+        // GetMediaInfo is only called when the track or
+        // transport state changes
+
+    // adaptive polling and metrics
+
+    private int fast_polls;
+    private int num_polls;
+    private long total_poll_millis;
+    private int last_poll_millis;
+    private int max_poll_millis;
+    private long poll_window_start;
+    private int polls_in_window;
+    private int polls_per_minute;
+
+    public int getNumPolls()            { return num_polls; }
+    public int getLastPollMillis()      { return last_poll_millis; }
+    public int getMaxPollMillis()       { return max_poll_millis; }
+    public int getPollsPerMinute()      { return polls_per_minute; }
+    public int getAvgPollMillis()       { return num_polls == 0 ? 0 : (int) (total_poll_millis / num_polls); }
+    public int getPollInterval()        { return my_looper == null ? 0 : my_looper.getRefreshInterval(); }
+
+    public String getPollStats()
+    {
+        return
+            "polls=" + getNumPolls() +
+            " per_minute=" + getPollsPerMinute() +
+            " interval=" + getPollInterval() +
+            " latency=" + getLastPollMillis() +
+            " avg=" + getAvgPollMillis() +
+            " max=" + getMaxPollMillis();
+    }
 
 
     //--------------------------------------------
@@ -132,6 +206,19 @@ public class MediaRenderer extends Device implements
         volume = null;
         my_looper = null;
 
+        http_server = null;
+        av_subscription = null;
+        rc_subscription = null;
+        synchronized (event_values)
+        {
+            event_values.clear();
+            event_count = 0;
+        }
+        synced_position = 0;
+        position_sync_time = 0;
+        last_synced_state = "";
+        last_synced_uri = "";
+
         renderer_status = "";
         renderer_state = RENDERER_STATE_NONE;
         repeat = true;
@@ -151,6 +238,16 @@ public class MediaRenderer extends Device implements
         last_track_uri = "";
         last_remote_num_tracks = 0;
         last_immediate_track_uri = "";
+        last_media_info_state = "";
+
+        fast_polls = 0;
+        num_polls = 0;
+        total_poll_millis = 0;
+        last_poll_millis = 0;
+        max_poll_millis = 0;
+        poll_window_start = System.currentTimeMillis();
+        polls_in_window = 0;
+        polls_per_minute = 0;
     }
 
 
@@ -182,6 +279,11 @@ public class MediaRenderer extends Device implements
                 }
             }
 
+            // try to subscribe to events
+
+            if (USE_REMOTE_EVENTS)
+                startEvents();
+
             // start the update handler on a separate thread
             // not currently working (timer does not advance)
             // though using update_handler causes it to be on the same thread
@@ -239,6 +341,8 @@ public class MediaRenderer extends Device implements
             my_looper = null;
         }
 
+        stopEvents();
+
         //--------------------------------------------------
         // get rid of any references to external objects
         //--------------------------------------------------
@@ -519,10 +623,139 @@ public class MediaRenderer extends Device implements
         if (args == null)
             args = new stringHash();
         args.put("InstanceID","0");
+        fast_polls = FAST_POLLS_AFTER_COMMAND;
+        if (my_looper != null)
+            my_looper.setRefreshInterval(REFRESH_INTERVAL);
         return doAction(Service.serviceType.AVTransport,action,args);
     }
 
 
+    //-----------------------------------------------
+    // Events
+    //-----------------------------------------------
+
+    private void startEvents()
+        // SUBSCRIBE to the AVTransport and RenderingControl.
+        // If the AVTransport subscription is refused we just
+        // keep polling. The RenderingControl is optional.
+    {
+        http_server = artisan.getHTTPServer();
+        if (http_server == null)
+        {
+            Utils.warning(0,0,"MediaRenderer events require the http_server .. polling");
+            return;
+        }
+        http_server.setMediaRenderer(this);
+
+        synchronized (http_server)
+        {
+            av_subscription = new Subscription(getServices().get(Service.serviceType.AVTransport));
+            if (!av_subscription.subscribe())
+            {
+                Utils.warning(0,0,"MediaRenderer(" + getFriendlyName() + ") refused AVTransport subscription .. polling");
+                av_subscription = null;
+                http_server.setMediaRenderer(null);
+                return;
+            }
+
+            if (volume != null)
+            {
+                rc_subscription = new Subscription(volume);
+                if (rc_subscription.subscribe())
+                    volume.setEvented(true);
+                else
+                    rc_subscription = null;
+            }
+        }
+
+        Utils.log(dbg_mr,0,"MediaRenderer(" + getFriendlyName() + ") using events volume=" + (rc_subscription != null));
+    }
+
+
+    private void stopEvents()
+    {
+        if (http_server != null)
+            http_server.setMediaRenderer(null);
+        http_server = null;
+
+        if (rc_subscription != null)
+            rc_subscription.unsubscribe();
+        rc_subscription = null;
+
+        if (av_subscription != null)
+            av_subscription.unsubscribe();
+        av_subscription = null;
+    }
+
+
+    public boolean usingEvents()
+        // true once we have gotten the initial AVTransport
+        // event, until the subscription fails to renew.
+    {
+        Subscription subscription = av_subscription;
+        if (subscription == null || !subscription.isSubscribed())
+            return false;
+        synchronized (event_values)
+        {
+            return event_count > 0;
+        }
+    }
+
+
+    private String getEventValue(String name, String default_value)
+        // must be called synchronized on event_values
+    {
+        String value = event_values.get(name);
+        return value == null ? default_value : value;
+    }
+
+
+    public NanoHTTPD.Response response(
+        NanoHTTPD.IHTTPSession session,
+        NanoHTTPD.Response response,
+        String service,
+        Document doc)
+        // LastChange event from the remote renderer,
+        // via HTTPServer /openCallback/device_uuid/Service
+    {
+        String error = "";
+        if (service.equals("AVTransport"))
+        {
+            stringHash values = httpUtils.parseLastChange(doc);
+            if (values == null)
+                error = "No LastChange in AVTransport event";
+            else synchronized (event_values)
+            {
+                event_values.putAll(values);
+                event_count++;
+                Utils.log(dbg_mr+1,0,"MediaRenderer event(" + event_count + ") " + values);
+            }
+        }
+        else if (service.equals("RenderingControl") && volume != null)
+        {
+            error = volume.response(session,response,service,doc);
+        }
+        else
+        {
+            error = "Unexpected event for service(" + service + ")";
+        }
+
+        HTTPServer server = artisan.getHTTPServer();
+        if (server == null)
+            return response;
+        if (error.isEmpty())
+            return server.newFixedLengthResponse(
+                NanoHTTPD.Response.Status.OK,
+                NanoHTTPD.MIME_PLAINTEXT,"OK");
+
+        Utils.warning(0,0,"MediaRenderer(" + getFriendlyName() + ") " + error);
+        return server.newFixedLengthResponse(
+            NanoHTTPD.Response.Status.INTERNAL_ERROR,
+            NanoHTTPD.MIME_PLAINTEXT,
+            "ERROR - " + error);
+    }
+
+
     //-----------------------------------------------
     // Implementation
     //-----------------------------------------------
@@ -538,6 +771,63 @@ public class MediaRenderer extends Device implements
 
 
     public boolean getUpdateRendererState()
+        // Called by the looper. Times the poll and then
+        // sets the interval until the next one.
+    {
+        long start = System.currentTimeMillis();
+        boolean ok = doUpdateRendererState();
+        long now = System.currentTimeMillis();
+
+        last_poll_millis = (int) (now - start);
+        if (last_poll_millis > max_poll_millis)
+            max_poll_millis = last_poll_millis;
+        total_poll_millis += last_poll_millis;
+        num_polls++;
+        polls_in_window++;
+        if (now - poll_window_start >= 60000)
+        {
+            polls_per_minute = (int) (polls_in_window * 60000L / (now - poll_window_start));
+            polls_in_window = 0;
+            poll_window_start = now;
+            Utils.log(dbg_mr+1,0,"MediaRenderer(" + getFriendlyName() + ") " + getPollStats());
+        }
+
+        if (my_looper != null)
+            my_looper.setRefreshInterval(nextPollInterval());
+        return ok;
+    }
+
+
+    private int nextPollInterval()
+        // back off when the remote is paused or stopped,
+        // poll faster near the end of a playing track
+    {
+        if (do_play_on_next_update > 0)
+            return REFRESH_INTERVAL;
+        if (fast_polls > 0)
+        {
+            fast_polls--;
+            return REFRESH_INTERVAL;
+        }
+        if (usingEvents())
+            return REFRESH_INTERVAL;    // mostly local work
+        if (renderer_state.equals(RENDERER_STATE_PLAYING))
+        {
+            int duration = current_track == null ? 0 : current_track.getDuration();
+            if (duration > 0 && duration - song_position < NEAR_END_MILLIS)
+                return NEAR_END_INTERVAL;
+            return REFRESH_INTERVAL;
+        }
+        if (renderer_state.equals(RENDERER_STATE_PAUSED))
+            return PAUSED_INTERVAL;
+        if (renderer_state.equals(RENDERER_STATE_STOPPED) ||
+            renderer_state.equals(RENDERER_STATE_NONE))
+            return STOPPED_INTERVAL;
+        return REFRESH_INTERVAL;
+    }
+
+
+    private boolean doUpdateRendererState()
         // Get the renderer status, and if its Playing,
         // The position and metadata.
     {
@@ -561,39 +851,106 @@ public class MediaRenderer extends Device implements
 
         stringHash args = new stringHash();
         args.put("InstanceID","0");
-        Document transport_doc = doAction(Service.serviceType.AVTransport,"GetTransportInfo",args);
-        if (transport_doc == null)
-        {
-            Utils.warning(0,0,"Could not get AVTransport::GetTransportState for " + getFriendlyName());
-            deviceFailure();
-            return false;
-        }
 
-        Element transport_ele = transport_doc.getDocumentElement();
-        renderer_status = Utils.getTagValue(transport_ele,"CurrentTransportStatus");
-        if (!renderer_status.equals("OK"))
+        String new_state;
+        String new_track_uri;
+        String new_track_didl;
+        String new_track_num;
+        int new_num_tracks = 0;
+        boolean evented = usingEvents();
+
+        if (evented)
         {
-            Utils.warning(0,0,"Got non-ok status=" + renderer_status);
-            // return false;
+            // state and track come from the events,
+            // the position is resynched periodically
+
+            synchronized (event_values)
+            {
+                renderer_status = getEventValue("TransportStatus","OK");
+                new_state = getEventValue("TransportState","");
+                new_track_uri = getEventValue("CurrentTrackURI","");
+                new_track_didl = getEventValue("CurrentTrackMetaData","");
+                new_track_num = getEventValue("CurrentTrack","0");
+                new_num_tracks = Utils.parseInt(getEventValue("NumberOfTracks","0"));
+            }
+            if (new_track_didl.equals("NOT_IMPLEMENTED"))
+                new_track_didl = "";
+
+            long now = System.currentTimeMillis();
+            if (!new_state.equals(last_synced_state) ||
+                !new_track_uri.equals(last_synced_uri) ||
+                now - position_sync_time >= POSITION_SYNC_MILLIS)
+            {
+                Document position_doc = doAction(Service.serviceType.AVTransport,"GetPositionInfo",args);
+                if (position_doc == null)
+                {
+                    Utils.warning(0,0,"Could not get AVTransport::GetPositionInfo for " + getFriendlyName());
+                    deviceFailure();
+                    return false;
+                }
+                deviceSuccess();
+                Element position_ele = position_doc.getDocumentElement();
+                synced_position = Utils.stringToDuration(Utils.getTagValue(position_ele,"RelTime"));
+                position_sync_time = now;
+                last_synced_state = new_state;
+                last_synced_uri = new_track_uri;
+            }
+
+            song_position = synced_position;
+            if (new_state.equals(RENDERER_STATE_PLAYING))
+            {
+                song_position += (int) (now - position_sync_time);
+                int duration = current_track == null ? 0 : current_track.getDuration();
+                if (duration > 0 && song_position > duration)
+                    song_position = duration;
+            }
         }
-        String new_state = Utils.getTagValue(transport_ele,"CurrentTransportState");
 
-        // get the position and track_uri
+        // otherwise, the transport and position
+        // reads are issued together
 
-        Document position_doc = doAction(Service.serviceType.AVTransport,"GetPositionInfo",args);
-        if (position_doc == null)
+        else
         {
-            Utils.warning(0,0,"Could not get AVTransport::GetPositionInfo for " + getFriendlyName());
-            deviceFailure();
-            return false;
-        }
+            networkRequest transport_request = doActionAsync(Service.serviceType.AVTransport,"GetTransportInfo",args);
+            networkRequest position_request = doActionAsync(Service.serviceType.AVTransport,"GetPositionInfo",args);
+            Document transport_doc = transport_request == null ? null : (Document) transport_request.get();
+            Document position_doc = position_request == null ? null : (Document) position_request.get();
+
+            if (transport_doc == null)
+            {
+                Utils.warning(0,0,"Could not get AVTransport::GetTransportState for " + getFriendlyName());
+                deviceFailure();
+                return false;
+            }
+
+            Element transport_ele = transport_doc.getDocumentElement();
+            renderer_status = Utils.getTagValue(transport_ele,"CurrentTransportStatus");
+            if (!renderer_status.equals("OK"))
+            {
+                Utils.warning(0,0,"Got non-ok status=" + renderer_status);
+                // return false;
+            }
+            new_state = Utils.getTagValue(transport_ele,"CurrentTransportState");
+
+            // get the position and track_uri
 
-        deviceSuccess();
+            if (position_doc == null)
+            {
+                Utils.warning(0,0,"Could not get AVTransport::GetPositionInfo for " + getFriendlyName());
+                deviceFailure();
+                return false;
+            }
 
-        Element position_ele = position_doc.getDocumentElement();
-        String new_track_uri = Utils.getTagValue(position_ele,"TrackURI");
-        String pos_str = Utils.getTagValue(position_ele,"RelTime");
-        song_position = Utils.stringToDuration(pos_str);
+            deviceSuccess();
+
+            Element position_ele = position_doc.getDocumentElement();
+            new_track_uri = Utils.getTagValue(position_ele,"TrackURI");
+            new_track_didl = Utils.getTagValue(position_ele,"TrackMetaData");
+            new_track_num = Utils.getTagValue(position_ele,"Track");
+            String pos_str = Utils.getTagValue(position_ele,"RelTime");
+            song_position = Utils.stringToDuration(pos_str);
+
+        }   // polling
 
         //---------------------------------------------
         // Detect position changes
@@ -621,7 +978,7 @@ public class MediaRenderer extends Device implements
             current_track = null;
             if (!new_track_uri.isEmpty())
             {
-                String didl = Utils.getTagValue(position_ele,"TrackMetaData");
+                String didl = new_track_didl;
                 didl = didl.replace("127.0.0.1",Utils.ipFromUrl(getDeviceUrl()));
                 current_track = new Track(new_track_uri,didl);
 
@@ -645,14 +1002,28 @@ public class MediaRenderer extends Device implements
 
         if (how_playing_track != how_playing.IMMEDIATE)
         {
-            remote_num_tracks = 0;
-            remote_track_num = Utils.parseInt(Utils.getTagValue(position_ele,"Track"));
-
-            if (GET_REMOTE_MEDIA_INFO)
+            remote_track_num = Utils.parseInt(new_track_num);
+            if (evented)
+                remote_num_tracks = new_num_tracks;
+
+            // NrTracks only changes with the track or state,
+            // so we skip GetMediaInfo the rest of the time.
+            // In event mode it comes from NumberOfTracks.
+
+            String media_info_state = new_track_uri + "\t" + new_state;
+            if (GET_REMOTE_MEDIA_INFO &&
+                !evented &&
+                !media_info_state.equals(last_media_info_state))
             {
+                last_media_info_state = media_info_state;
+                remote_num_tracks = 0;
+
                 Document media_doc = doAction(Service.serviceType.AVTransport,"GetMediaInfo",args);
                 if (media_doc == null)
-                    Utils.warning(0,0,"Could not get AVTransport::GetPositionInfo for " + getFriendlyName());
+                {
+                    last_media_info_state = "";     // try again next time
+                    Utils.warning(0,0,"Could not get AVTransport::GetMediaInfo for " + getFriendlyName());
+                }
                 else
                 {
                     Element media_ele = media_doc.getDocumentElement();
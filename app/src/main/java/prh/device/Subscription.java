@@ -218,6 +218,10 @@ public class Subscription
                 else
                 {
                     // a result is valid if it has a sid and timeout: second-
+                    // a failed renewal clears is_subscribed so that clients
+                    // (i.e. MediaRenderer) can fall back to polling
+
+                    is_subscribed = false;
 
                     if (ok)
                     {
@@ -253,6 +257,7 @@ public class Subscription
             catch (Exception e)
             {
                 Utils.error("Could not send " + method + " request to " + ip + ":" + port + "/" + event_path);
+                is_subscribed = false;
             }
             done = true;
 
@@ -18,11 +18,13 @@ import org.w3c.dom.Element;
 
 import java.util.HashMap;
 
+import fi.iki.elonen.NanoHTTPD;
 import prh.artisan.Artisan;
 import prh.artisan.Track;
 import prh.base.ArtisanEventHandler;
 import prh.base.Renderer;
 import prh.base.UpnpEventHandler;
+import prh.base.UpnpEventReceiver;
 import prh.base.Volume;
 import prh.artisan.VolumeControl;
 import prh.device.Device;
@@ -35,7 +37,9 @@ import prh.utils.Utils;
 import prh.types.stringHash;
 import prh.utils.httpUtils;
 
-public class RenderingControl extends Service implements Volume
+public class RenderingControl extends Service implements
+    Volume,
+    UpnpEventReceiver
 {
     static int dbg_rc = 0;
 
@@ -68,6 +72,17 @@ public class RenderingControl extends Service implements Volume
     private int[] max_values = null;
     private int[] current_values = null;
 
+    // If the MediaRenderer has subscribed to our LastChange
+    // events, current_values are kept up to date by them,
+    // and getUpdateValues() does not hit the network.
+
+    private boolean evented = false;
+    private int event_count = 0;
+
+    public void setEvented(boolean b)   { evented = b; }
+    public boolean isEvented()          { return evented && event_count > 0; }
+    @Override public int getEventCount() { return event_count; }
+
     @Override public int[] getMaxValues()
     {
         return max_values;
@@ -198,6 +213,9 @@ public class RenderingControl extends Service implements Volume
         // must be able to get at least a Volume
         // value to start the control.
     {
+        if (isEvented() && current_values != null)
+            return current_values.clone();
+
         int old_values[] = current_values;
         current_values = new int[]{0,0,0,0,0,0,0,0};
 
@@ -268,4 +286,43 @@ public class RenderingControl extends Service implements Volume
     }   // doCommand()
 
 
+    //----------------------------------------------------------------
+    // UpnpEventReceiver
+    //----------------------------------------------------------------
+    // LastChange events from the remote RenderingControl,
+    // dispatched to us by the MediaRenderer
+
+    @Override public String response(
+        NanoHTTPD.IHTTPSession session,
+        NanoHTTPD.Response response,
+        String service,
+        Document doc)
+    {
+        stringHash values = httpUtils.parseLastChange(doc);
+        if (values == null)
+            return "No LastChange in RenderingControl event";
+
+        synchronized (this)
+        {
+            event_count++;
+            if (current_values == null)
+                return "";
+
+            int old_values[] = current_values.clone();
+            for (int i=0; i<NUM_CTRLS; i++)
+            {
+                String value = values.get(var_names.get(i));
+                if (max_values[i] > 0 && value != null)
+                    current_values[i] = value.equals("true") ? 1 :
+                        value.equals("false") ? 0 : Utils.parseInt(value);
+            }
+            Utils.log(dbg_rc,0,"RenderingControl event(" + event_count + ") " + values);
+
+            if (VolumeControl.changed(old_values,current_values))
+                artisan.handleArtisanEvent(ArtisanEventHandler.EVENT_VOLUME_CHANGED,this);
+        }
+        return "";
+    }
+
+
 }   // class RenderingControl
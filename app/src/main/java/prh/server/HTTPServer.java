@@ -14,11 +14,14 @@ import org.w3c.dom.Document;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import fi.iki.elonen.NanoHTTPD;
 import prh.artisan.Artisan;
 import prh.artisan.Prefs;
+import prh.device.MediaRenderer;
 import prh.device.OpenHomeRenderer;
 import prh.server.http.AVTransport;
 import prh.server.http.ContentDirectory;
@@ -32,7 +35,11 @@ import prh.base.HttpRequestHandler;
 import prh.base.UpnpEventHandler;
 import prh.server.utils.UpnpEventManager;
 import prh.server.utils.UpnpEventSubscriber;
+import prh.server.utils.fileChannelResponse;
+import prh.server.utils.httpWorkerPool;
+import prh.utils.httpConnectionPool;
 import prh.utils.httpUtils;
+import prh.utils.soapRequest;
 import prh.utils.Utils;
 
 
@@ -60,14 +67,32 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
     private static int dbg_looping_control_requests = 0;
         // show GetTransportInfo, GetPosition, and Time actions
 
+    private static HashSet<String> looping_actions = new HashSet<String>(Arrays.asList(
+        "GetTransportInfo",
+        "GetPositionInfo",
+        "Time"));
+        // the actions that control points poll
+
+    private static HashMap<String,String> mime_types = new HashMap<String,String>();
+    static
+    {
+        mime_types.put("jpg","image/jpeg");
+        mime_types.put("png","image/png");
+        mime_types.put("xml","text/xml");
+        mime_types.put("html","text/html");
+    }
+
     private Artisan artisan;
         // the instance keeps a Context
         // for getting resources
 
     private UpnpEventManager event_manager = null;
     public UpnpEventManager getEventManager() { return event_manager; }
+    private httpWorkerPool worker_pool = null;
+    public httpWorkerPool getWorkerPool() { return worker_pool; }
     private HashMap<String,HttpRequestHandler> handlers = null;
     private OpenHomeRenderer open_home_renderer = null;
+    private MediaRenderer media_renderer = null;
 
 
     public HttpRequestHandler getHandler(String service_name)
@@ -80,6 +105,13 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
         open_home_renderer = open_renderer;
     }
 
+    public void setMediaRenderer(MediaRenderer renderer)
+        // A MediaRenderer that has subscribed to
+        // AVTransport and/or RenderingControl events
+    {
+        media_renderer = renderer;
+    }
+
 
     //-----------------------------------------------
     // start_http_server and the thread
@@ -161,6 +193,12 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
     {
         super(Utils.server_port);
         artisan = ma;
+
+        // replace the thread-per-connection DefaultAsyncRunner
+        // with a bounded pool of worker threads
+
+        worker_pool = new httpWorkerPool();
+        setAsyncRunner(worker_pool);
         Utils.log(dbg_http,1,"created HTTPServer");
     }
 
@@ -258,6 +296,8 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
     {
         Utils.log(dbg_http,1,"HTTPServer.stop() called  ...");
         super.stop();
+        worker_pool.shutdown();
+        httpConnectionPool.closeAll();
 
         // stop the handlers
         if (handlers != null)
@@ -271,6 +311,8 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
             handlers = null;
         }
 
+        if (event_manager != null)
+            event_manager.shutdown();
         event_manager = null;
         Utils.log(dbg_http,1,"HTTPServer.stop() finished");
     }
@@ -317,18 +359,33 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
                 }
 
                 //------------------------------------------
-                // device.OpenHomeRenderer Event Callbacks
+                // device.OpenHomeRenderer and
+                // device.MediaRenderer Event Callbacks
                 //------------------------------------------
                 // /openCallback/device_uuid/Service
 
                 else if (uri.startsWith("/openCallback/"))
                 {
-                    if (open_home_renderer == null)
+                    String callback_uuid = firstSegment(uri.replace("/openCallback/",""));
+                    MediaRenderer media_callback = media_renderer;
+                    if (media_callback != null &&
+                        media_callback.getDeviceUUID().equals(callback_uuid))
+                    {
+                        String service = uri.replace("/openCallback/" + callback_uuid + "/","");
+                        Document doc = httpUtils.get_xml_from_post(session);
+                        if (doc == null)
+                        {
+                            Utils.error("Null document in mediaCallback(" + service + ")" + dbg_from);
+                            return response;
+                        }
+                        response = media_callback.response(session,response,service,doc);
+                    }
+                    else if (open_home_renderer == null)
                         Utils.warning(3,0,"No open_home_renderer " + dbg_from);
                     else
                     {
                         uri = uri.replace("/openCallback/","");
-                        String uuid = uri.replaceAll("\\/.*$","");
+                        String uuid = firstSegment(uri);
                         String service = uri.replace(uuid + "/","");
 
                         boolean is_loop_action = service.equals("OpenTime");
@@ -404,11 +461,10 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
                 // Service responses
                 //------------------------------------------------------
 
-                else if (uri.matches("^\\/.+\\/.+"))
+                else if (isServiceUri(uri))
                 {
-                    uri = uri.replaceFirst("\\/","");
-                    String parts[] = uri.split("\\/");
-                    String service = parts[0];              // SERVICE
+                    uri = uri.substring(1);
+                    String service = firstSegment(uri);     // SERVICE
 
                     Utils.log(dbg_requests,1,dbg_from + " mathes / " + service + "/" + uri);
 
@@ -432,7 +488,7 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
                         else
                         {
                             String action = "";
-                            Document doc = null;
+                            soapRequest args = null;
 
                             // parse some extra stuff for /control requests
                             // common to all services
@@ -449,25 +505,18 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
                                     Utils.error("Null action in " + service + "/control request");
                                     return response;
                                 }
-                                action = action.replaceAll("^.*#","");
-                                action = action.replaceAll("\"","");
-
-                                boolean is_loop_action = false
-                                    || action.equals("GetTransportInfo")
-                                    || action.equals("GetPositionInfo")
-                                    || action.equals("Time")
-                                    // || (service.equals("RenderingControl") && action.startsWith("Get"))
-                                    ;
+                                action = soapActionName(action);
+                                boolean is_loop_action = looping_actions.contains(action);
 
                                 int use_dbg = is_loop_action ?
                                     dbg_looping_control_requests :
                                     dbg_control_requests;
                                 Utils.log(use_dbg,1,dbg_from + " control request " + service + "(" + action + ")");
 
-                                // get the xml document
+                                // get the action's arguments
 
-                                doc = httpUtils.get_xml_from_post(session);
-                                if (doc == null)
+                                args = soapRequest.fromPost(session);
+                                if (args == null)
                                 {
                                     Utils.error("Null document in " + service + "(" + action + ") request");
                                     return response;
@@ -509,7 +558,7 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
                                 Utils.error("No handler found for service(" + service + ")");
                             else synchronized (handler)
                             {
-                                response = handler.response(session,response,uri,service,action,doc,
+                                response = handler.response(session,response,uri,service,action,args,
                                     open_playlist_subscriber);
                             }
 
@@ -526,10 +575,44 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
                 Utils.error("Exception in HTTPServer.serve():" + e.toString());
             }
 
+            // A media stream takes a slot in the stream lane of the
+            // worker pool while its file is sent, or gets a 503 if the
+            // lane is full. HEADs, 404s, 416s, and anything else
+            // without a file body do not take a slot.
+
+            if (response instanceof fileChannelResponse &&
+                session.getMethod() != Method.HEAD)
+            {
+                fileChannelResponse stream = (fileChannelResponse) response;
+                if (worker_pool.startStream())
+                    stream.setStreamPool(worker_pool);
+                else
+                {
+                    stream.abandon();
+                    response = newFixedLengthResponse(
+                        Response.Status.SERVICE_UNAVAILABLE,
+                        NanoHTTPD.MIME_PLAINTEXT,
+                        "ERROR 503 - Too many streams: " + uri);
+                    response.addHeader("Retry-After","1");
+                }
+            }
+
             if (response.getStatus() != Response.Status.OK &&
-                (!session.getUri().contains("openCallback") || open_home_renderer != null))
+                (!session.getUri().contains("openCallback") || open_home_renderer != null || media_renderer != null))
                 Utils.warning(0,0,"returning " + response.getStatus().toString() + " for " + dbg_from + " " + session.getUri());
 
+            // Connections are kept alive between requests, but if
+            // a request with a body was not answered with a 200, the
+            // body may not have been read, so we close the connection
+            // rather than try to parse the rest of it as the next request.
+
+            String content_length = session.getHeaders().get("content-length");
+            if (response.getStatus() != Response.Status.OK &&
+                content_length != null &&
+                Utils.parseInt(content_length) > 0)
+                response.addHeader("Connection","close");
+
+            worker_pool.requestServed();
             return response;
 
         }   // synchronized
@@ -542,6 +625,36 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
     // Utility Response Methods
     //----------------------------------------------
 
+    // Request parsing.
+    // These replace the regular expressions that were run on
+    // every request, and give the same results for valid uris.
+
+    private static boolean isServiceUri(String uri)
+        // was uri.matches("^\\/.+\\/.+"), i.e. /service/something
+    {
+        int slash = uri.indexOf('/',2);
+        return uri.startsWith("/") && slash > 0 && slash < uri.length() - 1;
+    }
+
+
+    private static String firstSegment(String uri)
+        // the uri up to the first slash, if any
+    {
+        int slash = uri.indexOf('/');
+        return slash < 0 ? uri : uri.substring(0,slash);
+    }
+
+
+    private static String soapActionName(String soap_action)
+        // "urn:schemas-upnp-org:service:AVTransport:1#Play" -> Play
+    {
+        String action = soap_action.substring(soap_action.lastIndexOf('#') + 1);
+        if (action.indexOf('"') >= 0)
+            action = action.replace("\"","");
+        return action;
+    }
+
+
     public static String getAnyUserAgent(IHTTPSession session)
         // helper method for dlna /event handlers to get
         // a user agent. if one not provided uses the ip
@@ -560,15 +673,10 @@ public class HTTPServer extends fi.iki.elonen.NanoHTTPD
     {
         Resources res = artisan.getResources();
 
-        String mime_type =
-            uri.matches(".*\\.jpg$") ? "image/jpeg" :
-            uri.matches(".*\\.png$") ? "image/png" :
-            uri.matches(".*\\.xml$") ? "text/xml" :
-            uri.matches(".*\\.html$") ? "text/html" :
-            "";
-
-        if (mime_type.equals(""))
+        String mime_type = mime_types.get(uri.substring(uri.lastIndexOf('.') + 1));
+        if (mime_type == null)
         {
+            mime_type = "";
             Utils.error("unknown mime type in asset_file_response: " + uri);
         }
 
@@ -10,8 +10,6 @@ package prh.server.http;
 // TODO: May be able to detect resuming a running playlist from a remote
 // if the uri matches the current playlist and NOT stop() the current playlist
 
-import org.w3c.dom.Document;
-
 import java.util.HashMap;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -27,6 +25,7 @@ import prh.base.HttpRequestHandler;
 import prh.server.utils.updateCounter;
 import prh.types.stringHash;
 import prh.utils.httpUtils;
+import prh.utils.soapRequest;
 import prh.utils.Utils;
 
 
@@ -76,10 +75,10 @@ public class AVTransport implements
             String unused_uri,
             String service,
             String action,
-            Document doc,
+            soapRequest args,
             UpnpEventSubscriber unused_subscriber)
     {
-        // Only handles actions, expects doc != null, and never looks at uri
+        // Only handles actions, expects args != null, and never looks at uri
         // All actions get, and ignore, an InstanceID parameter ...
 
         // Really should make the local_renderer the current_renderer
@@ -113,8 +112,8 @@ public class AVTransport implements
         }
         else if (action.equals("SetAVTransportURI"))
         {
-            String cur_uri = httpUtils.getXMLString(doc,"CurrentURI",true);
-            String metadata = httpUtils.getXMLString(doc,"CurrentURIMetaData",false);
+            String cur_uri = httpUtils.getXMLString(args,"CurrentURI",true);
+            String metadata = httpUtils.getXMLString(args,"CurrentURIMetaData",false);
             Utils.log(dbg_av,0,"cur_uri="+cur_uri);
             Utils.log(dbg_av,0,"metadata=" + metadata);
             Track new_track = new Track(cur_uri,metadata);
@@ -123,7 +122,7 @@ public class AVTransport implements
         }
         else if (action.equals("Play"))
         {
-            int speed = httpUtils.getXMLInt(doc,"Speed",false);
+            int speed = httpUtils.getXMLInt(args,"Speed",false);
             Utils.log(dbg_av,0,"speed="+speed);
             if (speed == 0) speed = 1;
             local_renderer.transport_play();
@@ -152,8 +151,8 @@ public class AVTransport implements
         else if (action.equals("Seek"))
         {
             // we only support UNIT=RELTIME
-            String unit = httpUtils.getXMLString(doc,"Unit",true);
-            String target = httpUtils.getXMLString(doc,"Target",true);
+            String unit = httpUtils.getXMLString(args,"Unit",true);
+            String target = httpUtils.getXMLString(args,"Target",true);
             Utils.log(dbg_av,0,"unit="+unit+" target="+target);
             int position = Utils.stringToDuration(target);
             local_renderer.seekTo(position);
@@ -161,7 +160,7 @@ public class AVTransport implements
         }
         else if (action.equals("SetPlayMode"))
         {
-            String mode = httpUtils.getXMLString(doc,"NewPlayMode",true);
+            String mode = httpUtils.getXMLString(args,"NewPlayMode",true);
             Utils.log(dbg_av,0,"mode="+mode);
             response = httpUtils.ok_response(http_server,urn,service,action);
         }
@@ -270,6 +269,8 @@ public class AVTransport implements
     @Override public String getName()      { return "AVTransport"; };
     @Override public int getUpdateCount()  { return update_counter.get_update_count(); }
     @Override public int incUpdateCount()  { return update_counter.inc_update_count(); }
+    @Override public boolean sendsFullState() { return false; }
+    @Override public boolean sharesEventContent() { return false; }
     @Override public void notifySubscribed(UpnpEventSubscriber subscriber,boolean subscribe) {}
     @Override public void start()          { http_server.getEventManager().RegisterHandler(this) ;}
     @Override public void stop()           { http_server.getEventManager().UnRegisterHandler(this) ;}
@@ -2,13 +2,9 @@
 
 package prh.server.http;
 
-import org.w3c.dom.Document;
-
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -22,9 +18,14 @@ import prh.base.UpnpEventHandler;
 import prh.device.LocalLibrary;
 import prh.server.HTTPServer;
 import prh.server.utils.UpnpEventSubscriber;
+import prh.server.utils.byteRanges;
+import prh.server.utils.fileChannelResponse;
 import prh.server.utils.updateCounter;
+import prh.types.libraryBrowseResult;
 import prh.types.stringIntHash;
 import prh.utils.httpUtils;
+import prh.utils.soapRequest;
+import prh.utils.soapResponse;
 import prh.utils.Utils;
 
 
@@ -69,7 +70,7 @@ public class ContentDirectory implements
         String uri,
         String service,
         String action,
-        Document doc,
+        soapRequest args,
         UpnpEventSubscriber unused_subscriber)
     {
         // this is currently the only server that both handles
@@ -89,27 +90,26 @@ public class ContentDirectory implements
         //------------------------------------
         // Album Art /ContentDirectory/folder_id/folder.jpg
 
-        if (uri.matches("(.*)/folder.jpg"))
+        String folder_id = folderJpgId(uri);
+        String track_id = folder_id == null ? mediaId(uri) : null;
+        if (folder_id != null)
         {
             Utils.log(dbg_dlna,0,"dlnaServer request for " + uri);
-            uri = uri.replaceAll("/folder.jpg$", "");
-            response = folder_jpg_response(http_server,response,uri);
+            response = folder_jpg_response(http_server,response,folder_id);
         }
 
         // Stream request /ContentDirectory/media/track_id.ext
 
-        else if (uri.matches("media/.*"))
+        else if (track_id != null)
         {
-            uri = uri.replaceAll("^media/","");
-            uri = uri.replaceAll("\\..*?$", "");
-            response = stream_response(http_server, session, response, uri);
+            response = stream_response(http_server, session, response, track_id);
         }
 
         //------------------------------------
         // Action requests
         //------------------------------------
         // Currently only supports Browse
-        // HTTPServer has already parsed the action and doc
+        // HTTPServer has already parsed the action and args
         // We do not support actions:
         //    Search
         //    GetUpdateId,
@@ -129,7 +129,7 @@ public class ContentDirectory implements
         else if (uri.equals("control"))
         {
             if (action.equals("Browse"))
-               response = browse_response(http_server,response,doc,urn);
+               response = browse_response(http_server,response,args,urn);
             else
                 Utils.error("Unsupported action: " + action + " in ContentServer1");
         }
@@ -138,117 +138,237 @@ public class ContentDirectory implements
     }
 
 
+    //------------------------------------------
+    // uri parsing
+    //------------------------------------------
+    // These are on every media and album art request,
+    // so they use plain string operations, not regexes.
+
+    private static String FOLDER_JPG = "/folder.jpg";
+    private static String MEDIA_PREFIX = "media/";
+
+    static String folderJpgId(String uri)
+        // folder_id/folder.jpg returns the folder_id, else null
+    {
+        if (!uri.endsWith(FOLDER_JPG))
+            return null;
+        return uri.substring(0,uri.length() - FOLDER_JPG.length());
+    }
+
+    static String mediaId(String uri)
+        // media/track_id.ext returns the track_id, else null
+    {
+        if (!uri.startsWith(MEDIA_PREFIX))
+            return null;
+        int dot = uri.indexOf('.',MEDIA_PREFIX.length());
+        return dot < 0 ?
+            uri.substring(MEDIA_PREFIX.length()) :
+            uri.substring(MEDIA_PREFIX.length(),dot);
+    }
+
+
     //------------------------------------------
     // responses
     //------------------------------------------
 
-    private NanoHTTPD.Response stream_response(
-        HTTPServer server,
-        NanoHTTPD.IHTTPSession session,
-        NanoHTTPD.Response response,
-        String id)
+    //------------------------------------------
+    // stream file cache
+    //------------------------------------------
+    // Renderers make many range requests against the same
+    // track while playing it, so we resolve the track's file,
+    // size, mime type, and dlna headers once, and keep them in
+    // a small LRU cache shared by all the http worker threads.
+    // Each hit checks the file's length and modification time,
+    // so a replaced file gets a new entry (and new validators)
+    // rather than being served with the old length.
+
+    private static int STREAM_CACHE_SIZE = 32;
+
+    private static class streamFile
     {
-        Utils.log(dbg_stream+1,0,"stream_response(" + id + ")");
-        LocalLibrary local_library = artisan.getLocalLibrary();
-        if (local_library == null)
+        File file;
+        long size;
+        long modified;
+        String mime_type;
+        String dlna_features;
+        String etag;
+        String last_modified;
+            // validators for If-Range
+    }
+
+    private final LinkedHashMap<String,streamFile> stream_files =
+        new LinkedHashMap<String,streamFile>(STREAM_CACHE_SIZE,0.75f,true)
         {
-            Utils.error("No LocalLibrary found in DLNAServer.stream_response()");
-            return response;
+            @Override protected boolean removeEldestEntry(Map.Entry<String,streamFile> eldest)
+            {
+                return size() > STREAM_CACHE_SIZE;
+            }
+        };
+
+
+    private streamFile getStreamFile(String id)
+        // returns null, and reports the error, if the
+        // track does not exist or its file cannot be read
+    {
+        synchronized (stream_files)
+        {
+            streamFile stream_file = stream_files.get(id);
+            if (stream_file != null)
+            {
+                if (stream_file.file.lastModified() == stream_file.modified &&
+                    stream_file.file.length() == stream_file.size)
+                    return stream_file;
+                Utils.log(dbg_stream,0,"stream file changed: " + stream_file.file.getPath());
+                stream_files.remove(id);
+            }
         }
 
-        Map<String,String> headers = session.getHeaders();
-        for (String key: headers.keySet())
+        LocalLibrary local_library = artisan.getLocalLibrary();
+        if (local_library == null)
         {
-            Utils.log(dbg_stream+1,1,"header("+key+")="+headers.get(key));
+            Utils.error("No LocalLibrary found in DLNAServer.stream_response()");
+            return null;
         }
 
         Track track = local_library.getLibraryTrack(id);
         if (track == null)
         {
             Utils.error("could not get track in stream_response(" + id + ")");
-            return response;
+            return null;
         }
 
         String local_uri = track.getLocalUri();
         if (!local_uri.startsWith("file://"))
         {
             Utils.error("unexpected local_uri: " + local_uri );
+            return null;
+        }
+
+        File ifile = new File(local_uri.replace("file://",""));
+        if (!ifile.canRead())
+        {
+            Utils.error("could not read raw file=" + ifile.getPath());
+            return null;
+        }
+
+        streamFile stream_file = new streamFile();
+        stream_file.file = ifile;
+        stream_file.size = ifile.length();
+        stream_file.modified = ifile.lastModified();
+        stream_file.mime_type = track.getMimeType();
+        stream_file.dlna_features = httpUtils.get_dlna_stuff(track.getType());
+        stream_file.etag = "\"" + Long.toHexString(stream_file.modified) + "-" + Long.toHexString(stream_file.size) + "\"";
+        stream_file.last_modified = httpUtils.http_date(stream_file.modified);
+        if (stream_file.size != track.getSize())
+            Utils.warning(0,0,"file size " + stream_file.size + " != database size " + track.getSize() + " for " + ifile.getPath());
+
+        synchronized (stream_files)
+        {
+            stream_files.put(id,stream_file);
+        }
+        return stream_file;
+    }
+
+
+    private NanoHTTPD.Response stream_response(
+        HTTPServer server,
+        NanoHTTPD.IHTTPSession session,
+        NanoHTTPD.Response response,
+        String id)
+    {
+        Utils.log(dbg_stream+1,0,"stream_response(" + id + ")");
+
+        Map<String,String> headers = session.getHeaders();
+        for (String key: headers.keySet())
+        {
+            Utils.log(dbg_stream+1,1,"header("+key+")="+headers.get(key));
+        }
+
+        streamFile stream_file = getStreamFile(id);
+        if (stream_file == null)
             return response;
+
+        long size = stream_file.size;
+        String mime_type = stream_file.mime_type;
+        Utils.log(dbg_stream,1,session.getMethod() + " stream file(" + size + "," + mime_type + ")=" + stream_file.file.getPath());
+
+        // Parse the range(s). The Range is ignored if there is
+        // an If-Range that does not match the current file.
+
+        String range = headers.get("range");
+        String if_range = headers.get("if-range");
+        Utils.log(dbg_stream+1,2,"range=" + range + " if-range=" + if_range);
+        if (!byteRanges.ifRangeMatches(if_range,stream_file.etag,stream_file.last_modified))
+        {
+            Utils.log(dbg_stream,2,"If-Range(" + if_range + ") does not match - sending full file");
+            range = null;
         }
 
-        String path = local_uri.replace("file://","");
-        int size = track.getSize();
-        String mime_type = track.getMimeType();
-        Utils.log(dbg_stream,1,session.getMethod() + " stream file(" + size + "," + mime_type + ")=" + path);
+        byteRanges ranges = new byteRanges(range,size);
+        byteRanges.how how = ranges.getHow();
 
-        if (session.getMethod().equals("HEAD"))
+        // HEAD requests get the same response with no body.
+        // The file is read straight from a FileChannel at the
+        // start of each range.
+
+        NanoHTTPD.Response stream = null;
+        if (how == byteRanges.how.UNSATISFIABLE)
+        {
+            Utils.log(dbg_stream,2,"UNSATISFIABLE range=" + range + " size=" + size);
+            stream = server.newFixedLengthResponse(
+                NanoHTTPD.Response.Status.RANGE_NOT_SATISFIABLE,
+                NanoHTTPD.MIME_PLAINTEXT,"");
+            stream.addHeader("Content-Range",byteRanges.unsatisfiedContentRange(size));
+        }
+        else if (how == byteRanges.how.FULL)
+        {
+            stream = fileChannelResponse.create(
+                NanoHTTPD.Response.Status.OK,
+                mime_type,
+                stream_file.file,
+                0,
+                size);
+        }
+        else if (ranges.isMultipart())
         {
-            response = server.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, mime_type, "");
+            Utils.log(dbg_stream,2,"MULTIPART_RESPONSE num_ranges=" + ranges.getRanges().size());
+            stream = fileChannelResponse.createMultipart(
+                mime_type,
+                stream_file.file,
+                size,
+                ranges.getRanges());
         }
         else
         {
-            int start_range = 0;
-            int end_range = size - 1;
-            boolean is_ranged = false;
-            NanoHTTPD.Response.Status status = NanoHTTPD.Response.Status.OK;
-
-            String range = headers.get("range");
-            if (range == null) range = "";
-            Utils.log(dbg_stream+1,2,"range=" + range);
+            byteRanges.range the_range = ranges.getRanges().get(0);
+            Utils.log(dbg_stream,2,"RANGED_RESPONSE start=" + the_range.start + " end=" + the_range.end);
+            stream = fileChannelResponse.create(
+                NanoHTTPD.Response.Status.PARTIAL_CONTENT,
+                mime_type,
+                stream_file.file,
+                the_range.start,
+                the_range.length());
+            if (stream != null)
+                stream.addHeader("Content-Range",the_range.contentRange(size));
+        }
 
-            if (range.startsWith("bytes="))
+        if (stream == null)
+        {
+            synchronized (stream_files)
             {
-                is_ranged = true;
-                range = range.replaceAll("^bytes=","");
-                String[] parts = range.split("-");
-                if (parts.length>0 && parts[0] != null) start_range = Utils.parseInt(parts[0]);
-                if (parts.length>1 && parts[1] != null) end_range = Utils.parseInt(parts[1]);
-                Utils.log(dbg_stream,2,"RANGED_RESPONSE start=" + start_range + " end=" + end_range);
-                status = NanoHTTPD.Response.Status.PARTIAL_CONTENT;
+                stream_files.remove(id);
             }
+            return response;
+        }
 
-            File ifile = new File(path);
-            if (ifile.canRead())
-            {
-                try
-                {
-                    InputStream stream = new FileInputStream(ifile);
-
-                    if (start_range != 0)
-                    {
-                        Utils.log(dbg_stream+1, 2, "skipping to byte " + start_range);
-                        long result = stream.skip(start_range);
-                        if (result != start_range)
-                        {
-                            Utils.error("Could only skip " + result + " of " + start_range + " bytes");
-                        }
-                    }
-                    response = server.newFixedLengthResponse(status, mime_type, stream, end_range-start_range+1);
-
-                    // only add the Content-range header if we are ranged
-                    // and it's not a HEAD request!
-
-                    if (is_ranged)
-                    {
-                        response.addHeader("Content-Range", "bytes " + start_range + "-" + end_range + "/" + size);
-                    }
-                }
-                catch (Exception e)
-                {
-                    Utils.error("could not create stream or ChunkedResponse file=" + path + " exception=" + e);
-                }
-            }
-            else
-            {
-                Utils.error("could not read raw file=" + path);
-            }
-        }   // method presumably == GET
+        response = stream;
 
-        // add the dlna headers to all responses
+        // add the validators and dlna headers to all responses
 
+        response.addHeader("ETag",stream_file.etag);
+        response.addHeader("Last-Modified",stream_file.last_modified);
         response.addHeader("Accept-Ranges", "bytes");
-        response.addHeader("contentFeatures.dlna.org",
-            httpUtils.get_dlna_stuff(track.getType()));
+        response.addHeader("contentFeatures.dlna.org",stream_file.dlna_features);
         response.addHeader("transferMode.dlna.org","Streaming");
 
         // had to add public getHeaders() method to NanoHTTPD for this
@@ -310,13 +430,13 @@ public class ContentDirectory implements
     private NanoHTTPD.Response browse_response(
         HTTPServer server,
         NanoHTTPD.Response response,
-        Document doc,
+        soapRequest args,
         String urn)
     {
-        String id = httpUtils.getXMLString(doc,"ObjectID",true);
-        int start = httpUtils.getXMLInt(doc,"StartingIndex",true);
-        int count = httpUtils.getXMLInt(doc,"RequestedCount",true);
-        String flag = httpUtils.getXMLString(doc,"BrowseFlag",true);
+        String id = httpUtils.getXMLString(args,"ObjectID",true);
+        int start = httpUtils.getXMLInt(args,"StartingIndex",true);
+        int count = httpUtils.getXMLInt(args,"RequestedCount",true);
+        String flag = httpUtils.getXMLString(args,"BrowseFlag",true);
         Utils.log(dbg_dlna,0,"browse_response(" + id + "," + start + "," + count + "," + flag + ")");
 
         // error checking and parameter munging
@@ -356,40 +476,40 @@ public class ContentDirectory implements
         // assumed to be a non-metadata request for a folder,
         // not metadata or subitems for a track
 
-        List<Record> subitems = local_library.getSubItems(id,start,count,false);
+        libraryBrowseResult subitems = local_library.getSubItems(id,start,count,false);
 
         int num_items = subitems.size();
         Utils.log(dbg_dlna,1,"building http response for " + num_items + " items");
 
-        String response_text = httpUtils.action_response_header(urn,"ContentDirectory","Browse");
+        // get the (cached) didl of each item first, so the
+        // reply can be sized once, allowing for the escaping
 
-        String didl = httpUtils.start_didl();
+        String parts[] = new String[num_items];
+        int didl_size = 0;
+        int i = 0;
         for (Record rec: subitems)
         {
-            String part;
             if (rec instanceof Track)
-                part = ((Track)rec).getMetadata();
+                parts[i] = ((Track)rec).getMetadata();
             else
-                part = ((Folder) rec).getMetadata();
-            didl += part;
+                parts[i] = ((Folder) rec).getMetadata();
+            didl_size += parts[i++].length();
         }
-        didl += httpUtils.end_didl();
-        response_text += httpUtils.encode_lite(didl);
 
-        response_text += content_response_footer(
+        soapResponse xml = new soapResponse(urn,"ContentDirectory","Browse",
+            didl_size + didl_size / 4);
+        xml.appendLite(httpUtils.start_didl());
+        for (String part : parts)
+            xml.appendLite(part);
+        xml.appendLite(httpUtils.end_didl());
+
+        xml.finish(content_response_extra(
             folder,
-            urn,
-            "Browse",
             num_items,
-            folder.getNumElements());
-        Utils.log(dbg_dlna,1,"Done with browse_response(" + id + ")");
+            subitems.getTotalFound()));
+        Utils.log(dbg_dlna,1,"Done with browse_response(" + id + ") " + xml.length() + " bytes");
 
-        response = server.newFixedLengthResponse(
-                NanoHTTPD.Response.Status.OK,
-                "text/xml",
-                response_text);
-
-        return response;
+        return xml.toResponse(server);
     }
 
 
@@ -399,17 +519,15 @@ public class ContentDirectory implements
     //-----------------------------------------------------------
 
 
-    private String content_response_footer(
-        Folder folder, String urn, String action, int num_actual, int num_total)
+    private String content_response_extra(
+        Folder folder, int num_actual, int num_total)
+        // the elements that follow the <Result>
     {
         Integer update_id = getFolderChangeCount(folder.getId());
             // FOLDER update id
-        return httpUtils.action_response_footer(
-            urn,
-            action,
-            "<UpdateID>" + update_id + "</UpdateID>\n" +
-                "<NumberReturned>" + num_actual + "</NumberReturned>\n" +
-                "<TotalMatches>" + num_total + "</TotalMatches>\n");
+        return "<UpdateID>" + update_id + "</UpdateID>\n" +
+            "<NumberReturned>" + num_actual + "</NumberReturned>\n" +
+            "<TotalMatches>" + num_total + "</TotalMatches>\n";
     }
 
 
@@ -432,6 +550,8 @@ public class ContentDirectory implements
     @Override public String getName()      { return "ContentDirectory"; };
     @Override public int getUpdateCount()  { return update_counter.get_update_count(); }
     @Override public int incUpdateCount()  { return update_counter.inc_update_count(); }
+    @Override public boolean sendsFullState() { return false; }
+    @Override public boolean sharesEventContent() { return false; }
     @Override public void notifySubscribed(UpnpEventSubscriber subscriber,boolean subscribe) {}
     @Override public void start()          { http_server.getEventManager().RegisterHandler(this) ;}
     @Override public void stop()           { http_server.getEventManager().UnRegisterHandler(this) ;}
@@ -445,7 +565,7 @@ public class ContentDirectory implements
     }
     private void incFolderChangeCount(String id)
     {
-        incUpdateCount();
+        http_server.getEventManager().incHandlerUpdateCount(this);
         folder_change_count.put(id,getUpdateCount());
     }
 
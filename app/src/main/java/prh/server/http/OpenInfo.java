@@ -4,8 +4,6 @@
 
 package prh.server.http;
 
-import org.w3c.dom.Document;
-
 import java.util.HashMap;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -18,6 +16,7 @@ import prh.base.HttpRequestHandler;
 import prh.server.utils.updateCounter;
 import prh.base.UpnpEventHandler;
 import prh.utils.httpUtils;
+import prh.utils.soapRequest;
 
 
 public class OpenInfo implements HttpRequestHandler,UpnpEventHandler
@@ -54,7 +53,7 @@ public class OpenInfo implements HttpRequestHandler,UpnpEventHandler
         String unused_uri,
         String service,
         String action,
-        Document unused_doc,
+        soapRequest unused_args,
         UpnpEventSubscriber unused_subscriber)
     {
         HashMap<String,String> hash = new HashMap<String,String>();
@@ -105,6 +104,8 @@ public class OpenInfo implements HttpRequestHandler,UpnpEventHandler
     private updateCounter update_counter = new updateCounter();
     @Override public int getUpdateCount()  { return update_counter.get_update_count(); }
     @Override public int incUpdateCount()  { return update_counter.inc_update_count(); }
+    @Override public boolean sendsFullState() { return true; }
+    @Override public boolean sharesEventContent() { return true; }
     @Override public String getName() { return "Info"; };
 
     @Override public String getEventContent(UpnpEventSubscriber unused_subscriber)
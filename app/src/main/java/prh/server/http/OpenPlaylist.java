@@ -4,8 +4,6 @@
 
 package prh.server.http;
 
-import org.w3c.dom.Document;
-
 import java.util.HashMap;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -23,6 +21,7 @@ import prh.server.utils.UpnpEventSubscriber;
 import prh.server.utils.updateCounter;
 import prh.base.UpnpEventHandler;
 import prh.utils.httpUtils;
+import prh.utils.soapRequest;
 import prh.utils.Utils;
 
 
@@ -174,7 +173,7 @@ public class OpenPlaylist implements
         String unused_uri,
         String service,
         String action,
-        Document doc,
+        soapRequest args,
         UpnpEventSubscriber subscriber)
             // OpenPlaylist is the only service that currently gets a subscriber
     {
@@ -227,14 +226,14 @@ public class OpenPlaylist implements
         }
         else if (action.equals("IdArrayChanged"))
         {
-            int token = httpUtils.getXMLInt(doc,"Token",true);
+            int token = httpUtils.getXMLInt(args,"Token",true);
             Utils.log(0,0,"token=" + token);
             hash.put("Value",token == getUpdateCount() ? "0" : "1");
 
         }
         else if (action.equals("Read"))
         {
-            int open_id = httpUtils.getXMLInt(doc,"Id",true);
+            int open_id = httpUtils.getXMLInt(args,"Id",true);
             Utils.log(0,0,"open_id=" + open_id);
             Track track = servable_playlist.getByOpenId(open_id);
             if (track == null)
@@ -245,7 +244,7 @@ public class OpenPlaylist implements
         else if (action.equals("ReadList"))
         {
             int id_array[] = servable_playlist.string_to_id_array(
-                httpUtils.getXMLString(doc,"IdList",true));
+                httpUtils.getXMLString(args,"IdList",true));
             hash.put("TrackList",servable_playlist.id_array_to_tracklist(
                 id_array));
             if (exposer != null)
@@ -270,22 +269,21 @@ public class OpenPlaylist implements
         else if (action.equals("DeleteId"))
         {
             // 800 if not in list
-            int open_id = httpUtils.getXMLInt(doc,"Value",true);
+            int open_id = httpUtils.getXMLInt(args,"Value",true);
             Utils.log(0,0,"open_id=" + open_id);
             if (!servable_playlist.removeTrack(open_id))
                 return error_response(http_server,800,open_id);
-            incUpdateCount();
-            artisan.setDeferOpenHomeEvents();
-                // defer the open home events
-                // in case it is a group of deletes
+            http_server.getEventManager().incHandlerUpdateCount(this);
+                // a group of deletes is coalesced into one
+                // event by the Playlist eventPolicy
         }
         else if (action.equals("Insert"))
         {
             // Reports a 800 fault code if AfterId is not 0 and doesn’t appear in the playlist.
             // Reports a 801 fault code if the playlist is full (i.e. already contains TracksMax tracks).
-            int after_id = httpUtils.getXMLInt(doc,"AfterId",true);
-            String content_uri = httpUtils.getXMLString(doc,"Uri",true);
-            String content_data = httpUtils.getXMLString(doc,"Metadata",true);
+            int after_id = httpUtils.getXMLInt(args,"AfterId",true);
+            String content_uri = httpUtils.getXMLString(args,"Uri",true);
+            String content_data = httpUtils.getXMLString(args,"Metadata",true);
             Utils.log(0,0,"after_id=" + after_id);
             Utils.log(0,0,"uri=" + content_uri);
             Utils.log(0,0,"data=" + content_data);
@@ -317,8 +315,7 @@ public class OpenPlaylist implements
                     artisan.handleArtisanEvent(ArtisanEventHandler.EVENT_TRACK_CHANGED,track);
                 }
                 hash.put("NewId",Integer.toString(track.getOpenId()));
-                incUpdateCount();
-                artisan.setDeferOpenHomeEvents();
+                http_server.getEventManager().incHandlerUpdateCount(this);
             }
         }
 
@@ -328,17 +325,17 @@ public class OpenPlaylist implements
 
         else if (action.equals("SetRepeat"))
         {
-            int value = httpUtils.getXMLInt(doc,"Value",true);
+            int value = httpUtils.getXMLInt(args,"Value",true);
             Utils.log(0,0,"value=" + value);
             local_renderer.setRepeat(value > 0);
-            incUpdateCount();
+            http_server.getEventManager().incHandlerUpdateCount(this);
         }
         else if (action.equals("SetShuffle"))
         {
-            int value = httpUtils.getXMLInt(doc,"Value",true);
+            int value = httpUtils.getXMLInt(args,"Value",true);
             Utils.log(0,0,"value=" + value);
             local_renderer.setShuffle(value > 0);
-            incUpdateCount();
+            http_server.getEventManager().incHandlerUpdateCount(this);
         }
 
 
@@ -346,7 +343,7 @@ public class OpenPlaylist implements
 
         else if (action.equals("SeekId"))
         {
-            int open_id = httpUtils.getXMLInt(doc,"Value",true);
+            int open_id = httpUtils.getXMLInt(args,"Value",true);
             Utils.log(0,0,"open_id=" + open_id);
             if (open_id > 0)
             {
@@ -360,7 +357,7 @@ public class OpenPlaylist implements
         }
         else if (action.equals("SeekIndex"))
         {
-            int index = httpUtils.getXMLInt(doc,"Value",true);
+            int index = httpUtils.getXMLInt(args,"Value",true);
             Utils.log(0,0,"index=" + index);
             if (index > 0)
             {
@@ -377,13 +374,13 @@ public class OpenPlaylist implements
 
         else if (action.equals("SeekSecondAbsolute"))
         {
-            int seconds = httpUtils.getXMLInt(doc,"Value",true);
+            int seconds = httpUtils.getXMLInt(args,"Value",true);
             Utils.log(0,0,"seconds=" + seconds);
             local_renderer.seekTo(seconds * 1000);
         }
         else if (action.equals("SeekSecondRelative"))
         {
-            int seconds = httpUtils.getXMLInt(doc,"Value",true);
+            int seconds = httpUtils.getXMLInt(args,"Value",true);
             Utils.log(0,0,"seconds=" + seconds);
             int position = local_renderer.getPosition();
             position += seconds * 1000;
@@ -395,27 +392,27 @@ public class OpenPlaylist implements
         else if (action.equals("Next"))
         {
             local_renderer.incAndPlay(1);
-            incUpdateCount();
+            http_server.getEventManager().incHandlerUpdateCount(this);
         }
         else if (action.equals("Previous"))
         {
             local_renderer.incAndPlay(-1);
-            incUpdateCount();
+            http_server.getEventManager().incHandlerUpdateCount(this);
         }
         else if (action.equals("Pause"))
         {
             local_renderer.transport_pause();
-            incUpdateCount();
+            http_server.getEventManager().incHandlerUpdateCount(this);
         }
         else if (action.equals("Play"))
         {
             local_renderer.transport_play();
-            incUpdateCount();
+            http_server.getEventManager().incHandlerUpdateCount(this);
         }
         else if (action.equals("Stop"))
         {
             local_renderer.transport_stop();
-            incUpdateCount();
+            http_server.getEventManager().incHandlerUpdateCount(this);
         }
 
 
@@ -492,6 +489,8 @@ public class OpenPlaylist implements
     private updateCounter update_counter = new updateCounter();
     @Override public int getUpdateCount()  { return update_counter.get_update_count(); }
     @Override public int incUpdateCount()  { return update_counter.inc_update_count(); }
+    @Override public boolean sendsFullState() { return true; }
+    @Override public boolean sharesEventContent() { return false; }
     @Override public String getName() { return "Playlist"; }
 
 
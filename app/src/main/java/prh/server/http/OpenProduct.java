@@ -4,8 +4,6 @@
 
 package prh.server.http;
 
-import org.w3c.dom.Document;
-
 import java.util.HashMap;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -17,6 +15,7 @@ import prh.server.utils.UpnpEventSubscriber;
 import prh.server.utils.updateCounter;
 import prh.base.UpnpEventHandler;
 import prh.utils.httpUtils;
+import prh.utils.soapRequest;
 import prh.utils.Utils;
 
 
@@ -59,7 +58,7 @@ public class OpenProduct implements HttpRequestHandler,UpnpEventHandler
         String unused_uri,
         String service,
         String action,
-        Document doc,
+        soapRequest args,
         UpnpEventSubscriber unused_subscriber)
     {
         HashMap<String,String> hash = new HashMap<String,String>();
@@ -94,7 +93,7 @@ public class OpenProduct implements HttpRequestHandler,UpnpEventHandler
         }
         else if (action.equals("SetStandby"))
         {
-            int value = httpUtils.getXMLInt(doc,"Value",true);
+            int value = httpUtils.getXMLInt(args,"Value",true);
         }
         else if (action.equals("SourceXml"))
         {
@@ -106,7 +105,7 @@ public class OpenProduct implements HttpRequestHandler,UpnpEventHandler
         }
         else if (action.equals("Source"))
         {
-            int value = httpUtils.getXMLInt(doc,"Index",true);
+            int value = httpUtils.getXMLInt(args,"Index",true);
             hash.put("SystemeName", source_name);
             hash.put("Type", source_type);
         }
@@ -127,7 +126,7 @@ public class OpenProduct implements HttpRequestHandler,UpnpEventHandler
         }
         else if (action.equals("SetSourceIndexByName"))
         {
-            int value = httpUtils.getXMLInt(doc,"Value",true);
+            int value = httpUtils.getXMLInt(args,"Value",true);
         }
         else
         {
@@ -174,6 +173,8 @@ public class OpenProduct implements HttpRequestHandler,UpnpEventHandler
     private updateCounter update_counter = new updateCounter();
     @Override public int getUpdateCount()  { return update_counter.get_update_count(); }
     @Override public int incUpdateCount()  { return update_counter.inc_update_count(); }
+    @Override public boolean sendsFullState() { return true; }
+    @Override public boolean sharesEventContent() { return true; }
     @Override public String getName() { return "Product"; };
 
 
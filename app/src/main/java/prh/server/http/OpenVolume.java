@@ -4,8 +4,6 @@
 
 package prh.server.http;
 
-import org.w3c.dom.Document;
-
 import java.util.HashMap;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -18,6 +16,7 @@ import prh.base.HttpRequestHandler;
 import prh.server.utils.updateCounter;
 import prh.base.UpnpEventHandler;
 import prh.utils.httpUtils;
+import prh.utils.soapRequest;
 
 
 public class OpenVolume implements HttpRequestHandler,UpnpEventHandler
@@ -56,7 +55,7 @@ public class OpenVolume implements HttpRequestHandler,UpnpEventHandler
         String unused_uri,
         String service,
         String action,
-        Document doc,
+        soapRequest args,
         UpnpEventSubscriber unused_subscriber)
     {
         HashMap<String,String> hash = new HashMap<String,String>();
@@ -89,19 +88,19 @@ public class OpenVolume implements HttpRequestHandler,UpnpEventHandler
 
         else if (action.equals("SetVolume"))
         {
-            int value = httpUtils.getXMLInt(doc,"Value",true);
+            int value = httpUtils.getXMLInt(args,"Value",true);
             volume.setValue(Volume.CTRL_VOL,value);
             changed = true;
         }
         else if (action.equals("SetBalance"))
         {
-            int value = httpUtils.getXMLInt(doc,"Value",true);
+            int value = httpUtils.getXMLInt(args,"Value",true);
             volume.setValue(Volume.CTRL_BAL,value);
             changed = true;
         }
         else if (action.equals("SetFade"))
         {
-            int value = httpUtils.getXMLInt(doc,"Value",true);
+            int value = httpUtils.getXMLInt(args,"Value",true);
             volume.setValue(Volume.CTRL_FADE,value);
             changed = true;
         }
@@ -144,7 +143,7 @@ public class OpenVolume implements HttpRequestHandler,UpnpEventHandler
         if (ok)
             response = httpUtils.hash_response(http_server,urn,service,action,hash);
         if (changed)
-            incUpdateCount();
+            http_server.getEventManager().incHandlerUpdateCount(this);
         return response;
     }
 
@@ -155,6 +154,8 @@ public class OpenVolume implements HttpRequestHandler,UpnpEventHandler
     private updateCounter update_counter = new updateCounter();
     @Override public int getUpdateCount()  { return update_counter.get_update_count(); }
     @Override public int incUpdateCount()  { return update_counter.inc_update_count(); }
+    @Override public boolean sendsFullState() { return true; }
+    @Override public boolean sharesEventContent() { return true; }
     @Override public String getName() { return "Volume"; };
 
     @Override public String getEventContent(UpnpEventSubscriber unused_subscriber)
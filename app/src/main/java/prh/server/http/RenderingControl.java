@@ -3,8 +3,6 @@
 package prh.server.http;
 
 
-import org.w3c.dom.Document;
-
 import java.util.HashMap;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -18,6 +16,8 @@ import prh.server.utils.UpnpEventSubscriber;
 import prh.server.utils.updateCounter;
 import prh.types.stringHash;
 import prh.utils.httpUtils;
+import prh.utils.soapRequest;
+import prh.utils.soapResponse;
 import prh.utils.Utils;
 
 
@@ -52,10 +52,10 @@ public class RenderingControl implements
         String uri,
         String service,
         String action,
-        Document doc ,
+        soapRequest args ,
         UpnpEventSubscriber unused_subscriber)
     {
-        // Only handles actions, expects doc != null, and never looks at uri
+        // Only handles actions, expects args != null, and never looks at uri
         // All actions get, and ignore, an InstanceID parameter
         // All actions get, and ignore a channel
 
@@ -68,7 +68,7 @@ public class RenderingControl implements
 
         if (action.equals("SetVolume"))
         {
-            response = SetRendererResponse(http_server,response,doc,urn,service,action,"DesiredVolume",Volume.CTRL_VOL);
+            response = SetRendererResponse(http_server,response,args,urn,service,action,"DesiredVolume",Volume.CTRL_VOL);
         }
         else if (action.equals("GetVolume"))
         {
@@ -79,7 +79,7 @@ public class RenderingControl implements
 
         else if (action.equals("SetMute"))
         {
-            response = SetRendererResponse(http_server,response,doc,urn,service,action,"DesiredMute",Volume.CTRL_MUTE);
+            response = SetRendererResponse(http_server,response,args,urn,service,action,"DesiredMute",Volume.CTRL_MUTE);
         }
         else if (action.equals("GetMute"))
         {
@@ -87,7 +87,7 @@ public class RenderingControl implements
         }
         else if (action.equals("SetLoudness"))
         {
-            response = SetRendererResponse(http_server,response,doc,urn,service,action,"DesiredLoudness",Volume.CTRL_LOUD);
+            response = SetRendererResponse(http_server,response,args,urn,service,action,"DesiredLoudness",Volume.CTRL_LOUD);
         }
         else if (action.equals("GetLoudness"))
         {
@@ -98,7 +98,7 @@ public class RenderingControl implements
 
         else if (action.equals("SetBalance"))
         {
-            response = SetRendererResponse(http_server,response,doc,urn,service,action,"DesiredBalance",Volume.CTRL_BAL);
+            response = SetRendererResponse(http_server,response,args,urn,service,action,"DesiredBalance",Volume.CTRL_BAL);
         }
         else if (action.equals("GetBalance"))
         {
@@ -106,7 +106,7 @@ public class RenderingControl implements
         }
         else if (action.equals("SetFade"))
         {
-            response = SetRendererResponse(http_server,response,doc,urn,service,action,"DesiredFade",Volume.CTRL_FADE);
+            response = SetRendererResponse(http_server,response,args,urn,service,action,"DesiredFade",Volume.CTRL_FADE);
         }
         else if (action.equals("GetFade"))
         {
@@ -117,7 +117,7 @@ public class RenderingControl implements
 
         else if (action.equals("SetEQLow"))
         {
-            response = SetRendererResponse(http_server,response,doc,urn,service,action,"DesiredEQLow",Volume.CTRL_BASS);
+            response = SetRendererResponse(http_server,response,args,urn,service,action,"DesiredEQLow",Volume.CTRL_BASS);
         }
         else if (action.equals("GetEQLow"))
         {
@@ -125,7 +125,7 @@ public class RenderingControl implements
         }
         else if (action.equals("SetEQMid"))
         {
-            response = SetRendererResponse(http_server,response,doc,urn,service,action,"DesiredEQMid",Volume.CTRL_MID);
+            response = SetRendererResponse(http_server,response,args,urn,service,action,"DesiredEQMid",Volume.CTRL_MID);
         }
         else if (action.equals("GetEQMid"))
         {
@@ -133,7 +133,7 @@ public class RenderingControl implements
         }
         else if (action.equals("SetEQHigh"))
         {
-            response = SetRendererResponse(http_server,response,doc,urn,service,action,"DesiredEQHigh",Volume.CTRL_HIGH);
+            response = SetRendererResponse(http_server,response,args,urn,service,action,"DesiredEQHigh",Volume.CTRL_HIGH);
         }
         else if (action.equals("GetEQHigh"))
         {
@@ -163,23 +163,21 @@ public class RenderingControl implements
             String action)
             // The default OK response is just an empty SSDP response (with soap body)
     {
-        String xml = httpUtils.action_response_header(urn,service,action);
-        xml = xml + httpUtils.action_response_footer(urn,action,"");
-        return server.newFixedLengthResponse(NanoHTTPD.Response.Status.OK,"text/xml", xml);
+        return new soapResponse(urn,service,action).toResponse(server);
     }
 
 
     private NanoHTTPD.Response SetRendererResponse(
         HTTPServer server,
         NanoHTTPD.Response response,
-        Document doc,
+        soapRequest args,
         String urn,
         String service,
         String action,
         String field,
         int ctrl_idx)
     {
-        int val = httpUtils.getXMLInt(doc,field,true);
+        int val = httpUtils.getXMLInt(args,field,true);
         Utils.log(dbg_rc,0,"SetRendererResponse(" + field + ")=" + val);
 
         Renderer renderer = artisan.getRenderer();
@@ -195,7 +193,7 @@ public class RenderingControl implements
             // the Artisan EVENT_VOLUME_CHANGED event ... I am leaving this here
             // for now, as I don't think it hurts to over increment the update count.
 
-            incUpdateCount();
+            http_server.getEventManager().incHandlerUpdateCount(this);
             volume.setValue(ctrl_idx,val);
             response = ok_response(server,urn,service,action);
         }
@@ -236,6 +234,8 @@ public class RenderingControl implements
     @Override public String getName()      { return "RenderingControl"; };
     @Override public int getUpdateCount()  { return update_counter.get_update_count(); }
     @Override public int incUpdateCount()  { return update_counter.inc_update_count(); }
+    @Override public boolean sendsFullState() { return true; }
+    @Override public boolean sharesEventContent() { return true; }
     @Override public void notifySubscribed(UpnpEventSubscriber subscriber,boolean subscribe) {}
     @Override public void start()          { http_server.getEventManager().RegisterHandler(this) ;}
     @Override public void stop()           { http_server.getEventManager().UnRegisterHandler(this) ;}
@@ -0,0 +1,112 @@
+//--------------------------------------------------------------
+// UpnpEventDispatcher - the UPnP event pipeline's own thread
+//--------------------------------------------------------------
+// Artisan raises the services changed by each ArtisanEvent here,
+// from whatever thread the event came in on, instead of bumping
+// the update counts and calling send_events() on the UI thread.
+// Raising is a lock-free offer() to a queue, and an unpark() of
+// the dispatcher thread.
+//
+// The dispatcher drains the queue, bumps the update count of each
+// raised service (remembering when it was raised, for the latency
+// histogram in UpnpEventManager), and then calls send_events()
+// once for everything it drained.
+
+package prh.server.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import prh.utils.Utils;
+
+
+public class UpnpEventDispatcher implements Runnable
+{
+    private static int dbg_dispatch = 1;
+
+    private static long IDLE_PARK_MILLIS = 1000;
+        // the thread wakes up this often to check for stop()
+
+    private static class raisedEvent
+    {
+        final String services[];
+        final long raised_time;
+
+        raisedEvent(String the_services[])
+        {
+            services = the_services;
+            raised_time = System.currentTimeMillis();
+        }
+    }
+
+    private final UpnpEventManager event_manager;
+    private final ConcurrentLinkedQueue<raisedEvent> queue =
+        new ConcurrentLinkedQueue<raisedEvent>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+
+    public UpnpEventDispatcher(UpnpEventManager manager)
+    {
+        event_manager = manager;
+        thread = new Thread(this);
+        thread.setName("upnpDispatch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    public void stop()
+    {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+
+    public void raise(String... services)
+        // Called from any thread. With no services,
+        // just sends any events that are due.
+    {
+        if (!running)
+            return;
+        queue.offer(new raisedEvent(services));
+        LockSupport.unpark(thread);
+    }
+
+
+    public void run()
+    {
+        Utils.log(dbg_dispatch,0,"UpnpEventDispatcher started");
+        while (running)
+        {
+            raisedEvent event = queue.poll();
+            if (event == null)
+            {
+                LockSupport.parkNanos(this,TimeUnit.MILLISECONDS.toNanos(IDLE_PARK_MILLIS));
+                continue;
+            }
+
+            int num_events = 0;
+            try
+            {
+                while (event != null)
+                {
+                    num_events++;
+                    for (String service : event.services)
+                        event_manager.incUpdateCount(service,event.raised_time);
+                    event = queue.poll();
+                }
+                Utils.log(dbg_dispatch+1,0,"UpnpEventDispatcher sending events for " + num_events + " raised events");
+                event_manager.send_events();
+            }
+            catch (Exception e)
+            {
+                Utils.error("Exception in UpnpEventDispatcher: " + e);
+            }
+        }
+        Utils.log(dbg_dispatch,0,"UpnpEventDispatcher stopped");
+    }
+
+
+}   // class UpnpEventDispatcher
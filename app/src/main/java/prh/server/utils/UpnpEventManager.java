@@ -1,49 +1,218 @@
 //---------------------------------------------------------
 // UpnpEventManager - manages SUBSCRIPTIONS and EVENTS
 //---------------------------------------------------------
+// NOTIFY events are delivered by a small shared pool of
+// threads, rather than a new Thread per event. Each subscriber
+// has at most one delivery running at a time, so its events
+// (and SEQ numbers) stay in order. If the handler sendsFullState(),
+// a newer event replaces any waiting behind it (i.e. a slow control
+// point gets the latest Time, rather than a backlog of them).
+// The AVTransport and ContentDirectory events only carry changes
+// since the subscriber's last event, so those are all sent.
+// Events for a subscriber that has gone away are dropped.
+//
+// Each service also has an eventPolicy that limits how often
+// it is evented, so that bulk playlist edits, rapid seeks, and
+// volume drags produce one NOTIFY per window per subscriber:
+//
+//     coalesce     - a change waits this long for more changes
+//                    before being evented
+//     min_interval - the service is evented at most once per
+//                    this many millis
+//
+// send_events() skips a service that is not yet due, and
+// schedules itself on the event timer to run when it is.
+// The initial event for a new subscriber is sent at once.
+//
+// Changes raised by Artisan come in through the UpnpEventDispatcher,
+// on its own thread, rather than on the UI thread. The time from
+// a change being raised to its NOTIFY being sent is kept in the
+// notify_latency histogram.
+//
+// getNotifyLatency() and getSubscribers() let a status page show
+// the histogram and each subscriber's queue depth and latencies
+// while running, and the same stats are logged at dbg_stats every
+// STATS_INTERVAL seconds while anyone is subscribed.
 
 package prh.server.utils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import fi.iki.elonen.NanoHTTPD;
 import prh.artisan.Artisan;
 import prh.base.UpnpEventHandler;
+import prh.types.stringHash;
 import prh.server.HTTPServer;
 import prh.utils.Utils;
+import prh.utils.httpConnectionPool;
+import prh.utils.latencyHistogram;
 
 public class UpnpEventManager
 {
     private static int dbg_event = 0;
     private static int dbg_subscribe = 1;
+    private static int dbg_stats = 1;
     private static String DEBUG_HANDLER_EVENT = ""; // "Playlist";
     private static String DEBUG_HANDLER_REPLY = ""; // "Playlist";
         // Set these to the name of a handler and the
         // contents of the event or reply will be shown at
         // debug level 0
 
+    private static int NOTIFY_THREADS = 3;
+        // simultaneous deliveries to different subscribers
+    private static int NOTIFY_TIMEOUT = 5000;
+        // millis to wait for a reply to a NOTIFY
+        // (the connect timeout is the pool's)
+    private static int STATS_INTERVAL = 60;
+        // seconds between logging the delivery stats
+
+    private ThreadPoolExecutor notify_executor;
+    private ScheduledThreadPoolExecutor event_timer;
+    private UpnpEventDispatcher dispatcher;
+    private latencyHistogram notify_latency = new latencyHistogram("notify_latency");
+        // from the change being raised to the NOTIFY being sent
+    private ScheduledFuture<?> scheduled_dispatch = null;
+    private long scheduled_time = 0;
+
     Artisan artisan;
     HTTPServer http_server;
 
     private HashMap<String,UpnpEventHandler> handlers = new HashMap<String,UpnpEventHandler>();
     private HashMap<String,UpnpEventSubscriber> clients = new HashMap<String,UpnpEventSubscriber>();
+        // by sid
+
+    // send_events() only looks at the services that have changed,
+    // and only at the subscribers of those services.
+
+    private HashMap<String,ArrayList<UpnpEventSubscriber>> service_subscribers =
+        new HashMap<String,ArrayList<UpnpEventSubscriber>>();
+        // by handler name
+    private HashMap<String,Integer> evented_counts = new HashMap<String,Integer>();
+        // each handler's update count at the last send_events()
+    private HashSet<String> dirty_services = new HashSet<String>();
+        // services incUpdateCount()'d here
+
+    private HashMap<String,Long> pending_since = new HashMap<String,Long>();
+        // when a change to the service was first seen
+    private HashMap<String,Long> last_evented = new HashMap<String,Long>();
+        // when the service was last evented
+    private HashMap<String,Long> raised_since = new HashMap<String,Long>();
+        // when the oldest unevented change was raised
+
+    private static int EXPIRE_CHECK_INTERVAL = 60;
+        // seconds between sweeps for expired subscribers
+    private int next_expire_check = 0;
 
     private class exposerHash extends HashMap<Integer,UpnpEventSubscriber> {}
     private exposerHash exposer_subscribers = new exposerHash();
     public exposerHash getExposerSubscribers() {return exposer_subscribers; }
 
 
+    //------------------------------------------
+    // event policies
+    //------------------------------------------
+
+    public static class eventPolicy
+    {
+        public final int coalesce;
+        public final int min_interval;
+
+        public eventPolicy(int coalesce_millis, int min_interval_millis)
+        {
+            coalesce = coalesce_millis;
+            min_interval = min_interval_millis;
+        }
+    }
+
+    private static eventPolicy DEFAULT_POLICY = new eventPolicy(0,0);
+    private HashMap<String,eventPolicy> policies = new HashMap<String,eventPolicy>();
+
+    private void setDefaultPolicies()
+        // AVTransport, RenderingControl and ContentDirectory use
+        // the moderation rates from their UPnP specs. The OpenHome
+        // Playlist waits for bursts of Insert/DeleteId actions.
+    {
+        setEventPolicy("AVTransport",       new eventPolicy(0,200));
+        setEventPolicy("RenderingControl",  new eventPolicy(100,200));
+        setEventPolicy("ContentDirectory",  new eventPolicy(0,2000));
+        setEventPolicy("Playlist",          new eventPolicy(300,1000));
+        setEventPolicy("Info",              new eventPolicy(0,200));
+        setEventPolicy("Time",              new eventPolicy(0,900));
+        setEventPolicy("Volume",            new eventPolicy(100,200));
+    }
+
+    public synchronized void setEventPolicy(String service, eventPolicy policy)
+    {
+        policies.put(service,policy);
+    }
+
+    public synchronized eventPolicy getEventPolicy(String service)
+    {
+        eventPolicy policy = policies.get(service);
+        return policy == null ? DEFAULT_POLICY : policy;
+    }
+
+
+    //------------------------------------------
+    // construction
+    //------------------------------------------
+
     public UpnpEventManager(Artisan ma,HTTPServer http)
     {
         artisan = ma;
         http_server = http;
+        notify_executor = new ThreadPoolExecutor(
+            NOTIFY_THREADS,
+            NOTIFY_THREADS,
+            30,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new notifyThreadFactory());
+        notify_executor.allowCoreThreadTimeOut(true);
+        event_timer = new ScheduledThreadPoolExecutor(1,new notifyThreadFactory());
+        event_timer.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                logStats();
+            }
+        },STATS_INTERVAL,STATS_INTERVAL,TimeUnit.SECONDS);
+        setDefaultPolicies();
+        dispatcher = new UpnpEventDispatcher(this);
+    }
+
+
+    public void shutdown()
+    {
+        Utils.log(dbg_event,0,"UpnpEventManager.shutdown() " + getStats());
+        dispatcher.stop();
+        for (UpnpEventSubscriber subscriber : clients.values())
+            subscriber.cancelEvents();
+        notify_executor.shutdownNow();
+        event_timer.shutdownNow();
+    }
+
+
+    private static class notifyThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger thread_num = new AtomicInteger(0);
+
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.setName("upnpNotify(" + thread_num.incrementAndGet() + ")");
+            return thread;
+        }
     }
 
     public void RegisterHandler(UpnpEventHandler handler)
@@ -54,7 +223,7 @@ public class UpnpEventManager
     public void UnRegisterHandler(UpnpEventHandler handler)
     {
         // remove any clients that are subscribed to the service?
-        handlers.remove(handler);
+        handlers.remove(handler.getName());
     }
 
     public UpnpEventHandler getHandler(String name)
@@ -63,12 +232,42 @@ public class UpnpEventManager
     }
 
 
-    public void incUpdateCount(String service_name)
+    public void raiseEvent(String... services)
+        // Called by Artisan on any thread. The update counts are
+        // bumped, and the events sent, on the dispatcher thread.
+    {
+        dispatcher.raise(services);
+    }
+
+
+    public void incHandlerUpdateCount(UpnpEventHandler handler)
+        // Called by a handler that changed its own state in an
+        // action, with its own lock held, so it must not take the
+        // manager's lock (the order is manager, then handler).
+        // The count is bumped now, so the action's reply sees it,
+        // and the dispatcher calls send_events(), which sees the
+        // changed count and sends (or schedules) the events.
+    {
+        handler.incUpdateCount();
+        dispatcher.raise();
+    }
+
+
+    public synchronized void incUpdateCount(String service_name)
+    {
+        incUpdateCount(service_name,System.currentTimeMillis());
+    }
+
+
+    public synchronized void incUpdateCount(String service_name, long raised_time)
     {
         UpnpEventHandler handler = getHandler(service_name);
         if (handler != null)
         {
             handler.incUpdateCount();
+            dirty_services.add(service_name);
+            if (!raised_since.containsKey(service_name))
+                raised_since.put(service_name,raised_time);
             Utils.log(9,0,"external incUpdateCount(" + service_name + ")=" + handler.getUpdateCount());
         }
         else
@@ -145,7 +344,8 @@ public class UpnpEventManager
                 response.addHeader("timeout","Second-" + subscriber.getDuration());
                 response.addHeader("content-length","0");
                 // send the initial event (before returning from the subscribe request!!!
-                send_events();
+                if (sid == null || sid.equals(""))
+                    send_initial_event(subscriber);
             }
         }
         else if (method.equals("UNSUBSCRIBE"))
@@ -169,7 +369,7 @@ public class UpnpEventManager
 
 
 
-    public UpnpEventSubscriber subscribe(
+    public synchronized UpnpEventSubscriber subscribe(
         UpnpEventHandler handler,
         String event_url,
         String user_agent )
@@ -185,12 +385,34 @@ public class UpnpEventManager
 
         Utils.log(dbg_subscribe + 2,1,"got sid=" + subscriber.getSid());
         clients.put(subscriber.getSid(),subscriber);
+        ArrayList<UpnpEventSubscriber> subscribers = service_subscribers.get(name);
+        if (subscribers == null)
+        {
+            subscribers = new ArrayList<UpnpEventSubscriber>();
+            service_subscribers.put(name,subscribers);
+        }
+        subscribers.add(subscriber);
         handler.notifySubscribed(subscriber,true);
         return subscriber;
     }
 
 
-    public UpnpEventSubscriber unsubscribe(String sid)
+    private synchronized void send_initial_event(UpnpEventSubscriber subscriber)
+        // the first event goes out at once, regardless of the policy
+    {
+        UpnpEventHandler handler = subscriber.getHandler();
+        int update_count = handler.getUpdateCount();
+        String content;
+        synchronized (handler)
+        {
+            content = handler.getEventContent(subscriber);
+        }
+        subscriber.setUpdateCount(update_count);
+        queueEvent(subscriber,content,System.currentTimeMillis());
+    }
+
+
+    public synchronized UpnpEventSubscriber unsubscribe(String sid)
     {
         Utils.log(dbg_subscribe,0,"Unsubscribe(" + sid + ")");
         UpnpEventSubscriber subscriber = clients.get(sid);
@@ -207,7 +429,7 @@ public class UpnpEventManager
     }
 
 
-    public UpnpEventSubscriber refresh(String sid)
+    public synchronized UpnpEventSubscriber refresh(String sid)
     {
         Utils.log(dbg_subscribe,0,"Refresh(" + sid + ")");
         UpnpEventSubscriber subscriber = clients.get(sid);
@@ -223,90 +445,277 @@ public class UpnpEventManager
     }
 
 
-    public void remove(UpnpEventSubscriber subscriber)
+    public synchronized void remove(UpnpEventSubscriber subscriber)
     {
         clients.remove(subscriber.getSid());
+        ArrayList<UpnpEventSubscriber> subscribers =
+            service_subscribers.get(subscriber.getHandler().getName());
+        if (subscribers != null)
+            subscribers.remove(subscriber);
+        subscriber.cancelEvents();
     }
 
 
+    public latencyHistogram getNotifyLatency()
+    {
+        return notify_latency;
+    }
+
+
+    public synchronized ArrayList<UpnpEventSubscriber> getSubscribers()
+        // a copy, for showing getQueueDepth(), getAverageLatency(),
+        // etc, of each subscriber without holding the manager
+    {
+        return new ArrayList<UpnpEventSubscriber>(clients.values());
+    }
+
 
-    public void send_events()
+    public synchronized String getStats()
+        // one line of delivery metrics per subscriber
+    {
+        String rslt = notify_latency.toString() + "\n";
+        for (UpnpEventSubscriber subscriber : clients.values())
+            rslt += subscriber.getStats() + "\n";
+        return rslt;
+    }
+
+
+    private void logStats()
+        // run every STATS_INTERVAL on the event timer
+    {
+        if (dbg_stats > Utils.global_debug_level)
+            return;
+        ArrayList<UpnpEventSubscriber> subscribers = getSubscribers();
+        if (subscribers.isEmpty())
+            return;
+        Utils.log(dbg_stats,0,"UpnpEventManager " + notify_latency.toString());
+        for (UpnpEventSubscriber subscriber : subscribers)
+            Utils.log(dbg_stats,1,subscriber.getStats());
+    }
+
+
+
+    public synchronized void send_events()
         // called whenever the renderer client calls incUpdateCount(service)
-        // could be optimized to just look at the particular service.
-        // checks all subscribers to see if they are out of date wrt the service
-        // and sends events to them if so.
+        // Only looks at services whose update count has changed since
+        // the last call (or that are dirty), and sends events to their
+        // subscribers that are out of date wrt the service, if the
+        // service's eventPolicy allows it yet.
     {
         Utils.log(dbg_event+2,0,"UpnpEventManager.send_events()");
-        ArrayList<UpnpEventSubscriber> expired = new ArrayList<UpnpEventSubscriber>();
-        for (UpnpEventSubscriber subscriber:clients.values())
+
+        int now = Utils.now_seconds();
+        if (now >= next_expire_check)
         {
-            Utils.log(dbg_event+2,0,"checking client(" + subscriber.getUserAgent() + ")");
-            UpnpEventHandler handler = subscriber.getHandler();
-            Utils.log(dbg_event+2,1,"Checking subscriber " + handler.getName() + " : " + subscriber.getUserAgent());
-            Utils.log(dbg_event+2,2,"update_count(" + handler.getName() + ")  subscriber=" + subscriber.getUpdateCount() + "     handler=" + handler.getUpdateCount());
+            next_expire_check = now + EXPIRE_CHECK_INTERVAL;
+            removeExpired();
+        }
 
-            if (subscriber.expired())
+        long now_millis = System.currentTimeMillis();
+        long next_due = 0;
+
+        for (UpnpEventHandler handler : handlers.values())
+        {
+            String name = handler.getName();
+            int update_count = handler.getUpdateCount();
+            Integer evented_count = evented_counts.get(name);
+            if (!dirty_services.contains(name) &&
+                evented_count != null && evented_count == update_count)
+                continue;
+
+            // wait until the policy allows the service to be evented
+
+            long due = getDueTime(name,now_millis);
+            if (due > now_millis)
             {
-                Utils.log(dbg_event+2,2,"expired");
-                expired.add(subscriber);
+                if (next_due == 0 || due < next_due)
+                    next_due = due;
+                continue;
             }
-            else if (subscriber.getUpdateCount() != handler.getUpdateCount())
-            {
-                Utils.log(dbg_event+1,2,"event needs sending ... ");
-                Utils.log(dbg_event + 1,3,"subscriber=" + subscriber.getUpdateCount() + "     handler=" + handler.getUpdateCount());
 
-                // EVENT DATA REQUEST
-                // The upnEventHandlers are synchronized with their
-                // httpEventHandlers so that actions and events are atomic
+            // changes made by the handlers themselves were
+            // not raised, so they are timed from when they were seen
 
-                String content;
+            Long raised_time = raised_since.remove(name);
+            Long seen_time = pending_since.remove(name);
+            if (raised_time == null)
+                raised_time = seen_time != null ? seen_time : now_millis;
+
+            dirty_services.remove(name);
+            last_evented.put(name,now_millis);
+            evented_counts.put(name,update_count);
+            ArrayList<UpnpEventSubscriber> subscribers = service_subscribers.get(name);
+            if (subscribers != null && !subscribers.isEmpty())
+                send_service_events(handler,update_count,raised_time,subscribers);
+        }
+
+        if (next_due > 0)
+            scheduleDispatch(next_due);
+    }
+
+
+    private long getDueTime(String service, long now_millis)
+        // when a changed service may be evented under its policy
+    {
+        eventPolicy policy = getEventPolicy(service);
+        Long since = pending_since.get(service);
+        if (since == null)
+        {
+            since = now_millis;
+            pending_since.put(service,since);
+        }
+        long due = since + policy.coalesce;
+        Long last = last_evented.get(service);
+        if (last != null && last + policy.min_interval > due)
+            due = last + policy.min_interval;
+        return due;
+    }
+
+
+    private void scheduleDispatch(long when)
+        // run send_events() at the given time, unless
+        // it is already scheduled to run before then
+    {
+        if (scheduled_dispatch != null &&
+            !scheduled_dispatch.isDone() &&
+            scheduled_time <= when)
+            return;
+        if (scheduled_dispatch != null)
+            scheduled_dispatch.cancel(false);
+
+        scheduled_time = when;
+        try
+        {
+            scheduled_dispatch = event_timer.schedule(
+                new Runnable() { public void run() { send_events(); } },
+                Math.max(0,when - System.currentTimeMillis()),
+                TimeUnit.MILLISECONDS);
+        }
+        catch (Exception e)
+        {
+            Utils.warning(0,0,"Could not schedule events: " + e);
+        }
+    }
+
+
+    private void send_service_events(
+        UpnpEventHandler handler,
+        int update_count,
+        long raised_time,
+        ArrayList<UpnpEventSubscriber> subscribers)
+        // send events to the subscribers of one service that are out of date.
+        // If the content does not depend on the subscriber, it is gotten once.
+    {
+        String shared_content = null;
+        for (UpnpEventSubscriber subscriber : subscribers)
+        {
+            Utils.log(dbg_event+2,1,"Checking subscriber " + handler.getName() + " : " + subscriber.getUserAgent());
+            Utils.log(dbg_event+2,2,"update_count(" + handler.getName() + ")  subscriber=" + subscriber.getUpdateCount() + "     handler=" + update_count);
+
+            if (subscriber.getUpdateCount() == update_count ||
+                subscriber.expired())   // removed at the next sweep
+                continue;
+
+            Utils.log(dbg_event+1,2,"event needs sending ... ");
+            Utils.log(dbg_event + 1,3,"subscriber=" + subscriber.getUpdateCount() + "     handler=" + update_count);
+
+            // EVENT DATA REQUEST
+            // The upnEventHandlers are synchronized with their
+            // httpEventHandlers so that actions and events are atomic
+
+            String content = shared_content;
+            if (content == null)
+            {
                 synchronized (handler)
                 {
                     content = handler.getEventContent(subscriber);
                 }
+                if (handler.sharesEventContent())
+                    shared_content = content;
+            }
 
-                // SEND THE EVENT
+            // SEND THE EVENT
 
-                subscriber.setUpdateCount(handler.getUpdateCount());
-                asyncNOTIFY send = new asyncNOTIFY(subscriber,content);
-                send.start();
-            }
+            subscriber.setUpdateCount(update_count);
+            queueEvent(subscriber,content,raised_time);
         }
+    }
 
-        // remove expired subscribers
 
+    private void removeExpired()
+    {
+        ArrayList<UpnpEventSubscriber> expired = new ArrayList<UpnpEventSubscriber>();
+        for (UpnpEventSubscriber subscriber:clients.values())
+        {
+            if (subscriber.expired())
+                expired.add(subscriber);
+        }
         for (UpnpEventSubscriber subscriber:expired)
         {
             Utils.log(dbg_event,0,"Expiring(" + subscriber.getHandler().getName() + ") " + subscriber.getSid() + " " + subscriber.getIp() + ":" + subscriber.getPort() + " " + subscriber.getUserAgent());
             remove(subscriber);
         }
-
     }
 
 
 
+    private void queueEvent(UpnpEventSubscriber subscriber, String content, long raised_time)
+        // start a delivery for the subscriber if
+        // there is not already one running
+    {
+        if (subscriber.queueEvent(content,raised_time))
+        {
+            try
+            {
+                notify_executor.execute(new asyncNOTIFY(subscriber));
+            }
+            catch (Exception e)
+            {
+                // the manager has been shut down
+                Utils.warning(0,0,"Could not queue event: " + e);
+                subscriber.cancelEvents();
+                subscriber.takeEvent();
+            }
+        }
+        else
+            Utils.log(dbg_event+1,2,"event queued behind delivery to " + subscriber.getIp() + " depth=" + subscriber.getQueueDepth());
+    }
+
+
     //------------------------------------------
     // asynchronous HTTP Request processor
     //------------------------------------------
 
-    public class asyncNOTIFY extends Thread
-        // fire and forget
+    public class asyncNOTIFY implements Runnable
+        // Sends a subscriber's queued events, in order,
+        // until there are none left.
     {
-        String m_content;
         UpnpEventSubscriber m_subscriber;
 
 
-        private asyncNOTIFY(UpnpEventSubscriber subscriber,String content)
-        // Contruct this and call start() to send the notify
+        private asyncNOTIFY(UpnpEventSubscriber subscriber)
         {
             Utils.log(dbg_event + 3,0,"asyncNOTIFY() ctor called");
             m_subscriber = subscriber;
-            m_content = content;
         }
 
 
         public void run()
-        // called from superclass start()
+        {
+            String content = m_subscriber.takeEvent();
+            while (content != null)
+            {
+                boolean ok = send(content);
+                m_subscriber.eventSent(ok);
+                if (ok)
+                    notify_latency.record(m_subscriber.getLastLatency());
+                content = m_subscriber.takeEvent();
+            }
+        }
+
+
+        private boolean send(String content)
+            // returns true if the subscriber replied 200
         {
             // the http_server may not (should not) be synchronized
             // the invividuaal http handlers are synchrnonized
@@ -320,87 +729,81 @@ public class UpnpEventManager
                 {
                     int show_dbg = 1;
                     String handler_name = m_subscriber.getHandler().getName();
-                    String text = createEventMessage();
+                    stringHash headers = new stringHash();
+                    String text = createEventMessage(headers,content);
                     Utils.log(dbg_event + show_dbg,2,"SENDING MESSAGE\n" + text);
-                    Socket sock = new Socket(m_subscriber.getIp(),Utils.parseInt(m_subscriber.getPort()));
-                    OutputStreamWriter osw = new OutputStreamWriter(sock.getOutputStream(),"UTF-8");
-                    osw.write(text);
-                    osw.flush();
 
-                    InputStream i_stream = new BufferedInputStream(sock.getInputStream());
-                    StringBuilder sb = new StringBuilder();
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(i_stream,"UTF-8"));
+                    // sent on a pooled keep-alive connection, so that
+                    // a steady stream of events to the same control point
+                    // does not open (and TIME_WAIT) a socket per NOTIFY
+
+                    httpConnectionPool.httpResponse reply = httpConnectionPool.request(
+                        m_subscriber.getIp(),
+                        Utils.parseInt(m_subscriber.getPort()),
+                        "NOTIFY",
+                        getUrlPath(),
+                        headers,
+                        text.getBytes("UTF-8"),
+                        NOTIFY_TIMEOUT);
 
                     int use_level = dbg_event + 1;
                     if (handler_name.equals(DEBUG_HANDLER_REPLY))
                         use_level = 0;
 
-                    String line;
-                    Utils.log(use_level,2,"READING REPLY");
-                    line = reader.readLine();
-                    if (line == null)
+                    Utils.log(use_level,2,"REPLY");
+                    Utils.log(use_level,3,reply.status_line);
+                    if (reply.status != 200)
                     {
-                        Utils.error("No reply to " + handler_name + " event");
+                        Utils.error("Bad reply to " + handler_name + " event: " + reply.status_line);
+                        return false;
                     }
-                    else
-                    {
-                        Utils.log(use_level,3,line);
-                        if (!line.contains("200"))
-                        {
-                            Utils.error("Bad reply to " + handler_name + " event: " + line);
-                        }
-                    }
-                    while ((line = reader.readLine()) != null)
-                    {
-                        Utils.log(use_level,3,line);
-                    }
-                    sock.close();
+                    return true;
                 }
                 catch (Exception e)
                 {
-                    Utils.error("Error Sending asyncNOTIFYt to " + m_subscriber.getUrl());
+                    Utils.error("Error Sending asyncNOTIFYt to " + m_subscriber.getUrl() + ": " + e);
+                    return false;
                 }
             }
 
-        }   // networkRequest::run()
+        }   // asyncNOTIFY::send()
 
 
 
-        String createEventMessage()
-            // Create the NOTIFY wrapper around some xml content
-            // that represents an SSDP UPnP "EVENT" notification
+        String getUrlPath()
+        {
+            return m_subscriber.getUrl().replace("http://" + m_subscriber.getIp() + ":" + m_subscriber.getPort(),"");
+        }
+
+
+        String createEventMessage(stringHash headers, String content)
+            // Create the NOTIFY headers and xml content that
+            // represent an SSDP UPnP "EVENT" notification
             // as it's own HTTP method. Bumps the subscriber's
-            // next_event (SEQ) number ....
+            // next_event (SEQ) number .... Returns the content.
+            // HOST and CONTENT-LENGTH are added by the pool.
         {
             String full_content =
                 "<?xml version=\"1.0\"  encoding=\"utf-8\" standalone=\"yes\"?>\r\n" +
                 "<e:propertyset xmlns:e=\"urn:schemas-upnp-org:event-1-0\">" + // "\r\n" +
-                m_content +
+                content +
                 "</e:propertyset>\r\n";
 
             //full_content = full_content.replaceAll("\\n","");
             //full_content = full_content.replaceAll("\\r","");
 
-            String url_path = m_subscriber.getUrl().replace("http://" + m_subscriber.getIp() + ":" + m_subscriber.getPort(),"");
-            String msg = "NOTIFY " + url_path + " HTTP/1.1\r\n";
-            msg += "HOST: " + m_subscriber.getIp() + ":" + m_subscriber.getPort() + "\r\n";
-            msg += "CONTENT-TYPE: text/xml\r\n";
-            msg += "connection: close\r\n";
-            msg += "USER-AGENT: Android/4.4.2 UPnP/1.0 product/version\r\n";
-            msg += "NT: upnp:event\r\n";
-            msg += "NTS: upnp:propchange\r\n";
-            msg += "SID: uuid:" + m_subscriber.getSid() + "\r\n";
-            msg += "SEQ: " + m_subscriber.incEventNum() + "\r\n";
-            msg += "remote-addr: " + Utils.server_ip + "\r\n";
-            msg += "http-client-ip: " + Utils.server_ip + "\r\n";
-            msg += "CONTENT-LENGTH: " + full_content.length() + "\r\n";
-            msg += "\r\n";
-
-            msg += full_content;
+            headers.put("CONTENT-TYPE","text/xml");
+            headers.put("USER-AGENT","Android/4.4.2 UPnP/1.0 product/version");
+            headers.put("NT","upnp:event");
+            headers.put("NTS","upnp:propchange");
+            headers.put("SID","uuid:" + m_subscriber.getSid());
+            headers.put("SEQ",Integer.toString(m_subscriber.incEventNum()));
+            headers.put("remote-addr",Utils.server_ip);
+            headers.put("http-client-ip",Utils.server_ip);
 
             if (m_subscriber.getHandler().getName().equals(DEBUG_HANDLER_EVENT))
-                Utils.log(0,0,"EVENT MESSAGE\n" + msg);
-            return msg;
+                Utils.log(0,0,"EVENT MESSAGE\n" + headers.toString() + "\n" + full_content);
+            return full_content;
         }
 
     }   // class asyncNOTIFY
@@ -410,12 +813,14 @@ public class UpnpEventManager
     // support for EXPOSE_SCHEME
     //---------------------------------------------------------
 
-    public UpnpEventSubscriber findOpenPlaylistSubscriber(String ip, String user_agent)
+    public synchronized UpnpEventSubscriber findOpenPlaylistSubscriber(String ip, String user_agent)
     {
-        for (UpnpEventSubscriber subscriber : clients.values())
+        ArrayList<UpnpEventSubscriber> subscribers = service_subscribers.get("Playlist");
+        if (subscribers == null)
+            return null;
+        for (UpnpEventSubscriber subscriber : subscribers)
         {
-            if (subscriber.getHandler().getName().equals("Playlist") &&
-                subscriber.getIp().equals(ip) &&
+            if (subscriber.getIp().equals(ip) &&
                 subscriber.getUserAgent().equals(user_agent))
             {
                 return subscriber;
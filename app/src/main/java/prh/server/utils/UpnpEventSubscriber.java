@@ -4,6 +4,7 @@
 
 package prh.server.utils;
 
+import java.util.ArrayDeque;
 
 import prh.base.UpnpEventHandler;
 import prh.server.SSDPServer;
@@ -37,6 +38,29 @@ public class UpnpEventSubscriber
 
     private String open_urn = "urn:av-openhome-org:service";
 
+    // delivery state, see UpnpEventManager.queueEvent()
+    // Events waiting to be sent, in order. If the handler
+    // sendsFullState(), a newer event replaces any waiting ones,
+    // so there is at most one. Otherwise (the events are deltas)
+    // they are all kept.
+
+    private ArrayDeque<String> pending = new ArrayDeque<String>();
+    private ArrayDeque<Long> pending_times = new ArrayDeque<Long>();
+    private long sending_time = 0;
+        // when the changes in the pending, and the in-flight,
+        // events were raised (or the events were queued)
+    private boolean delivering = false;
+    private boolean cancelled = false;
+
+    // delivery metrics
+
+    private int num_sent = 0;
+    private int num_failed = 0;
+    private int num_dropped = 0;
+    private long last_latency = 0;
+    private long max_latency = 0;
+    private long total_latency = 0;
+
 
     public UpnpEventSubscriber(UpnpEventHandler the_handler,String notification_url,String user_agent)
     {
@@ -62,6 +86,103 @@ public class UpnpEventSubscriber
     public int getUpdateCount()             { return update_count; }
     public void setUpdateCount(int count)   { update_count = count; }
 
+    //-------------------------------------------
+    // delivery
+    //-------------------------------------------
+
+    public synchronized boolean queueEvent(String content, long raised_time)
+        // Queue an event, replacing any that have not been sent
+        // if the handler sendsFullState(). Returns true if the
+        // caller should start a delivery, false if one is
+        // already running for this subscriber.
+    {
+        if (cancelled)
+            return false;
+        long queued_time = raised_time;
+        if (!pending.isEmpty() && handler.sendsFullState())
+        {
+            num_dropped += pending.size();
+            pending.clear();
+            queued_time = pending_times.getFirst();
+            pending_times.clear();
+        }
+        pending.addLast(content);
+        pending_times.addLast(queued_time);
+        if (delivering)
+            return false;
+        delivering = true;
+        return true;
+    }
+
+
+    public synchronized String takeEvent()
+        // Get the next event to send, or null, which ends the delivery.
+    {
+        if (cancelled || pending.isEmpty())
+        {
+            delivering = false;
+            return null;
+        }
+        sending_time = pending_times.removeFirst();
+        return pending.removeFirst();
+    }
+
+
+    public synchronized void eventSent(boolean ok)
+        // latency is from when the (oldest replaced) event was raised
+    {
+        if (!ok)
+        {
+            num_failed++;
+            return;
+        }
+        num_sent++;
+        last_latency = System.currentTimeMillis() - sending_time;
+        total_latency += last_latency;
+        if (last_latency > max_latency)
+            max_latency = last_latency;
+    }
+
+
+    public synchronized void cancelEvents()
+        // the subscriber is gone, drop anything not yet sent
+    {
+        cancelled = true;
+        num_dropped += pending.size();
+        pending.clear();
+        pending_times.clear();
+    }
+
+
+    public synchronized int getQueueDepth()
+        // events waiting or being sent
+    {
+        return pending.size() + (delivering ? 1 : 0);
+    }
+
+    public synchronized int getNumSent()        { return num_sent; }
+    public synchronized int getNumFailed()      { return num_failed; }
+    public synchronized int getNumDropped()     { return num_dropped; }
+    public synchronized long getLastLatency()   { return last_latency; }
+    public synchronized long getMaxLatency()    { return max_latency; }
+
+    public synchronized long getAverageLatency()
+    {
+        return num_sent == 0 ? 0 : total_latency / num_sent;
+    }
+
+
+    public String getStats()
+    {
+        return handler.getName() + " " + getIp() + ":" + getPort() +
+            " depth=" + getQueueDepth() +
+            " sent=" + getNumSent() +
+            " failed=" + getNumFailed() +
+            " dropped=" + getNumDropped() +
+            " latency=" + getLastLatency() + "/" + getAverageLatency() + "/" + getMaxLatency() + "ms";
+    }
+
+
     public String getIp()
     {
         return Utils.ipFromUrl(url);
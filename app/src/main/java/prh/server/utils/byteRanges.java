@@ -0,0 +1,204 @@
+//----------------------------------------------------------
+// byteRanges - RFC 7233 Range header parsing
+//----------------------------------------------------------
+// Parses a "Range: bytes=..." header against the size of a
+// file, and decides how it should be answered:
+//
+//     FULL            200 with the whole file. The header was missing,
+//                     not a byte range, syntactically invalid, or an
+//                     If-Range validator did not match.
+//     PARTIAL         206 with one or more ranges. Overlapping and
+//                     adjacent ranges are merged, so more than one range
+//                     remaining means a multipart/byteranges response.
+//     UNSATISFIABLE   416 with "Content-Range: bytes */size".
+//
+// Supports first-last, open ended first-, and suffix -length
+// specs. Last positions past the end of the file are clamped.
+
+package prh.server.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+
+public class byteRanges
+{
+    public static enum how
+    {
+        FULL,
+        PARTIAL,
+        UNSATISFIABLE
+    }
+
+    private static int MAX_RANGES = 16;
+        // more specs than this in one header is treated as
+        // abuse and answered with the whole file
+
+    public static class range
+    {
+        public long start;
+        public long end;      // inclusive
+
+        range(long start, long end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long length()  { return end - start + 1; }
+
+        public String contentRange(long size)
+        {
+            return "bytes " + start + "-" + end + "/" + size;
+        }
+    }
+
+    private how result;
+    private ArrayList<range> ranges = new ArrayList<range>();
+
+    public how getHow()                     { return result; }
+    public ArrayList<range> getRanges()     { return ranges; }
+    public boolean isMultipart()            { return result == how.PARTIAL && ranges.size() > 1; }
+
+    public static String unsatisfiedContentRange(long size)
+    {
+        return "bytes */" + size;
+    }
+
+
+    public byteRanges(String header, long size)
+    {
+        result = parse(header,size);
+    }
+
+
+    private how parse(String header, long size)
+    {
+        if (header == null)
+            return how.FULL;
+        header = header.trim();
+        if (header.length() < 6 ||
+            !header.substring(0,6).equalsIgnoreCase("bytes="))
+            return how.FULL;
+
+        String specs[] = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES)
+            return how.FULL;
+
+        for (String spec : specs)
+        {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0)
+                return how.FULL;
+
+            String first = spec.substring(0,dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+
+            if (first.isEmpty())
+            {
+                // suffix range -length
+
+                long suffix = parseLong(last);
+                if (suffix < 0)
+                    return how.FULL;
+                if (suffix == 0 || size == 0)
+                    continue;   // unsatisfiable spec
+                start = Math.max(0,size - suffix);
+                end = size - 1;
+            }
+            else
+            {
+                start = parseLong(first);
+                end = last.isEmpty() ? Long.MAX_VALUE : parseLong(last);
+                if (start < 0 || end < 0 || end < start)
+                    return how.FULL;
+                if (start >= size)
+                    continue;   // unsatisfiable spec
+                end = Math.min(end,size - 1);
+            }
+            ranges.add(new range(start,end));
+        }
+
+        if (ranges.isEmpty())
+            return how.UNSATISFIABLE;
+
+        coalesce();
+        return how.PARTIAL;
+    }
+
+
+    private void coalesce()
+        // merge overlapping and adjacent ranges
+    {
+        if (ranges.size() < 2)
+            return;
+
+        Collections.sort(ranges,new Comparator<range>()
+        {
+            public int compare(range a, range b)
+            {
+                return a.start < b.start ? -1 : a.start > b.start ? 1 : 0;
+            }
+        });
+
+        ArrayList<range> merged = new ArrayList<range>();
+        range cur = ranges.get(0);
+        for (int i=1; i<ranges.size(); i++)
+        {
+            range next = ranges.get(i);
+            if (next.start <= cur.end + 1)
+                cur.end = Math.max(cur.end,next.end);
+            else
+            {
+                merged.add(cur);
+                cur = next;
+            }
+        }
+        merged.add(cur);
+        ranges = merged;
+    }
+
+
+    private static long parseLong(String s)
+        // digits only, returns -1 for anything else
+    {
+        if (s.isEmpty() || s.length() > 18)
+            return -1;
+        long value = 0;
+        for (int i=0; i<s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+
+    //--------------------------------------------
+    // If-Range
+    //--------------------------------------------
+
+    public static boolean ifRangeMatches(String if_range, String etag, String last_modified)
+        // Returns true if the Range header should be honored.
+        // An entity tag must match our (strong) etag exactly,
+        // weak tags never match. Otherwise it is an http-date
+        // which must exactly match our Last-Modified.
+    {
+        if (if_range == null)
+            return true;
+        if_range = if_range.trim();
+        if (if_range.startsWith("W/"))
+            return false;
+        if (if_range.startsWith("\""))
+            return if_range.equals(etag);
+        return if_range.equals(last_modified);
+    }
+
+
+}   // class byteRanges
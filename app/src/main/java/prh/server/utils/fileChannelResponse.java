@@ -0,0 +1,268 @@
+//----------------------------------------------------------
+// fileChannelResponse - stream byte ranges of a file
+//----------------------------------------------------------
+// A fixed length NanoHTTPD.Response whose body is sent from
+// memory mapped windows of a FileChannel, rather than through a
+// FileInputStream (skip() to the range start, then a 16K byte[]
+// copy loop in Response.sendBody()).
+//
+// This is not zero copy. NanoHTTPD's sockets are not channel
+// backed, so the bytes still go through a byte[] on their way
+// to the socket stream. But they are copied once, straight from
+// the mapped pages, with no read() calls, and each window starts
+// at the exact start of its range, so seeks and tag probes at
+// the end of a file only touch the bytes requested. The file is
+// closed when the response has been sent, or failed to send.
+//
+// A response with more than one range is sent as
+// multipart/byteranges, with each part's headers written
+// between the transfers.
+//
+// HEAD requests get the same headers (including the real
+// Content-Length) but no body.
+//
+// HTTPServer claims a stream slot in the httpWorkerPool for a
+// response with a body, and this response gives it back when
+// it has been sent, or failed to send.
+
+package prh.server.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.iki.elonen.NanoHTTPD;
+import prh.utils.Utils;
+
+
+public class fileChannelResponse extends NanoHTTPD.Response
+{
+    private static int dbg_fcr = 1;
+
+    private static long MAP_WINDOW = 1024 * 1024;
+        // bytes mapped at a time, so that a long range
+        // does not map the whole file at once
+    private static int WRITE_CHUNK = 64 * 1024;
+        // bytes copied from the mapping per write()
+
+    private static AtomicInteger next_boundary = new AtomicInteger();
+        // responses are built on many server threads at once
+
+    private static class part
+    {
+        byte header[];      // multipart headers, or null
+        long start;
+        long length;
+    }
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private List<part> parts;
+    private byte trailer[];
+        // closing multipart boundary, or null
+    private httpWorkerPool stream_pool = null;
+        // the pool whose stream slot this response holds, if any
+
+
+    public static fileChannelResponse create(
+        NanoHTTPD.Response.IStatus status,
+        String mime_type,
+        File ifile,
+        long start,
+        long length)
+        // a single range of the file
+        // returns null if the file could not be opened
+    {
+        part the_part = new part();
+        the_part.start = start;
+        the_part.length = length;
+        List<part> parts = new ArrayList<part>();
+        parts.add(the_part);
+        return open(status,mime_type,ifile,parts,null,length);
+    }
+
+
+    public static fileChannelResponse createMultipart(
+        String mime_type,
+        File ifile,
+        long size,
+        List<byteRanges.range> ranges)
+        // a 206 multipart/byteranges response
+        // returns null if the file could not be opened
+    {
+        String boundary = "ARTISAN_BYTERANGES_" + Integer.toString(next_boundary.getAndIncrement());
+        List<part> parts = new ArrayList<part>();
+        long total = 0;
+
+        for (byteRanges.range range : ranges)
+        {
+            String header =
+                "\r\n--" + boundary + "\r\n" +
+                "Content-Type: " + mime_type + "\r\n" +
+                "Content-Range: " + range.contentRange(size) + "\r\n" +
+                "\r\n";
+            part the_part = new part();
+            the_part.header = header.getBytes();
+            the_part.start = range.start;
+            the_part.length = range.length();
+            parts.add(the_part);
+            total += the_part.header.length + the_part.length;
+        }
+
+        byte trailer[] = ("\r\n--" + boundary + "--\r\n").getBytes();
+        total += trailer.length;
+
+        return open(
+            NanoHTTPD.Response.Status.PARTIAL_CONTENT,
+            "multipart/byteranges; boundary=" + boundary,
+            ifile,parts,trailer,total);
+    }
+
+
+    private static fileChannelResponse open(
+        NanoHTTPD.Response.IStatus status,
+        String mime_type,
+        File ifile,
+        List<part> parts,
+        byte trailer[],
+        long total)
+    {
+        try
+        {
+            RandomAccessFile file = new RandomAccessFile(ifile,"r");
+            return new fileChannelResponse(status,mime_type,file,parts,trailer,total);
+        }
+        catch (IOException e)
+        {
+            Utils.error("could not open file=" + ifile.getPath() + " exception=" + e);
+        }
+        return null;
+    }
+
+
+    private fileChannelResponse(
+        NanoHTTPD.Response.IStatus status,
+        String mime_type,
+        RandomAccessFile file,
+        List<part> parts,
+        byte trailer[],
+        long total)
+    {
+        // the empty stream is never read. It is only there so
+        // that Response.send() writes Content-Length: total
+
+        super(status,mime_type,new ByteArrayInputStream(new byte[0]),total);
+        this.file = file;
+        this.channel = file.getChannel();
+        this.parts = parts;
+        this.trailer = trailer;
+    }
+
+
+    public void setStreamPool(httpWorkerPool pool)
+        // called by HTTPServer when it has claimed
+        // a stream slot in the pool for this response
+    {
+        stream_pool = pool;
+    }
+
+
+    public void abandon()
+        // called by HTTPServer if this response
+        // will not be sent after all
+    {
+        close();
+    }
+
+
+    @Override
+    protected void send(OutputStream output_stream)
+    {
+        try
+        {
+            super.send(output_stream);
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+
+    @Override
+    protected void sendBody(OutputStream output_stream, long unused_pending) throws IOException
+        // unused_pending is -1 if NanoHTTPD decided to gzip or chunk
+        // the response. Either way we send exactly our parts.
+    {
+        if (getRequestMethod() == NanoHTTPD.Method.HEAD)
+            return;
+
+        byte chunk[] = new byte[WRITE_CHUNK];
+        for (part the_part : parts)
+        {
+            if (the_part.header != null)
+                output_stream.write(the_part.header);
+            if (!transfer(output_stream,chunk,the_part.start,the_part.length))
+                return;
+        }
+        if (trailer != null)
+            output_stream.write(trailer);
+    }
+
+
+    private boolean transfer(OutputStream out, byte chunk[], long position, long remaining) throws IOException
+        // map the range a window at a time, and write
+        // each window to the stream in chunks
+    {
+        Utils.log(dbg_fcr+1,0,"fileChannelResponse.transfer(" + position + "," + remaining + ")");
+        while (remaining > 0)
+        {
+            long window = Math.min(remaining,MAP_WINDOW);
+            if (position + window > channel.size())
+            {
+                Utils.warning(0,0,"fileChannelResponse short file at " + position + " with " + remaining + " bytes remaining");
+                return false;
+            }
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,position,window);
+            while (mapped.hasRemaining())
+            {
+                int len = Math.min(mapped.remaining(),chunk.length);
+                mapped.get(chunk,0,len);
+                out.write(chunk,0,len);
+            }
+            position += window;
+            remaining -= window;
+        }
+        return true;
+    }
+
+
+    private void close()
+    {
+        try
+        {
+            if (file != null)
+                file.close();   // closes the channel too
+        }
+        catch (IOException e)
+        {
+            Utils.warning(0,0,"Could not close fileChannelResponse: " + e);
+        }
+        file = null;
+        channel = null;
+
+        if (stream_pool != null)
+            stream_pool.endStream();
+        stream_pool = null;
+    }
+
+
+}   // class fileChannelResponse
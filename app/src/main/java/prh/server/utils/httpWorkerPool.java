@@ -0,0 +1,275 @@
+//---------------------------------------------------------
+// httpWorkerPool - bounded AsyncRunner for the HTTPServer
+//---------------------------------------------------------
+// Replaces NanoHTTPD.DefaultAsyncRunner, which creates a new
+// Thread for every accepted socket.
+//
+// Connections are run on a fixed size pool of worker threads
+// with a bounded queue in front of it. The pool is divided into
+// two "lanes". Requests run in the control lane (SOAP actions,
+// event subscriptions, descriptions, icons) except while a media
+// file is being sent. Before sending one, HTTPServer calls
+// startStream() to take a slot in the stream lane, and the
+// fileChannelResponse calls endStream() when it has been sent.
+// The stream lane is limited to STREAM_THREADS, so long lived
+// streams can never take the threads needed by control points
+// polling GetPositionInfo, Time, etc.
+//
+// When the queue is full, the connection is given a bare 503
+// and closed from the accept thread. When the stream lane is
+// full, startStream() returns false and HTTPServer returns a 503
+// for that request.
+
+package prh.server.utils;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.iki.elonen.NanoHTTPD;
+import prh.utils.Utils;
+
+
+public class httpWorkerPool implements
+    NanoHTTPD.AsyncRunner
+{
+    private static int dbg_pool = 1;
+
+    public static int CONTROL_THREADS = 6;
+        // threads reserved for short soap/control requests
+    public static int STREAM_THREADS = 4;
+        // maximum number of simultaneous media streams
+    public static int QUEUE_DEPTH = 16;
+        // connections waiting for a thread before we 503 them
+    private static int IDLE_SECONDS = 30;
+        // idle worker threads die after this long
+
+    private static String REJECT_RESPONSE =
+        "HTTP/1.1 503 Service Unavailable\r\n" +
+        "Content-Length: 0\r\n" +
+        "Retry-After: 1\r\n" +
+        "Connection: close\r\n" +
+        "\r\n";
+
+    private ThreadPoolExecutor executor;
+    private final List<NanoHTTPD.ClientHandler> running =
+        Collections.synchronizedList(new ArrayList<NanoHTTPD.ClientHandler>());
+
+    // metrics
+
+    private final AtomicInteger active_streams = new AtomicInteger(0);
+    private final AtomicInteger peak_active = new AtomicInteger(0);
+    private final AtomicInteger peak_streams = new AtomicInteger(0);
+    private final AtomicInteger total_connections = new AtomicInteger(0);
+    private final AtomicInteger total_streams = new AtomicInteger(0);
+    private final AtomicInteger total_requests = new AtomicInteger(0);
+    private final AtomicInteger rejected_connections = new AtomicInteger(0);
+    private final AtomicInteger rejected_streams = new AtomicInteger(0);
+
+    public int getQueueDepth()          { return executor.getQueue().size(); }
+    public int getActiveCount()         { return executor.getActiveCount(); }
+    public int getPoolSize()            { return executor.getPoolSize(); }
+    public int getActiveStreams()       { return active_streams.get(); }
+    public int getPeakActive()          { return peak_active.get(); }
+    public int getPeakStreams()         { return peak_streams.get(); }
+    public int getTotalConnections()    { return total_connections.get(); }
+    public int getTotalStreams()        { return total_streams.get(); }
+    public int getTotalRequests()       { return total_requests.get(); }
+    public int getRejectedConnections() { return rejected_connections.get(); }
+    public int getRejectedStreams()     { return rejected_streams.get(); }
+
+
+    public httpWorkerPool()
+    {
+        int num_threads = CONTROL_THREADS + STREAM_THREADS;
+        executor = new ThreadPoolExecutor(
+            num_threads,
+            num_threads,
+            IDLE_SECONDS,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_DEPTH),
+            new workerFactory(),
+            new rejectHandler());
+        executor.allowCoreThreadTimeOut(true);
+        Utils.log(dbg_pool,0,"httpWorkerPool(" + CONTROL_THREADS + "," + STREAM_THREADS + "," + QUEUE_DEPTH + ") created");
+    }
+
+
+    public void shutdown()
+        // called by HTTPServer.stop() after closeAll()
+    {
+        Utils.log(dbg_pool,0,"httpWorkerPool.shutdown() " + getStats());
+        executor.shutdownNow();
+    }
+
+
+    public String getStats()
+    {
+        return
+            "threads=" + getPoolSize() +
+            " active=" + getActiveCount() + "/" + getPeakActive() +
+            " queued=" + getQueueDepth() +
+            " streams=" + getActiveStreams() + "/" + getPeakStreams() +
+            " connections=" + getTotalConnections() +
+            " requests=" + getTotalRequests() +
+            " total_streams=" + getTotalStreams() +
+            " rejected=" + getRejectedConnections() +
+            " rejected_streams=" + getRejectedStreams();
+    }
+
+
+    //----------------------------------------------
+    // stream lane
+    //----------------------------------------------
+
+    public boolean startStream()
+        // Called by HTTPServer before sending the body of a
+        // media stream. Returns false if the stream lane is full.
+        // Every true must be followed by one endStream().
+    {
+        while (true)
+        {
+            int cur = active_streams.get();
+            if (cur >= STREAM_THREADS)
+            {
+                rejected_streams.incrementAndGet();
+                Utils.warning(0,0,"httpWorkerPool stream lane full " + getStats());
+                return false;
+            }
+            if (active_streams.compareAndSet(cur,cur + 1))
+            {
+                updatePeak(peak_streams,cur + 1);
+                break;
+            }
+        }
+
+        total_streams.incrementAndGet();
+        Utils.log(dbg_pool+1,0,"startStream() " + getStats());
+        return true;
+    }
+
+
+    public void endStream()
+        // called by fileChannelResponse when the stream
+        // has been sent, or failed to send
+    {
+        active_streams.decrementAndGet();
+        Utils.log(dbg_pool+1,0,"endStream() " + getStats());
+    }
+
+
+    public void requestServed()
+        // Called by HTTPServer for every request. More requests
+        // than connections means control points are reusing
+        // keep-alive connections.
+    {
+        total_requests.incrementAndGet();
+    }
+
+
+    private static void updatePeak(AtomicInteger peak, int value)
+    {
+        int cur = peak.get();
+        while (value > cur && !peak.compareAndSet(cur,value))
+            cur = peak.get();
+    }
+
+
+    //----------------------------------------------
+    // NanoHTTPD.AsyncRunner
+    //----------------------------------------------
+
+    @Override
+    public void closeAll()
+    {
+        // copy of the list for concurrency
+        for (NanoHTTPD.ClientHandler client : new ArrayList<NanoHTTPD.ClientHandler>(running))
+        {
+            client.close();
+        }
+    }
+
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler client)
+    {
+        running.remove(client);
+    }
+
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler client)
+        // called from the NanoHTTPD accept thread
+    {
+        total_connections.incrementAndGet();
+        running.add(client);
+        executor.execute(new connectionRunner(client));
+    }
+
+
+    private class connectionRunner implements Runnable
+    {
+        NanoHTTPD.ClientHandler client;
+
+        connectionRunner(NanoHTTPD.ClientHandler client)
+        {
+            this.client = client;
+        }
+
+        public void run()
+        {
+            updatePeak(peak_active,executor.getActiveCount());
+            client.run();
+        }
+    }
+
+
+    private class rejectHandler implements RejectedExecutionHandler
+        // the pool and queue are full, so send a bare
+        // 503 on the socket and close the connection
+    {
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor unused_executor)
+        {
+            rejected_connections.incrementAndGet();
+            NanoHTTPD.ClientHandler client = ((connectionRunner) runnable).client;
+            Utils.warning(0,0,"httpWorkerPool rejecting connection " + getStats());
+            try
+            {
+                Socket socket = client.getSocket();
+                OutputStream ostream = socket.getOutputStream();
+                ostream.write(REJECT_RESPONSE.getBytes());
+                ostream.flush();
+            }
+            catch (Exception e)
+            {
+                Utils.warning(0,0,"Could not send 503 response: " + e);
+            }
+            client.close();
+            running.remove(client);
+        }
+    }
+
+
+    private static class workerFactory implements ThreadFactory
+    {
+        private final AtomicInteger thread_num = new AtomicInteger(0);
+
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.setName("httpWorker(" + thread_num.incrementAndGet() + ")");
+            return thread;
+        }
+    }
+
+
+}   // class httpWorkerPool
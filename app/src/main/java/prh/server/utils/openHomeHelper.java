@@ -1,5 +1,8 @@
 package prh.server.utils;
 
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
 import prh.artisan.Track;
 import prh.base.HelpablePlaylist;
 import prh.base.ServablePlaylistHelper;
@@ -19,6 +22,35 @@ public class openHomeHelper implements
     private HelpablePlaylist parent;
     private intTrackHash tracks_by_open_id;
 
+    // The IdArray, kept in playlist order as the big-endian
+    // bytes that get base64 encoded, and updated in place by
+    // addTrack() and delTrack(). The encoded string is cached
+    // until the ids change, so repeated IdArray actions and
+    // Playlist events from any number of control points
+    // share one encoding.
+
+    private byte id_bytes[] = new byte[64];
+    private int num_ids = 0;
+    private int id_version = 0;
+    private int encoded_version = -1;
+    private String encoded_ids = null;
+
+    // ReadList <Entry>s, already encoded as the value of the
+    // outer TrackList element, by track, and good as long as the
+    // track (and the server uri in it) has not changed.
+
+    private static class readListEntry
+    {
+        int version;
+        int open_id;
+            // the open id is set without bumping the version
+        String server_uri;
+        String text;
+    }
+
+    private IdentityHashMap<Track,readListEntry> entries =
+        new IdentityHashMap<Track,readListEntry>();
+
     // do nothing for the ServablePlaylist Inteface
 
     //-------------------------------------------------
@@ -30,10 +62,10 @@ public class openHomeHelper implements
         this.parent = parent;
         tracks_by_open_id = new intTrackHash();
         trackList tracks_by_position = parent.getTrackListRef();
-        for (int i = 0; i < tracks_by_open_id.size(); i++)
+        synchronized (tracks_by_position)
         {
-            Track track = tracks_by_position.get(i);
-            addTrack(track);
+            for (int i = 0; i < tracks_by_position.size(); i++)
+                addTrack(tracks_by_position.get(i),i);
         }
     }
 
@@ -46,20 +78,80 @@ public class openHomeHelper implements
         parent = null;
     }
 
-    public void clear()
+    public synchronized void clear()
     {
         tracks_by_open_id.clear();
+        entries.clear();
+        num_ids = 0;
+        id_version++;
+    }
+
+    public synchronized void addTrack(Track track)
+        // called before the track is added to the parent's
+        // track list, with the track's (one based) position set
+    {
+        addTrack(track,track.getPosition() - 1);
     }
 
-    public void addTrack(Track track)
+    private void addTrack(Track track, int index)
     {
         track.setOpenId(next_open_id);
         tracks_by_open_id.put(next_open_id++,track);
+
+        index = Math.max(0,Math.min(num_ids,index));
+        if ((num_ids + 1) * 4 > id_bytes.length)
+            id_bytes = Arrays.copyOf(id_bytes,id_bytes.length * 2);
+        System.arraycopy(id_bytes,index * 4,id_bytes,(index + 1) * 4,(num_ids - index) * 4);
+        putId(index,track.getOpenId());
+        num_ids++;
+        id_version++;
     }
 
-    public void delTrack(Track track)
+    public synchronized void delTrack(Track track)
+        // called before the track is removed from the parent's track list
     {
         tracks_by_open_id.remove(track.getOpenId());
+        entries.remove(track);
+
+        int index = parent.getTrackListRef().indexOf(track);
+        if (index < 0 || index >= num_ids)
+        {
+            Utils.warning(0,0,"openHomeHelper.delTrack() could not find track(" + track.getOpenId() + ") ... rebuilding IdArray");
+            rebuildIds(track);
+        }
+        else
+        {
+            System.arraycopy(id_bytes,(index + 1) * 4,id_bytes,index * 4,(num_ids - index - 1) * 4);
+            num_ids--;
+        }
+        id_version++;
+    }
+
+
+    private void putId(int index, int id)
+    {
+        id_bytes[index * 4 + 0] = (byte) ((id >> 24) & 0xFF);
+        id_bytes[index * 4 + 1] = (byte) ((id >> 16) & 0xFF);
+        id_bytes[index * 4 + 2] = (byte) ((id >> 8) & 0xFF);
+        id_bytes[index * 4 + 3] = (byte) (id & 0xFF);
+    }
+
+
+    private void rebuildIds(Track except)
+        // rebuild the ids from the parent's track list
+        // leaving out a track that is about to be removed
+    {
+        trackList tracks_by_position = parent.getTrackListRef();
+        synchronized (tracks_by_position)
+        {
+            num_ids = 0;
+            id_bytes = new byte[Math.max(64,tracks_by_position.size() * 4)];
+            for (Track track : tracks_by_position)
+            {
+                if (track != except)
+                    putId(num_ids++,track.getOpenId());
+            }
+        }
     }
 
 
@@ -155,42 +247,47 @@ public class openHomeHelper implements
 
 
     @Override
-    public String getIdArrayString(playlistExposer exposer)
+    public synchronized String getIdArrayString(playlistExposer exposer)
     // return a base64 encoded array of integers
-    // May be called with a playlistExposer or not
+    // May be called with a playlistExposer or not.
+    // Without one, the cached encoding is returned.
     {
-        int num_ids = 0;
-        int num_available = tracks_by_open_id.size();
-
-        byte data[] = new byte[num_available * 4];
-        Utils.log(dbg_ida,0,"getIdArrayString() num_tracks=" + num_available);
+        if (exposer == null)
+        {
+            if (encoded_version != id_version)
+            {
+                encoded_ids = Base64.encode(Arrays.copyOf(id_bytes,num_ids * 4));
+                encoded_version = id_version;
+                Utils.log(dbg_ida,0,"getIdArrayString() encoded num_ids=" + num_ids);
+                Utils.log(dbg_ida + 1,1,"id_array='" + encoded_ids + "'");
+            }
+            return encoded_ids;
+        }
 
-        // show debugging for the exposer, if any
+        // an exposer only sees some of the tracks
 
-        if (exposer != null)
-            Utils.log(dbg_ida,1,"exposer(" + exposer.getUserAgent() + ") num_exposed=" + exposer.getNumExposed());
+        int num_exposed = 0;
+        byte data[] = new byte[num_ids * 4];
+        Utils.log(dbg_ida,0,"getIdArrayString() num_tracks=" + num_ids);
+        Utils.log(dbg_ida,1,"exposer(" + exposer.getUserAgent() + ") num_exposed=" + exposer.getNumExposed());
 
-        for (int position = 1; position <= num_available; position++)
+        for (int i = 0; i < num_ids; i++)
         {
-            Track track = parent.getTrack(position);
-
-            if (exposer == null || exposer.isExposed(track))
+            int id =
+                ((id_bytes[i * 4 + 0] & 0xFF) << 24) |
+                ((id_bytes[i * 4 + 1] & 0xFF) << 16) |
+                ((id_bytes[i * 4 + 2] & 0xFF) << 8) |
+                (id_bytes[i * 4 + 3] & 0xFF);
+            Track track = tracks_by_open_id.get(id);
+            if (track != null && exposer.isExposed(track))
             {
-                int id = track.getOpenId();
-                data[num_ids * 4 + 0] = (byte) ((id >> 24) & 0xFF);
-                data[num_ids * 4 + 1] = (byte) ((id >> 16) & 0xFF);
-                data[num_ids * 4 + 2] = (byte) ((id >> 8) & 0xFF);
-                data[num_ids * 4 + 3] = (byte) (id & 0xFF);
-                num_ids++;
+                System.arraycopy(id_bytes,i * 4,data,num_exposed * 4,4);
+                num_exposed++;
             }
         }
 
-        byte data2[] = new byte[num_ids * 4];
-        for (int i = 0; i < num_ids * 4; i++)
-            data2[i] = data[i];
-
-        String retval = Base64.encode(data2);
-        Utils.log(dbg_ida + 1,1,"id_array Length=" + num_ids);
+        String retval = Base64.encode(Arrays.copyOf(data,num_exposed * 4));
+        Utils.log(dbg_ida + 1,1,"id_array Length=" + num_exposed);
         Utils.log(dbg_ida + 1,1,"id_array='" + retval + "'");
         return retval;
     }
@@ -199,7 +296,16 @@ public class openHomeHelper implements
     @Override
     public String id_array_to_tracklist(int ids[])
     {
-        String rslt = "";
+        // took a while to figure this ...
+        //
+        // This is an INNER <TrackList> that is Didl encoded.
+        // It is the VALUE of a regular XML <Tracklist> element
+        // in the ReadList result. Since encode_lite() encodes
+        // character by character, each entry is encoded (and
+        // cached) on its own, and the list is just appended.
+
+        StringBuilder rslt = new StringBuilder();
+        rslt.append(httpUtils.encode_lite("<TrackList>"));
         for (int i = 0; i < ids.length; i++)
         {
             int id = ids[i];
@@ -209,23 +315,36 @@ public class openHomeHelper implements
                 Utils.error("id_array_to_tracklist: index(" + i + ")  id(" + id + ") not found");
                 return httpUtils.encode_lite("<TrackList></TrackList>");
             }
-
-            rslt += "<Entry>" + // \n" +
-                "<Id>" + id + "</Id>" + // "\n" +
-                "<Uri>" + track.getPublicUri() + "</Uri>" + // "\n" +
-                "<Metadata>" + track.getDidl() + "</Metadata>" + // "\n" +
-                "</Entry>"; // \n";
+            rslt.append(getReadListEntry(track));
         }
+        rslt.append(httpUtils.encode_lite("</TrackList>"));
+        return rslt.toString();
+    }
 
-        // took a while to figure this ...
-        //
-        // This is an INNER <TrackList> that is Didl encoded.
-        // It is the VALUE of a regular XML <Tracklist> element
-        // in the ReadList result.
 
-        rslt = "<TrackList>" + rslt + "</TrackList>";
-        rslt = httpUtils.encode_lite(rslt);
-        return rslt;
+    private synchronized String getReadListEntry(Track track)
+    {
+        readListEntry entry = entries.get(track);
+        int version = track.getVersion();
+        int open_id = track.getOpenId();
+        if (entry == null ||
+            entry.version != version ||
+            entry.open_id != open_id ||
+            entry.server_uri != Utils.server_uri)
+        {
+            entry = new readListEntry();
+            entry.version = version;
+            entry.open_id = open_id;
+            entry.server_uri = Utils.server_uri;
+            entry.text = httpUtils.encode_lite(
+                "<Entry>" +
+                "<Id>" + open_id + "</Id>" +
+                "<Uri>" + track.getPublicUri() + "</Uri>" +
+                "<Metadata>" + track.getDidl() + "</Metadata>" +
+                "</Entry>");
+            entries.put(track,entry);
+        }
+        return entry.text;
     }
 
 }   // class openHomeHelper
@@ -1,9 +1,222 @@
 package prh.types;
 
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.RandomAccess;
 
 import prh.artisan.Track;
 
-public class trackList extends LinkedList<Track>
+public class trackList extends AbstractList<Track> implements RandomAccess
+    // The tracks of a playlist, by position.
+    //
+    // The tracks are kept in a gap buffer, so get(index) is O(1),
+    // and an insert or delete only moves the tracks between the
+    // last edit and this one. Runs of edits at or near the same
+    // place (i.e. appending, or inserting after the track just
+    // inserted) are O(1) each.
+    //
+    // indexOf() finds a track by identity, not Track.equals(),
+    // through a map of track to index. Edits only remember the lowest
+    // index that moved, and the map is renumbered from there on the
+    // next lookup, so lookups between edits are O(1), and a burst of
+    // edits costs one O(N) renumbering.
+    //
+    // As a lookup can renumber the map, even reads change state, and
+    // the list is read by the HTTP server threads and the UI thread at
+    // once. So every public method is synchronized on the list. As with
+    // Collections.synchronizedList(), a caller iterating over the list
+    // while others may edit it must hold the list's lock itself.
 {
+    private static int MIN_CAPACITY = 16;
+
+    private Track buffer[] = new Track[MIN_CAPACITY];
+    private int gap_start = 0;
+    private int gap_end = MIN_CAPACITY;
+        // the gap is buffer[gap_start..gap_end-1]
+
+    private IdentityHashMap<Track,Integer> index_of = new IdentityHashMap<Track,Integer>();
+    private int valid_to = 0;
+        // index_of is complete for indexes below valid_to.
+        // Entries are checked against the buffer when used,
+        // as a removed track may leave a stale one behind.
+
+
+    @Override public synchronized int size()
+    {
+        return buffer.length - (gap_end - gap_start);
+    }
+
+
+    @Override public synchronized Track get(int index)
+    {
+        checkIndex(index,size());
+        return buffer[index < gap_start ? index : index + gap_end - gap_start];
+    }
+
+
+    @Override public synchronized Track set(int index, Track track)
+    {
+        checkIndex(index,size());
+        int at = index < gap_start ? index : index + gap_end - gap_start;
+        Track old = buffer[at];
+        buffer[at] = track;
+        if (old != track)
+        {
+            forget(old,index);
+            invalidate(index);
+        }
+        return old;
+    }
+
+
+    @Override public synchronized void add(int index, Track track)
+    {
+        checkIndex(index,size() + 1);
+        if (gap_start == gap_end)
+            grow();
+        moveGap(index);
+        buffer[gap_start++] = track;
+        invalidate(index);
+        modCount++;
+    }
+
+
+    @Override public synchronized Track remove(int index)
+    {
+        checkIndex(index,size());
+        moveGap(index);
+        Track track = buffer[gap_end];
+        buffer[gap_end++] = null;
+        forget(track,index);
+        invalidate(index);
+        modCount++;
+        return track;
+    }
+
+
+    @Override public synchronized boolean remove(Object track)
+    {
+        int index = indexOf(track);
+        if (index < 0)
+            return false;
+        remove(index);
+        return true;
+    }
+
+
+    @Override public synchronized void clear()
+    {
+        buffer = new Track[MIN_CAPACITY];
+        gap_start = 0;
+        gap_end = MIN_CAPACITY;
+        index_of.clear();
+        valid_to = 0;
+        modCount++;
+    }
+
+
+    @Override public synchronized int indexOf(Object track)
+        // O(1) unless the list was edited since the last lookup
+    {
+        if (!(track instanceof Track))
+            return -1;
+        Integer index = index_of.get(track);
+        if (index != null && index < valid_to && get(index) == track)
+            return index;
+        reindex();
+        index = index_of.get(track);
+        if (index == null)
+            return -1;
+        if (index >= size() || get(index) != track)
+        {
+            index_of.remove(track);     // stale, no longer in the list
+            return -1;
+        }
+        return index;
+    }
+
+
+    @Override public synchronized boolean contains(Object track)
+    {
+        return indexOf(track) >= 0;
+    }
+
+
+    //-----------------------------------------
+    // implementation
+    //-----------------------------------------
+
+    private static void checkIndex(int index, int limit)
+    {
+        if (index < 0 || index >= limit)
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + limit);
+    }
+
+
+    private void invalidate(int index)
+        // tracks at or above index may have moved
+    {
+        if (index < valid_to)
+            valid_to = index;
+    }
+
+
+    private void forget(Track track, int index)
+        // drop the entry for a track leaving the list at index
+    {
+        Integer prev = index_of.get(track);
+        if (prev != null && prev == index)
+            index_of.remove(track);
+    }
+
+
+    private void reindex()
+        // renumber the tracks at or after valid_to.
+        // If a track is in the list twice, the
+        // lowest index wins, as with List.indexOf().
+    {
+        int size = size();
+        for (int index = valid_to; index < size; index++)
+        {
+            Track track = get(index);
+            Integer prev = index_of.get(track);
+            if (prev == null || prev >= index || get(prev) != track)
+                index_of.put(track,index);
+        }
+        valid_to = size;
+    }
+
+
+    private void moveGap(int index)
+    {
+        if (index < gap_start)
+        {
+            int num = gap_start - index;
+            System.arraycopy(buffer,index,buffer,gap_end - num,num);
+            Arrays.fill(buffer,index,Math.min(gap_start,gap_end - num),null);
+            gap_start -= num;
+            gap_end -= num;
+        }
+        else if (index > gap_start)
+        {
+            int num = index - gap_start;
+            System.arraycopy(buffer,gap_end,buffer,gap_start,num);
+            Arrays.fill(buffer,Math.max(gap_end,gap_start + num),gap_end + num,null);
+            gap_start += num;
+            gap_end += num;
+        }
+    }
+
+
+    private void grow()
+    {
+        Track bigger[] = new Track[Math.max(MIN_CAPACITY,buffer.length * 2)];
+        int tail = buffer.length - gap_end;
+        System.arraycopy(buffer,0,bigger,0,gap_start);
+        System.arraycopy(buffer,gap_end,bigger,bigger.length - tail,tail);
+        buffer = bigger;
+        gap_end = bigger.length - tail;
+    }
+
 }
@@ -39,6 +39,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -376,11 +377,33 @@ public class Utils {
     }
 
 
+    private static ConcurrentHashMap<String,Pattern> extract_patterns =
+        new ConcurrentHashMap<String,Pattern>();
+        // compiled extract_re() patterns, by re.
+        // The callers all pass constant re's.
+
+    public static Pattern extract_pattern(String re)
+        // compile an re for extract_re(), once
+    {
+        Pattern pattern = extract_patterns.get(re);
+        if (pattern == null)
+        {
+            pattern = Pattern.compile(re,Pattern.CASE_INSENSITIVE);
+            extract_patterns.put(re,pattern);
+        }
+        return pattern;
+    }
+
     public static String extract_re(String re, String value)
         // apply an re to a string value
         // return "", or the first matching group
     {
-        Pattern pattern = Pattern.compile(re,Pattern.CASE_INSENSITIVE);
+        return extract_re(extract_pattern(re),value);
+    }
+
+    public static String extract_re(Pattern pattern, String value)
+        // same, with a pattern from extract_pattern()
+    {
         Matcher matcher = pattern.matcher(value);
         if (matcher.find())
         {
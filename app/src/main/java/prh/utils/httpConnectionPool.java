@@ -0,0 +1,630 @@
+//----------------------------------------------------------
+// httpConnectionPool - keep-alive client connections
+//----------------------------------------------------------
+// A minimal HTTP/1.1 client with persistent, per-host connections
+// for our outbound UPnP traffic (SOAP actions from Device.doAction()
+// and NOTIFY events from the UpnpEventManager).
+//
+// Idle sockets are kept per ip:port and reused for the next request
+// to the same device, so polling and eventing do not pay a TCP
+// connect for every message. Idle sockets are evicted after
+// IDLE_TIMEOUT (a bit less than NanoHTTPD's 5 second keep-alive),
+// when the host is next used, or by a sweep of every host that
+// runs while any socket is idle, so that a device that is no longer
+// polled, or a subscriber that went away, does not keep them open.
+// A request that fails on a reused socket before getting any reply
+// is retried once on a fresh connection, since the device may have
+// closed it in the meantime, but only if none of the request could
+// have reached the device, or the request is idempotent (GET, HEAD,
+// or a SOAP read the caller says may be repeated). Otherwise an
+// Insert, DeleteId or Seek could be acted on twice.
+//
+// Responses must be delimited by Content-Length or chunked encoding
+// for the socket to be reused. Read-to-close responses, or a
+// "Connection: close" from the device, close the socket.
+
+package prh.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import prh.types.stringHash;
+
+
+public class httpConnectionPool
+{
+    private static int dbg_pool = 1;
+
+    private static int CONNECT_TIMEOUT = 3000;
+    private static int READ_TIMEOUT = 10000;
+        // same overall limit the old networkRequest had
+    private static int IDLE_TIMEOUT = 4000;
+        // evict idle sockets before the device does
+    private static int MAX_IDLE_PER_HOST = 2;
+
+    // counters
+
+    private static final AtomicInteger num_requests = new AtomicInteger(0);
+    private static final AtomicInteger num_reused = new AtomicInteger(0);
+    private static final AtomicInteger num_opened = new AtomicInteger(0);
+    private static final AtomicInteger num_evicted = new AtomicInteger(0);
+    private static final AtomicInteger num_stale_retries = new AtomicInteger(0);
+
+    public static int getNumRequests()      { return num_requests.get(); }
+    public static int getNumReused()        { return num_reused.get(); }
+    public static int getNumOpened()        { return num_opened.get(); }
+    public static int getNumEvicted()       { return num_evicted.get(); }
+    public static int getNumStaleRetries()  { return num_stale_retries.get(); }
+
+    public static int getReusePercent()
+    {
+        int requests = num_requests.get();
+        return requests == 0 ? 0 : (100 * num_reused.get()) / requests;
+    }
+
+    public static String getStats()
+    {
+        return
+            "requests=" + getNumRequests() +
+            " reused=" + getNumReused() + "(" + getReusePercent() + "%)" +
+            " opened=" + getNumOpened() +
+            " evicted=" + getNumEvicted() +
+            " stale_retries=" + getNumStaleRetries();
+    }
+
+
+    //-------------------------------------------
+    // types
+    //-------------------------------------------
+
+    public static class httpResponse
+    {
+        public int status = 0;
+        public String status_line = "";
+        public stringHash headers = new stringHash();
+            // lower case header names
+        public byte body[] = new byte[0];
+        boolean keep_alive = false;
+    }
+
+
+    private static class pooledSocket
+    {
+        String key;
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+        long last_used;
+        boolean reused;
+    }
+
+    private static final HashMap<String,ArrayList<pooledSocket>> idle_sockets =
+        new HashMap<String,ArrayList<pooledSocket>>();
+
+    private static ScheduledThreadPoolExecutor sweep_timer = null;
+    private static ScheduledFuture<?> sweep_task = null;
+        // both guarded by idle_sockets. The sweep runs only
+        // while there are idle sockets, and its thread times
+        // out when it is not needed.
+
+
+    //-------------------------------------------
+    // API
+    //-------------------------------------------
+
+    public static httpResponse request(
+        String ip,
+        int port,
+        String method,
+        String path,
+        stringHash headers,
+        byte body[]) throws IOException
+    {
+        return request(ip,port,method,path,headers,body,READ_TIMEOUT);
+    }
+
+
+    public static httpResponse request(
+        String ip,
+        int port,
+        String method,
+        String path,
+        stringHash headers,
+        byte body[],
+        int timeout) throws IOException
+    {
+        boolean idempotent = method.equals("GET") || method.equals("HEAD");
+        return request(ip,port,method,path,headers,body,timeout,idempotent);
+    }
+
+
+    public static httpResponse request(
+        String ip,
+        int port,
+        String method,
+        String path,
+        stringHash headers,
+        byte body[],
+        int timeout,
+        boolean idempotent) throws IOException
+        // Sends the request and returns the response, or throws
+        // an IOException. HOST, CONTENT-LENGTH and CONNECTION
+        // headers are added here. The timeout (millis) applies to
+        // each read of the response. idempotent requests may be
+        // resent after a stale connection, even if they were sent.
+    {
+        String key = ip + ":" + port;
+        byte request[] = buildRequest(ip,port,method,path,headers,body);
+        num_requests.incrementAndGet();
+
+        pooledSocket pooled = acquire(key,ip,port);
+        httpResponse response;
+        try
+        {
+            try
+            {
+                response = send(pooled,request,method,timeout);
+            }
+            catch (staleException e)
+            {
+                // the device closed the idle socket before we used it
+                close(pooled);
+                if (e.request_sent && !idempotent)
+                {
+                    Utils.warning(0,0,"not resending " + method + " to " + key + " after " + e.getMessage());
+                    throw e;
+                }
+                num_stale_retries.incrementAndGet();
+                Utils.log(dbg_pool,0,"retrying stale connection to " + key);
+                pooled = open(key,ip,port);
+                response = send(pooled,request,method,timeout);
+            }
+        }
+        catch (IOException e)
+        {
+            close(pooled);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            close(pooled);
+            throw new IOException("bad response from " + key + ": " + e);
+        }
+
+        if (response.keep_alive)
+            release(pooled);
+        else
+            close(pooled);
+
+        return response;
+    }
+
+
+    public static void closeAll()
+    {
+        synchronized (idle_sockets)
+        {
+            for (ArrayList<pooledSocket> list : idle_sockets.values())
+            {
+                for (pooledSocket pooled : list)
+                    close(pooled);
+            }
+            idle_sockets.clear();
+            stopSweep();
+        }
+        Utils.log(dbg_pool,0,"httpConnectionPool.closeAll() " + getStats());
+    }
+
+
+    //-------------------------------------------
+    // pool
+    //-------------------------------------------
+
+    private static pooledSocket acquire(String key, String ip, int port) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        synchronized (idle_sockets)
+        {
+            ArrayList<pooledSocket> list = idle_sockets.get(key);
+            while (list != null && !list.isEmpty())
+            {
+                pooledSocket pooled = list.remove(list.size() - 1);
+                if (now - pooled.last_used < IDLE_TIMEOUT &&
+                    !pooled.socket.isClosed())
+                {
+                    pooled.reused = true;
+                    num_reused.incrementAndGet();
+                    return pooled;
+                }
+                num_evicted.incrementAndGet();
+                close(pooled);
+            }
+        }
+        return open(key,ip,port);
+    }
+
+
+    private static pooledSocket open(String key, String ip, int port) throws IOException
+    {
+        Socket socket = new Socket();
+        try
+        {
+            socket.connect(new InetSocketAddress(ip,port),CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            socket.setTcpNoDelay(true);
+        }
+        catch (IOException e)
+        {
+            try { socket.close(); } catch (Exception e2) {}
+            throw e;
+        }
+
+        pooledSocket pooled = new pooledSocket();
+        pooled.key = key;
+        pooled.socket = socket;
+        pooled.in = new BufferedInputStream(socket.getInputStream());
+        pooled.out = socket.getOutputStream();
+        pooled.reused = false;
+        num_opened.incrementAndGet();
+        Utils.log(dbg_pool+1,0,"opened connection to " + key);
+        return pooled;
+    }
+
+
+    private static void release(pooledSocket pooled)
+        // return a socket to the pool, and
+        // evict any idle ones that have timed out
+    {
+        long now = System.currentTimeMillis();
+        pooled.last_used = now;
+        synchronized (idle_sockets)
+        {
+            ArrayList<pooledSocket> list = idle_sockets.get(pooled.key);
+            if (list == null)
+            {
+                list = new ArrayList<pooledSocket>();
+                idle_sockets.put(pooled.key,list);
+            }
+
+            evictIdle(list,now);
+            if (list.size() < MAX_IDLE_PER_HOST)
+                list.add(pooled);
+            else
+                close(pooled);
+            startSweep();
+        }
+    }
+
+
+    private static void evictIdle(ArrayList<pooledSocket> list, long now)
+        // called with idle_sockets
+    {
+        Iterator<pooledSocket> it = list.iterator();
+        while (it.hasNext())
+        {
+            pooledSocket idle = it.next();
+            if (now - idle.last_used >= IDLE_TIMEOUT)
+            {
+                it.remove();
+                num_evicted.incrementAndGet();
+                close(idle);
+            }
+        }
+    }
+
+
+    //-------------------------------------------
+    // sweep
+    //-------------------------------------------
+
+    private static void startSweep()
+        // called with idle_sockets
+    {
+        if (sweep_task != null)
+            return;
+        if (sweep_timer == null)
+        {
+            sweep_timer = new ScheduledThreadPoolExecutor(1,new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable);
+                    thread.setDaemon(true);
+                    thread.setName("httpPoolSweep");
+                    return thread;
+                }
+            });
+            sweep_timer.setKeepAliveTime(IDLE_TIMEOUT * 2,TimeUnit.MILLISECONDS);
+            sweep_timer.allowCoreThreadTimeOut(true);
+        }
+        sweep_task = sweep_timer.scheduleWithFixedDelay(
+            sweep,IDLE_TIMEOUT / 2,IDLE_TIMEOUT / 2,TimeUnit.MILLISECONDS);
+    }
+
+
+    private static void stopSweep()
+        // called with idle_sockets
+    {
+        if (sweep_task != null)
+            sweep_task.cancel(false);
+        sweep_task = null;
+    }
+
+
+    private static Runnable sweep = new Runnable()
+        // evict timed out sockets of every host, and
+        // stop sweeping when there are none left
+    {
+        public void run()
+        {
+            long now = System.currentTimeMillis();
+            synchronized (idle_sockets)
+            {
+                Iterator<ArrayList<pooledSocket>> it = idle_sockets.values().iterator();
+                while (it.hasNext())
+                {
+                    ArrayList<pooledSocket> list = it.next();
+                    evictIdle(list,now);
+                    if (list.isEmpty())
+                        it.remove();
+                }
+                if (idle_sockets.isEmpty())
+                    stopSweep();
+            }
+        }
+    };
+
+
+    private static void close(pooledSocket pooled)
+    {
+        try { pooled.socket.close(); } catch (Exception e) {}
+    }
+
+
+    //-------------------------------------------
+    // protocol
+    //-------------------------------------------
+
+    private static class staleException extends IOException
+    {
+        final boolean request_sent;
+            // the whole request was written before the failure
+
+        staleException(String msg, boolean sent)
+        {
+            super(msg);
+            request_sent = sent;
+        }
+    }
+
+
+    private static byte[] buildRequest(
+        String ip,
+        int port,
+        String method,
+        String path,
+        stringHash headers,
+        byte body[])
+    {
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(" ").append(path).append(" HTTP/1.1\r\n");
+        head.append("HOST: ").append(ip).append(":").append(port).append("\r\n");
+        if (headers != null)
+        {
+            for (String key : headers.keySet())
+                head.append(key).append(": ").append(headers.get(key)).append("\r\n");
+        }
+        head.append("CONNECTION: keep-alive\r\n");
+        head.append("CONTENT-LENGTH: ").append(body == null ? 0 : body.length).append("\r\n");
+        head.append("\r\n");
+
+        byte head_bytes[] = head.toString().getBytes();
+        if (body == null || body.length == 0)
+            return head_bytes;
+        byte request[] = new byte[head_bytes.length + body.length];
+        System.arraycopy(head_bytes,0,request,0,head_bytes.length);
+        System.arraycopy(body,0,request,head_bytes.length,body.length);
+        return request;
+    }
+
+
+    private static httpResponse send(pooledSocket pooled, byte request[], String method, int timeout) throws IOException
+        // throws staleException if a reused socket fails
+        // before any of the response has been read
+    {
+        String status_line;
+        boolean sent = false;
+        try
+        {
+            pooled.socket.setSoTimeout(timeout);
+            pooled.out.write(request);
+            pooled.out.flush();
+            sent = true;
+            status_line = readLine(pooled.in);
+        }
+        catch (SocketTimeoutException e)
+        {
+            throw e;    // the device got the request, do not resend it
+        }
+        catch (IOException e)
+        {
+            if (pooled.reused)
+                throw new staleException(e.toString(),sent);
+            throw e;
+        }
+        if (status_line == null)
+        {
+            if (pooled.reused)
+                throw new staleException("connection closed",true);
+            throw new IOException("no response from " + pooled.key);
+        }
+
+        httpResponse response = new httpResponse();
+        response.status_line = status_line;
+        String parts[] = status_line.split(" ");
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+            throw new IOException("bad status line '" + status_line + "' from " + pooled.key);
+        response.status = Utils.parseInt(parts[1]);
+
+        String line;
+        while ((line = readLine(pooled.in)) != null && !line.isEmpty())
+        {
+            int pos = line.indexOf(':');
+            if (pos > 0)
+            {
+                String name = line.substring(0,pos).trim().toLowerCase();
+                String value = line.substring(pos + 1).trim();
+                response.headers.put(name,value);
+            }
+        }
+        if (line == null)
+            throw new IOException("truncated headers from " + pooled.key);
+
+        // HTTP/1.1 is persistent unless it says close,
+        // HTTP/1.0 only if it says keep-alive
+
+        String connection = response.headers.get("connection");
+        if (connection == null)
+            connection = "";
+        connection = connection.toLowerCase();
+        response.keep_alive = parts[0].equals("HTTP/1.0") ?
+            connection.contains("keep-alive") :
+            !connection.contains("close");
+
+        // body
+
+        String length = response.headers.get("content-length");
+        String encoding = response.headers.get("transfer-encoding");
+
+        if (method.equals("HEAD") ||
+            response.status == 204 ||
+            response.status == 304 ||
+            (response.status >= 100 && response.status < 200))
+        {
+            response.body = new byte[0];
+        }
+        else if (encoding != null && encoding.toLowerCase().contains("chunked"))
+        {
+            response.body = readChunked(pooled.in);
+        }
+        else if (length != null)
+        {
+            response.body = readFully(pooled.in,parseLength(length,10));
+        }
+        else
+        {
+            // read to close, cannot be reused
+            response.keep_alive = false;
+            response.body = readToEnd(pooled.in);
+        }
+        return response;
+    }
+
+
+    private static String readLine(InputStream in) throws IOException
+        // read a CRLF (or LF) terminated header line
+        // returns null at end of stream
+    {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1)
+        {
+            if (c == '\n')
+            {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r')
+                    line.setLength(len - 1);
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+
+    private static byte[] readFully(InputStream in, int length) throws IOException
+    {
+        byte buf[] = new byte[length];
+        int offset = 0;
+        while (offset < length)
+        {
+            int got = in.read(buf,offset,length - offset);
+            if (got < 0)
+                throw new IOException("short body " + offset + " of " + length);
+            offset += got;
+        }
+        return buf;
+    }
+
+
+    private static byte[] readChunked(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true)
+        {
+            String size_line = readLine(in);
+            if (size_line == null)
+                throw new IOException("truncated chunked body");
+            int semi = size_line.indexOf(';');
+            if (semi >= 0)
+                size_line = size_line.substring(0,semi);
+            int size = parseLength(size_line.trim(),16);
+            if (size == 0)
+                break;
+            body.write(readFully(in,size));
+            readLine(in);   // CRLF after the chunk
+        }
+
+        // skip trailers
+
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {}
+        return body.toByteArray();
+    }
+
+
+    private static int parseLength(String value, int radix) throws IOException
+        // a Content-Length or chunk size, which must be a
+        // non-negative number, or the response is broken
+    {
+        int length;
+        try
+        {
+            length = Integer.parseInt(value.trim(),radix);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("bad length '" + value + "'");
+        }
+        if (length < 0)
+            throw new IOException("negative length '" + value + "'");
+        return length;
+    }
+
+
+    private static byte[] readToEnd(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte buf[] = new byte[4096];
+        int got;
+        while ((got = in.read(buf)) > 0)
+            body.write(buf,0,got);
+        return body.toByteArray();
+    }
+
+
+}   // class httpConnectionPool
@@ -2,6 +2,7 @@ package prh.utils;
 
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -9,10 +10,13 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Locale;
+import java.util.TimeZone;
 
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -57,71 +61,173 @@ public class httpUtils
     // encoding
     //-------------------------
 
+    // The encoders and decoder make a single pass over the
+    // string, and return it as is if there is nothing to do,
+    // which is the case for most titles, artists, etc.
+
     public static String encode_lite(String in)
         // didl-lite encoding
+        // does not encode quotes
+    {
+        if (in == null)
+            return "";
+        int len = in.length();
+        int i = 0;
+        while (i < len && !isLiteSpecial(in.charAt(i)))
+            i++;
+        if (i == len)
+            return in;
+
+        StringBuilder out = new StringBuilder(len + 32);
+        out.append(in,0,i);
+        for (; i < len; i++)
+        {
+            char c = in.charAt(i);
+            switch (c)
+            {
+                case '&': out.append("&amp;"); break;
+                case '<': out.append("&lt;"); break;
+                case '>': out.append("&gt;"); break;
+                default: out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static boolean isLiteSpecial(char c)
     {
-        if (in==null) in = "";
-        String out = in;
-        // old: out = out.replaceAll("&","&amp;amp;");
-        // new:
-        out = out.replaceAll("&","&amp;");
-        // new does not encode quotes
-        // out = out.replaceAll("\"","&quot;");
-        out = out.replaceAll("<","&lt;");
-        out = out.replaceAll(">","&gt;");
-        return out;
+        return c == '&' || c == '<' || c == '>';
     }
 
 
     public static String encode_xml(String value)
         // regular xml encoding
+        // & " < and > and anything outside of
+        // 0x20..0x7f are encoded as &#nn;
     {
-        // old: value = value.replaceAll("&","&amp;amp;");
-        // new, could be done by single re below
+        if (value == null)
+            return "";
+        int len = value.length();
+        int i = 0;
+        while (i < len && !isXmlSpecial(value.charAt(i)))
+            i++;
+        if (i == len)
+            return value;
+
+        StringBuilder out = new StringBuilder(len + 32);
+        out.append(value,0,i);
+        for (; i < len; i++)
+        {
+            char c = value.charAt(i);
+            if (c == '&')
+                out.append("&amp;");
+            else if (isXmlSpecial(c))
+                out.append("&#").append((int) c).append(';');
+            else
+                out.append(c);
+        }
+        return out.toString();
+    }
 
-        value = value.replaceAll("&","&amp;");
-        value = value.replaceAll("\"","&#34;");
-        value = value.replaceAll("<","&#60;");
-        value = value.replaceAll(">","&#62;");
+    private static boolean isXmlSpecial(char c)
+    {
+        return c < 0x20 || c > 0x7f || c == '&' || c == '"' || c == '<' || c == '>';
+    }
 
-        // same old code
 
-        Pattern pattern = Pattern.compile("[^\\x20-\\x7f]");
-        StringBuffer output = new StringBuffer();
-        Matcher matcher = pattern.matcher(value);
-        while (matcher.find())
+    public static String decode_xml(String value)
+        // url decode a single value in the didl
+        //
+        // Like the chain of replaceAll()s this replaced, &amp; is
+        // decoded first, so that a doubly encoded "&amp;lt;" becomes
+        // "<", but "&amp;amp;" only becomes "&amp;".
+    {
+        if (value == null)
+            return "";
+        int amp = value.indexOf('&');
+        if (amp < 0)
+            return value;
+
+        int len = value.length();
+        StringBuilder out = new StringBuilder(len);
+        out.append(value,0,amp);
+        int i = amp;
+        while (i < len)
         {
-            String rep = matcher.group();
-            rep = "&#" + ((int) rep.charAt(0)) + ";";
-            matcher.appendReplacement(output, rep);
+            char c = value.charAt(i);
+            if (c != '&')
+            {
+                out.append(c);
+                i++;
+                continue;
+            }
+
+            // the entity starts after "&", or after "&amp;"
+
+            int at = i + 1;
+            boolean had_amp = value.startsWith("amp;",at);
+            if (had_amp)
+                at += 4;
+
+            int end = decodeEntity(value,at,out);
+            if (end > 0)
+                i = end;
+            else
+            {
+                out.append('&');
+                i = had_amp ? at : i + 1;
+            }
         }
-        matcher.appendTail(output);
-        return output.toString();
+        return out.toString();
     }
 
 
-    public static String decode_xml(String value)
-        // url decode a single value in the didl
+    private static int decodeEntity(String value, int at, StringBuilder out)
+        // decode the entity name at value[at] (after the &)
+        // returns the index past the ';' or -1 if not one we decode
     {
-        value = value.replaceAll("&amp;","&");
-        value = value.replaceAll("&quote;","\"");
-        value = value.replaceAll("&lt;","<");
-        value = value.replaceAll("&gt;",">");
-
-        Pattern pattern = Pattern.compile("&#(\\d+);");
-        StringBuffer output = new StringBuffer();
-        Matcher matcher = pattern.matcher(value);
-        while (matcher.find())
+        if (value.startsWith("lt;",at))
+        {
+            out.append('<');
+            return at + 3;
+        }
+        if (value.startsWith("gt;",at))
+        {
+            out.append('>');
+            return at + 3;
+        }
+        if (value.startsWith("quot;",at))
+        {
+            out.append('"');
+            return at + 5;
+        }
+        if (value.startsWith("quote;",at))
+        {
+            out.append('"');
+            return at + 6;
+        }
+        if (value.startsWith("apos;",at))
         {
-            String rep = matcher.group();
-            char chr = (char) Utils.parseInt((rep));
-            rep = "" + chr;
-            matcher.appendReplacement(output, rep);
+            out.append('\'');
+            return at + 5;
         }
-        matcher.appendTail(output);
-        value = output.toString();
-        // value = value.replaceAll("&amp;amp;","&");
-        return value;
+        if (value.startsWith("#",at))
+        {
+            int code = 0;
+            int i = at + 1;
+            while (i < value.length() && i < at + 8 &&
+                   value.charAt(i) >= '0' && value.charAt(i) <= '9')
+            {
+                code = code * 10 + (value.charAt(i) - '0');
+                i++;
+            }
+            if (i > at + 1 && i < value.length() && value.charAt(i) == ';' && code <= 0xFFFF)
+            {
+                out.append((char) code);
+                return i + 1;
+            }
+        }
+        return -1;
     }
 
 
@@ -143,9 +249,7 @@ public class httpUtils
         String action)
         // The default OK response is just an empty SSDP response (with soap body)
     {
-        String xml = httpUtils.action_response_header(urn,service,action);
-        xml = xml + httpUtils.action_response_footer(urn,action,"");
-        return server.newFixedLengthResponse(NanoHTTPD.Response.Status.OK,"text/xml", xml);
+        return new soapResponse(urn,service,action).toResponse(server);
     }
 
 
@@ -158,9 +262,9 @@ public class httpUtils
     {
         Utils.log(dbg_dlna_utils,0,"raw_file_response(" + full_path + ")");
         String mime_type =
-            full_path.matches(".*\\.jpg$") ? "image/jpeg" :
-            full_path.matches(".*\\.m3u$") ? "text/plain" : // doesn't work:  "application/vnd.apple.mpegurl" :
-            full_path.matches(".*\\.xspf$") ? "text/plain":  // works: application/xspf+xml" :
+            full_path.endsWith(".jpg") ? "image/jpeg" :
+            full_path.endsWith(".m3u") ? "text/plain" : // doesn't work:  "application/vnd.apple.mpegurl" :
+            full_path.endsWith(".xspf") ? "text/plain":  // works: application/xspf+xml" :
             "";
 
         if (mime_type.equals(""))
@@ -189,6 +293,16 @@ public class httpUtils
 
 
 
+    public static String http_date(long millis)
+        // RFC 1123 date for Last-Modified, etc
+    {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+
+
     public static String start_didl()
     {
         return "<DIDL-Lite " +
@@ -205,36 +319,22 @@ public class httpUtils
     }
 
 
+    // Replies are built with a soapResponse.
+    // These return the header and footer as Strings.
+
     public static String action_response_header(String urn, String service, String action)
     {
-        String xml = "<?xml version=\"1.0\"?>" +
-            "<s:Envelope " +
-            "xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
-            "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">" +
-            "<s:Body>" +
-            "<u:" + action + "Response xmlns:u=\"urn:" + urn + ":service:" + service + ":1\">";
-
-        // open home does not have a wrapper tag
-        // each command is different
-        // dlna wraps it in <Result>
-
-        if (!urn.equals(open_service_urn))
-            xml += "<Result>";
-
-        return xml;
+        StringBuilder xml = new StringBuilder(256);
+        soapResponse.appendHeader(xml,urn,service,action);
+        return xml.toString();
     }
 
 
     public static String action_response_footer(String urn, String action, String extra)
     {
-        String xml = "";
-        if (!urn.equals(open_service_urn))
-            xml += "</Result>";
-        xml += extra +
-            "</u:" + action + "Response>"+
-            "</s:Body>"+
-            "</s:Envelope>";
-        return xml;
+        StringBuilder xml = new StringBuilder(64 + extra.length());
+        soapResponse.appendFooter(xml,urn,action,extra);
+        return xml.toString();
     }
 
     public static boolean dbg_hash_response = false;
@@ -246,12 +346,10 @@ public class httpUtils
         String action,
         HashMap<String,String> hash)
     {
-        String xml = action_response_header(urn,service,action);
-        xml += hashToXMLString(hash,false);
-        xml +=  action_response_footer(urn,action,"");
+        soapResponse xml = new soapResponse(urn,service,action).appendHash(hash).finish();
         if (dbg_hash_response)
             Utils.log(0,0,service + " " + action + "Response\n" + xml);
-        return server.newFixedLengthResponse(NanoHTTPD.Response.Status.OK,"text/xml", xml);
+        return xml.toResponse(server);
     }
 
 
@@ -278,15 +376,9 @@ public class httpUtils
     public static String hashToXMLString(HashMap<String,String> hash,boolean property_set)
     // property_set adds <e:property>..</e:property> around the elements
     {
-        String rslt = "";
-        for (String key : hash.keySet())
-        {
-            String part = "<" + key + ">" + hash.get(key) + "</" + key + ">";
-            if (property_set)
-                part = "<e:property>" + part + "</e:property>";
-            rslt += part;
-        }
-        return rslt;
+        StringBuilder rslt = new StringBuilder();
+        soapResponse.appendHash(rslt,hash,property_set);
+        return rslt.toString();
     }
 
 
@@ -323,49 +415,70 @@ public class httpUtils
     }
 
 
-
-
-    //---------------------------------------------------------
-    // xml parsing
-    //---------------------------------------------------------
-
-    public static Document get_xml_from_post(NanoHTTPD.IHTTPSession session)
-    // after the fact get POST body from session stream
-    // and parse it into xml
+    public static stringHash parseLastChange(Document doc)
+        // Parse the LastChange variable of an event we received
+        // into a hash of variable names to their val attributes,
+        // for InstanceID 0, and the Master channel (or no channel).
+        // Returns null if there is no LastChange in the event.
     {
-        InputStream input_stream = session.getInputStream();
-        Integer content_length = Utils.parseInt(session.getHeaders().get("content-length"));
-
-        int count = 0;
-        int RETRIES = 20;
-        int INTERVAL = 50;
+        String last_change = Utils.getTagValue(doc.getDocumentElement(),"LastChange");
+        if (last_change.isEmpty())
+            return null;
 
-        int offset = 0;
-        int remaining = content_length;
-        byte[] buf = new byte[content_length];
-
-        while (count++<RETRIES && remaining > 0) try
+        stringHash values = new stringHash();
+        try
         {
-            int got = session.getInputStream().read(buf,offset,remaining);
-            if (got < remaining)
+            Document event_doc = parse_xml(last_change.getBytes("UTF-8"));
+            Element instance = Utils.getTagElement(event_doc.getDocumentElement(),"InstanceID");
+            if (instance == null)
+                return values;
+
+            NodeList children = instance.getChildNodes();
+            for (int i=0; i<children.getLength(); i++)
             {
-                Utils.log(2,0,"waiting for xml");
-                Utils.sleep(INTERVAL);
+                Node node = children.item(i);
+                if (node.getNodeType() != Node.ELEMENT_NODE)
+                    continue;
+                Element ele = (Element) node;
+                String channel = ele.getAttribute("channel");
+                if (!channel.isEmpty() && !channel.equals("Master"))
+                    continue;
+                String name = ele.getTagName().replaceAll("^.*:","");
+                values.put(name,ele.getAttribute("val"));
             }
-            offset += got;
-            remaining -= got;
         }
         catch (Exception e)
         {
-            Utils.warning(0,0,"Error reading xml: content_len=" + content_length + " offset=" + offset + " remaining=" + remaining + " exception:"+e);
-            offset = 0;
+            Utils.warning(0,0,"Could not parse LastChange: " + e);
         }
+        return values;
+    }
+
+
+
+
+    //---------------------------------------------------------
+    // xml parsing
+    //---------------------------------------------------------
+
+    private static DocumentBuilderFactory builder_factory = DocumentBuilderFactory.newInstance();
+    private static ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>();
+        // reused per thread, and reset() between documents
+
+
+    public static Document get_xml_from_post(NanoHTTPD.IHTTPSession session)
+    // after the fact get POST body from session stream
+    // and parse it into xml. Used for the events we receive.
+    // Actions are parsed into a soapRequest instead.
+    {
+        byte buf[] = soapRequest.readBody(session);
+        if (buf == null)
+            return null;
 
         Document doc = null;
-        if (offset == content_length)   try
+        try
         {
-            ByteArrayInputStream buf_stream = new ByteArrayInputStream(buf);
-            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(buf_stream);
+            doc = parse_xml(buf);
             if (doc == null)
                 Utils.error("document build returned a null document");
         }
@@ -379,41 +492,57 @@ public class httpUtils
     }
 
 
+    public static Document parse_xml(byte buf[]) throws Exception
+        // parse a document with this thread's DocumentBuilder
+    {
+        DocumentBuilder builder = builders.get();
+        if (builder == null)
+        {
+            synchronized (builder_factory)
+            {
+                builder = builder_factory.newDocumentBuilder();
+            }
+            builders.set(builder);
+        }
+        try
+        {
+            return builder.parse(new ByteArrayInputStream(buf));
+        }
+        finally
+        {
+            builder.reset();
+        }
+    }
 
-    public static String getXMLString(Document doc, String field, boolean with_error)
+
+
+    public static String getXMLString(soapRequest args, String field, boolean with_error)
     {
-        String retval = "";
-        if (doc == null)
+        if (args == null)
         {
             if (with_error)
             {
-                Utils.error("null doc in getXMLString(" + field + ")");
+                Utils.error("null args in getXMLString(" + field + ")");
             }
             return "";
         }
-        NodeList list = doc.getElementsByTagName(field);
-        if (list.getLength() == 0)
+        String retval = args.get(field);
+        if (retval == null)
         {
             if (with_error)
             {
                 Utils.error("could not find field " + field + " in get_xml_params()");
             }
-        }
-        else
-        {
-            Node item = list.item(0);
-            retval = item.getTextContent();
-            // might need to get the content of the node
-            // for SOAPENV namespace
+            retval = "";
         }
         return retval;
     }
 
 
 
-    public static int getXMLInt(Document doc, String field, boolean with_error)
+    public static int getXMLInt(soapRequest args, String field, boolean with_error)
     {
-        String s = getXMLString(doc,field,with_error);
+        String s = getXMLString(args,field,with_error);
         if (s==null || s.equals("")) return 0;
         return Utils.parseInt(s);
     }
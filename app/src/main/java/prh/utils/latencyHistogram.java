@@ -0,0 +1,96 @@
+//----------------------------------------------------------
+// latencyHistogram - counts of latencies in millisecond bins
+//----------------------------------------------------------
+// The bins are powers of two (<1ms, <2ms, <4ms ... <32s, and
+// everything longer), so record() is a few shifts and an
+// increment, and percentiles are good to within a factor of two.
+// record() may be called from any thread.
+
+package prh.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+public class latencyHistogram
+{
+    private static int NUM_BINS = 17;
+        // bin i holds latencies < 2^i ms, the last holds the rest
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BINS);
+    private volatile long max_latency = 0;
+
+
+    public latencyHistogram(String the_name)
+    {
+        name = the_name;
+    }
+
+
+    public void record(long millis)
+    {
+        int bin = 0;
+        while (bin < NUM_BINS - 1 && millis >= (1L << bin))
+            bin++;
+        counts.incrementAndGet(bin);
+        if (millis > max_latency)
+            max_latency = millis;
+    }
+
+
+    public long getCount()
+    {
+        long count = 0;
+        for (int i=0; i<NUM_BINS; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+
+    public long getMax()
+    {
+        return max_latency;
+    }
+
+
+    public long getPercentile(int percent)
+        // returns the upper bound of the bin holding the
+        // given percentile, or the max for the last bin
+    {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+        long want = (count * percent + 99) / 100;
+        long seen = 0;
+        for (int i=0; i<NUM_BINS - 1; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= want)
+                return 1L << i;
+        }
+        return max_latency;
+    }
+
+
+    public void clear()
+    {
+        for (int i=0; i<NUM_BINS; i++)
+            counts.set(i,0);
+        max_latency = 0;
+    }
+
+
+    public String toString()
+    {
+        String rslt = name + " count=" + getCount() +
+            " p50<" + getPercentile(50) +
+            " p90<" + getPercentile(90) +
+            " p99<" + getPercentile(99) +
+            " max=" + getMax() + "ms bins=";
+        for (int i=0; i<NUM_BINS; i++)
+            rslt += (i > 0 ? "," : "") + counts.get(i);
+        return rslt;
+    }
+
+
+}   // class latencyHistogram
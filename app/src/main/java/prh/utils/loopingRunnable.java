@@ -22,6 +22,9 @@ public class loopingRunnable
     private Object synchrnonizer;
     private int STOP_RETRIES;
     private int REFRESH_INTERVAL;
+    private volatile int refresh_interval;
+        // the current interval, which the client may
+        // change with setRefreshInterval() while looping
     private boolean USE_POST_DELAYED;
     private boolean ONE_TIME;
 
@@ -49,6 +52,7 @@ public class loopingRunnable
         ONE_TIME = false;
         STOP_RETRIES = stop_retries;
         REFRESH_INTERVAL = refresh_interval;
+        this.refresh_interval = refresh_interval;
         USE_POST_DELAYED = use_post_delayed;
         this.synchrnonizer = synchronizer;
     }
@@ -129,6 +133,20 @@ public class loopingRunnable
 
 
 
+    public void setRefreshInterval(int interval)
+        // Change the delay before the next call to the client
+        // runnable, i.e. to back off when there is nothing to do.
+        // stop() still waits in units of the original interval.
+    {
+        refresh_interval = interval;
+    }
+
+    public int getRefreshInterval()
+    {
+        return refresh_interval;
+    }
+
+
     public void stop(boolean wait_stop)
     {
         stopping = true;
@@ -178,7 +196,7 @@ public class loopingRunnable
 
         public void run()
         {
-            handler.postDelayed(looper,REFRESH_INTERVAL);
+            handler.postDelayed(looper,refresh_interval);
         }
     }
 
@@ -208,16 +226,15 @@ public class loopingRunnable
                         cont = continue_loop();
                         if (cont)
                         {
-                            Utils.log(dbg_looper+1,0,"Looper(" + name + ") sleeping(" + REFRESH_INTERVAL + ")");
-                            Utils.sleep(REFRESH_INTERVAL);
-                            cont = continue_loop();
+                            Utils.log(dbg_looper+1,0,"Looper(" + name + ") sleeping(" + refresh_interval + ")");
+                            cont = sleepInterval();
                         }
                     }
                 }
 
                 if (USE_POST_DELAYED && !ONE_TIME && continue_loop())
                 {
-                    handler.postDelayed(this,REFRESH_INTERVAL);
+                    handler.postDelayed(this,refresh_interval);
                 }
 
                 if (stopping)
@@ -230,6 +247,26 @@ public class loopingRunnable
 
     }   // class runnableLooper
 
+
+    private boolean sleepInterval()
+        // Sleep for the current refresh_interval, in slices no
+        // longer than the original REFRESH_INTERVAL, so that a
+        // long back off does not hold up stop(), and a shorter
+        // interval set during the sleep takes effect right away.
+        // Returns continue_loop().
+    {
+        int slept = 0;
+        while (slept < refresh_interval)
+        {
+            int slice = Math.min(REFRESH_INTERVAL,refresh_interval - slept);
+            Utils.sleep(slice);
+            slept += slice;
+            if (!continue_loop())
+                return false;
+        }
+        return continue_loop();
+    }
+
 }   // class loopingRunnable
 
 
@@ -4,34 +4,82 @@ package prh.utils;
 // They DO REPORT WARNINGS TO ME.
 // Client errors are only on the final result, and
 // returned via handleNetworkRequestResult().
+//
+// A networkRequest is a one-shot future. start() runs it on
+// a shared executor and returns immediately. get() blocks until
+// the response has been parsed, the per-request timeout expires,
+// or the request is cancel()ed, whichever comes first. Asynchronous
+// callers pass a networkResponseHandler instead, which is called on
+// the executor thread when the request completes normally.
+//
+// At most MAX_PER_HOST requests to one host run on the shared
+// executor at a time. The rest wait their turn in a per-host queue,
+// so an unreachable device only ties up its own threads, and requests
+// to healthy devices are not queued behind its connect timeouts.
+// The timeout counts from when the request starts running, not from
+// when it was queued, though get() gives up on a request that has
+// not started after QUEUE_TIMEOUT_FACTOR timeouts.
+//
+// A synchronous get() made on a thread that is itself running a
+// request (i.e. from a handler, or an action that makes a nested
+// request) runs the nested request inline if it has not started,
+// rather than waiting for it behind work queued on the same pool
+// or lane, which could deadlock, or time out.
 
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.DataOutputStream;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.List;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 
 import prh.types.stringHash;
 
 
-public class networkRequest extends Thread
+public class networkRequest implements Runnable
 {
     private static int dbg_nr = 1;
 
-    private static int NUM_RETRIES = 200;
-    private static int WAIT_SLEEP_TIME = 150;
-        // sleep for 100 milliseconds at a time waiting for
-        // results. Fail after 10 seconds.
+    public static int DEFAULT_TIMEOUT = 10000;
+        // overall milliseconds to wait for a response
+
+    private static int MAX_PER_HOST = 2;
+        // requests running at once to one ip:port
+    private static int NUM_THREADS = 16;
+        // threads are only made as needed, and the per
+        // host limit keeps it to a couple per device
+
+    private static int QUEUE_TIMEOUT_FACTOR = 3;
+    private static int QUEUE_POLL = 100;
+        // get() checks this often (millis) whether
+        // a queued request has started running
+
+    private static ThreadPoolExecutor executor = null;
+
+    private static class hostQueue
+        // the requests running and waiting for one host,
+        // guarded by host_queues
+    {
+        int running = 0;
+        final ArrayDeque<networkRequest> waiting = new ArrayDeque<networkRequest>();
+    }
+
+    private static final HashMap<String,hostQueue> host_queues =
+        new HashMap<String,hostQueue>();
 
     // request
 
@@ -41,15 +89,30 @@ public class networkRequest extends Thread
     public String content_type = "text/html";       // the content type (text/html or text/xml)
     public stringHash request_headers = null;       // the special request_headers, if any
     public String post_content = null;              // the post content, if any
+    public int timeout = DEFAULT_TIMEOUT;           // per request timeout in millis
+    public boolean idempotent = false;              // a POST that may safely be sent twice
 
     // reply
 
-    public boolean ready = false;                   // state
+    public volatile boolean ready = false;          // state
     public String full_response = "";               // full response
     public Object the_result = null;                    // the parsed response
     public stringHash response_headers = null;      // the response headers
     public String error_reason = null;              // the reason if result is null
 
+    // future
+
+    private Future<?> future = null;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private boolean cancelled = false;
+    private boolean timed_out = false;
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile long started_time = 0;
+    private boolean queued = false;
+
+    private static final ThreadLocal<Boolean> in_request = new ThreadLocal<Boolean>();
+        // true while the thread is running a request
+
 
     public interface networkResponseHandler
         // a general Asynchronous network request handler
@@ -89,43 +152,306 @@ public class networkRequest extends Thread
     public static networkRequest httpRequest(String the_url, stringHash extra_headers, String content)
     {
         networkRequest rslt = new networkRequest("text/html",null,null,the_url,extra_headers,content);
-        Thread run_it = new Thread(rslt);
-        run_it.start();
-        rslt.wait_for_result();
+        rslt.start().get();
         return rslt;
     }
 
     public static networkRequest xmlRequest(String the_url, stringHash extra_headers, String content)
     {
         networkRequest rslt = new networkRequest("text/xml",null,null,the_url,extra_headers,content);
-        Thread run_it = new Thread(rslt);
-        run_it.start();
-        rslt.wait_for_result();
+        rslt.start().get();
         return rslt;
     }
 
-    public void wait_for_result()
+
+    //-----------------------------------------
+    // future
+    //-----------------------------------------
+
+    private static synchronized ThreadPoolExecutor getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = new ThreadPoolExecutor(
+                NUM_THREADS,
+                NUM_THREADS,
+                30,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new requestThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+
+    public static synchronized void shutdown()
+    {
+        if (executor != null)
+            executor.shutdownNow();
+        executor = null;
+        synchronized (host_queues)
+        {
+            host_queues.clear();
+        }
+    }
+
+
+    public networkRequest start()
+        // queue the request for its host on the shared
+        // executor and return this as the handle
+    {
+        synchronized (this)
+        {
+            if (queued || future != null || isDone())
+                return this;
+            queued = true;
+        }
+
+        String key = hostKey();
+        synchronized (host_queues)
+        {
+            hostQueue queue = host_queues.get(key);
+            if (queue == null)
+            {
+                queue = new hostQueue();
+                host_queues.put(key,queue);
+            }
+            if (queue.running >= MAX_PER_HOST)
+            {
+                Utils.log(dbg_nr+1,0,"networkRequest waiting for " + key);
+                queue.waiting.add(this);
+                return this;
+            }
+            queue.running++;
+        }
+        submitForHost(key);
+        return this;
+    }
+
+
+    private String hostKey()
+    {
+        try
+        {
+            URL the_url = new URL(url);
+            int port = the_url.getPort();
+            if (port < 0) port = the_url.getDefaultPort();
+            return the_url.getHost() + ":" + port;
+        }
+        catch (Exception e)
+        {
+            return url;
+        }
+    }
+
+
+    private void submitForHost(final String key)
+        // run the request on the shared executor, in one of
+        // its host's slots, and pass the slot on when done
     {
-        int count = 0;
-        while (!ready && count++<NUM_RETRIES)
+        Runnable runnable = new Runnable()
         {
-            Utils.log(dbg_nr + 2,0,"networkRequest(" + content_type + ").wait_for_result()");
-            Utils.sleep(WAIT_SLEEP_TIME);
+            public void run()
+            {
+                try
+                {
+                    networkRequest.this.run();
+                }
+                finally
+                {
+                    hostFinished(key);
+                }
+            }
+        };
+
+        try
+        {
+            synchronized (this)
+            {
+                future = getExecutor().submit(runnable);
+            }
+        }
+        catch (RejectedExecutionException e)
+        {
+            finish(null,"rejected",true);
+            hostFinished(key);
+        }
+    }
+
+
+    private static void hostFinished(String key)
+        // start the host's next waiting request, if any,
+        // in the slot of the one that just finished
+    {
+        networkRequest next = null;
+        synchronized (host_queues)
+        {
+            hostQueue queue = host_queues.get(key);
+            if (queue == null)
+                return;     // shutdown() forgot it
+            next = queue.waiting.poll();
+            while (next != null && next.isDone())
+                next = queue.waiting.poll();
+            if (next == null)
+            {
+                queue.running--;
+                if (queue.running <= 0 && queue.waiting.isEmpty())
+                    host_queues.remove(key);
+            }
         }
-        if (!ready)
+        if (next != null)
+            next.submitForHost(key);
+    }
+
+
+    public networkRequest start(ExecutorService use_executor)
+        // submit the request to a given executor, i.e.
+        // a single threaded one to keep requests in order
+    {
+        synchronized (this)
         {
-            Utils.warning(0,0,"Network request TIME_OUT(" + this.url + " ");
+            if (future == null && !isDone())
+                future = use_executor.submit(this);
         }
+        return this;
     }
 
 
+    public boolean isDone()         { return ready; }
+    public boolean isCancelled()    { return cancelled; }
+    public boolean isTimedOut()     { return timed_out; }
 
-    // asynchronous clients call the public ctor directly,
-    // create a thread with the returned object
-    // and implement networkResponseHandler
+
+    public Object get()
+        // wait up to the request's timeout for the result
+        // returns the result, or null on failure
+    {
+        if (!ready && !started.get() && Boolean.TRUE.equals(in_request.get()))
+        {
+            Utils.log(dbg_nr+1,0,"networkRequest running nested request inline(" + url + ")");
+            run();
+        }
+
+        // the timeout counts from when the request started running.
+        // Until then, poll to see if it has, up to the queue limit
+
+        boolean finished = false;
+        long queue_limit = System.currentTimeMillis() + (long) timeout * QUEUE_TIMEOUT_FACTOR;
+        try
+        {
+            while (!finished)
+            {
+                long started_at = started_time;
+                long deadline = started_at > 0 ? started_at + timeout : queue_limit;
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    break;
+                if (started_at == 0)
+                    wait = Math.min(wait,QUEUE_POLL);
+                finished = done.await(wait,TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (!finished && finish(null,started_time > 0 ? "TIME_OUT" : "TIME_OUT(queued)",true))
+        {
+            timed_out = true;
+            stopFuture();
+            Utils.warning(0,0,"Network request TIME_OUT(" + url + ") after " + timeout + "ms");
+        }
+        return the_result;
+    }
+
+
+    public boolean cancel()
+        // Give up on the request. Waiters are released at once
+        // with a null result and the handler is not called.
+        // Returns false if the request had already completed.
+    {
+        if (!finish(null,"cancelled",true))
+            return false;
+        cancelled = true;
+        stopFuture();
+        Utils.log(dbg_nr,0,"networkRequest cancelled(" + url + ")");
+        return true;
+    }
+
+
+    private void stopFuture()
+        // A socket read in progress is not interruptible.
+        // It ends at the socket timeout, and its result is
+        // discarded by finish().
+    {
+        Future<?> to_stop;
+        synchronized (this)
+        {
+            to_stop = future;
+        }
+        if (to_stop != null)
+            to_stop.cancel(true);
+    }
+
+
+    private synchronized boolean finish(Object result, String reason, boolean failed)
+        // Complete the future exactly once. The first of the
+        // response, a timeout, or a cancel wins, and the
+        // others are ignored.
+    {
+        if (ready)
+            return false;
+        the_result = failed ? null : result;
+        if (reason != null)
+            error_reason = reason;
+        ready = true;
+        done.countDown();
+        return true;
+    }
+
+
+    private static class requestThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger thread_num = new AtomicInteger(0);
+
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.setName("networkRequest(" + thread_num.incrementAndGet() + ")");
+            return thread;
+        }
+    }
+
+
+    //-----------------------------------------
+    // run
+    //-----------------------------------------
 
     public void run()
+        // called on the executor thread, or inline by a nested get().
+        // Whichever gets here first runs the request.
+    {
+        if (ready || !started.compareAndSet(false,true))
+            return;
+        started_time = System.currentTimeMillis();
+        Boolean was_in_request = in_request.get();
+        in_request.set(Boolean.TRUE);
+        try
+        {
+            execute();
+        }
+        finally
+        {
+            in_request.set(was_in_request);
+        }
+    }
+
+
+    private void execute()
     {
+
         String dbg_msg = " for " + content_type + " at " + url;
         Utils.log(dbg_nr,0,"networkRequest(" + (post_content==null?"GET":"POST") + ")" + dbg_msg);
 
@@ -142,105 +468,75 @@ public class networkRequest extends Thread
             Utils.error("Setting url: " + e);
         }
 
-        // Send the request
+        // Send the request on a pooled keep-alive
+        // connection to the device
 
         boolean ok = false;
         Object result = null;
-        InputStream is = null;
-        HttpURLConnection connection = null;
+        String reason = null;
+        String response_text = "";
+        stringHash got_headers = null;
 
         if (the_url != null)
         try
         {
-            connection = (HttpURLConnection) the_url.openConnection();
-            connection.setRequestMethod(post_content == null ? "POST" : "GET");
-            connection.setRequestProperty("User-Agent",Utils.programName);
-            connection.setRequestProperty("Content-Type",content_type);
-            connection.setUseCaches(false);
-            connection.setDoInput(true);
-            connection.setDoOutput(post_content != null);
-
-            for (String key: request_headers.keySet())
-            {
-                String value = request_headers.get(key);
-                connection.setRequestProperty(key,value);
-            }
-
-            if (post_content != null)
-            {
-                connection.setRequestProperty("Content-Length","" + post_content.length());
-                DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
-                wr.writeBytes(post_content);
-                wr.flush();
-                wr.close();
-            }
+            int port = the_url.getPort();
+            if (port < 0) port = the_url.getDefaultPort();
+            String path = the_url.getFile();
+            if (path.isEmpty()) path = "/";
+
+            stringHash headers = new stringHash();
+            headers.put("USER-AGENT",Utils.programName);
+            headers.put("CONTENT-TYPE",content_type);
+            if (request_headers != null)
+                headers.putAll(request_headers);
+
+            httpConnectionPool.httpResponse response = httpConnectionPool.request(
+                the_url.getHost(),
+                port,
+                post_content == null ? "GET" : "POST",
+                path,
+                headers,
+                post_content == null ? null : post_content.getBytes("UTF-8"),
+                timeout,
+                post_content == null || idempotent);
 
             // Get the header fields
-            // One reason we don't like this way of doing things is that when
-            // BuP returns 501 Internal Server Error, it also returns some valuable
-            // xml explaining the error, but HTTPUrlConnection bails on it ...
-
-            Utils.log(dbg_nr+1,1,"Getting header fields");
-            Map<String,List<String>> headers = connection.getHeaderFields();
-            Utils.log(dbg_nr+1,1,"HEADER FIELDS");
 
-            response_headers = new stringHash();
-            for (String key:headers.keySet())
+            got_headers = new stringHash();
+            for (String key:response.headers.keySet())
             {
-                List<String> values = headers.get(key);
-                for (String value : values)
-                {
-                    Utils.log(dbg_nr+1,2,"header(" + key + ")='" + value + "'");
-                    response_headers.put(key,value);    // only the last one of each kept
-                }
+                String value = response.headers.get(key);
+                Utils.log(dbg_nr+1,2,"header(" + key + ")='" + value + "'");
+                got_headers.put(key,value);
             }
 
-            // Wah-ha-ha ... if it's not a 200, ask the HttpURLConnection
-            // for the error stream!
+            // Unlike HttpURLConnection, we get the body of a
+            // 501 Internal Server Error, with the valuable xml
+            // explaining the error, the same way as a 200
 
-            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK)
-            {
+            if (response.status == 200)
                 ok = true;
-                is = connection.getInputStream();
-            }
             else
-            {
-                Utils.warning(0,0,"HTTP_FAILURE("+connection.getResponseCode()+") in networkRequest(" + (post_content==null?"GET":"POST") + ")" + dbg_msg);
-                is = connection.getErrorStream();
-            }
+                Utils.warning(0,0,"HTTP_FAILURE("+response.status+") in networkRequest(" + (post_content==null?"GET":"POST") + ")" + dbg_msg);
 
             // Read the Response
-            // We're already at the content
-            // Read it into full_response here,
-            // and if we're debugging xml, switch
-            // the stream to a byte_array stream
 
-            InputStream use_stream = is;
-            if (true || content_type.equals("text/plain"))
-            {
-                String line;
-                BufferedReader rd = new BufferedReader(new InputStreamReader(is));
-                while ((line = rd.readLine()) != null)
-                {
-                    full_response += line + "\n";
-                }
-                rd.close();
-                if (content_type.equals("text/plain"))
-                    result = full_response;
-                else // for debugging "text/xml"))
-                    use_stream = new ByteArrayInputStream(full_response.getBytes());
-            }
+            response_text = new String(response.body,"UTF-8");
+            if (content_type.equals("text/plain"))
+                result = response_text;
 
             if (content_type.equals("text/xml"))
             {
                 try
                 {
-                    result = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(use_stream);
+                    result = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+                        new ByteArrayInputStream(response.body));
                 }
                 catch (Exception e)
                 {
                     ok = false;
-                    error_reason = e.toString();
+                    reason = e.toString();
                     Utils.warning(0,0,"Exception: " + e + " while trying to parseXML" + dbg_msg);
                 }
             }
@@ -249,35 +545,39 @@ public class networkRequest extends Thread
         catch (Exception e)
         {
             ok = false;
-            error_reason = e.toString();
-            Utils.warning(0,0,"Exception: " + e + " in networkRequest(" + (post_content==null?"GET":"POST") + ")" + dbg_msg);
+            reason = e.toString();
+            if (!ready)
+                Utils.warning(0,0,"Exception: " + e + " in networkRequest(" + (post_content==null?"GET":"POST") + ")" + dbg_msg);
         }
 
-        try { is.close(); } catch (Exception e) {}
-        try { connection.disconnect(); } catch (Exception e) {}
-
         // return the results to the caller
         // always leave the full_response available for viewing
         // but if it's a bad 501 here, but there's a document, we can show it
 
-        if (ok)
-        {
-            the_result = result;
-        }
-        else if (result instanceof Document)
+        if (!ok && result instanceof Document)
         {
             Element ele = ((Document) result).getDocumentElement();
             String err = Utils.getTagValue(ele,"errorDescription");
             if (!err.isEmpty())
-                error_reason = err;
+                reason = err;
             else
-                error_reason = full_response;
+                reason = response_text;
         }
 
-        ready = true;
+        synchronized (this)
+        {
+            if (ready)
+            {
+                Utils.log(dbg_nr+1,0,"networkRequest discarding late response" + dbg_msg);
+                return;
+            }
+            full_response = response_text;
+            response_headers = got_headers;
+            finish(result,reason,!ok);
+        }
 
         if (caller!= null)
             caller.handleNetworkResponse(this);
 
-    }   // networkRequest::run()
+    }   // networkRequest::execute()
 }   // class networkRequest
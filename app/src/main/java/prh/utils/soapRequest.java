@@ -0,0 +1,197 @@
+//----------------------------------------------------------
+// soapRequest - the arguments of a SOAP action we received
+//----------------------------------------------------------
+// The body of a control request is read with blocking reads
+// (bounded by the socket timeout), and parsed in one SAX pass
+// into a hash of the leaf elements (the action's arguments) to
+// their text, instead of building a DOM per request and then
+// walking it once per argument with getElementsByTagName().
+//
+// As with getElementsByTagName(), names are the element names
+// as sent (i.e. without namespace processing), and the first
+// element with a given name wins.
+//
+// The SAX parser is kept per thread and reset between uses.
+// The same is done for the DocumentBuilder used for the
+// (DOM) event callbacks in httpUtils.get_xml_from_post().
+
+package prh.utils;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import fi.iki.elonen.NanoHTTPD;
+import prh.types.stringHash;
+
+
+public class soapRequest
+{
+    private static int dbg_soap = 1;
+
+    private static SAXParserFactory factory = SAXParserFactory.newInstance();
+
+    private static ThreadLocal<SAXParser> parsers = new ThreadLocal<SAXParser>();
+
+    private final stringHash values = new stringHash();
+
+
+    //--------------------------------------
+    // accessors
+    //--------------------------------------
+
+    public boolean has(String name)
+    {
+        return values.containsKey(name);
+    }
+
+    public String get(String name)
+        // returns null if there is no such argument
+    {
+        return values.get(name);
+    }
+
+    public stringHash getValues()
+    {
+        return values;
+    }
+
+
+    //--------------------------------------
+    // construction
+    //--------------------------------------
+
+    public static soapRequest fromPost(NanoHTTPD.IHTTPSession session)
+        // read and parse the body of a POST
+        // returns null on any error
+    {
+        byte buf[] = readBody(session);
+        if (buf == null)
+            return null;
+        return parse(buf);
+    }
+
+
+    public static soapRequest parse(byte buf[])
+    {
+        SAXParser parser = getParser();
+        if (parser == null)
+            return null;
+
+        soapRequest request = new soapRequest();
+        try
+        {
+            parser.parse(new ByteArrayInputStream(buf),request.new argumentHandler());
+            Utils.log(dbg_soap+1,0,"soapRequest parsed " + request.values.size() + " values");
+            return request;
+        }
+        catch (Exception e)
+        {
+            Utils.error("Exception parsing soap request:" + e);
+            return null;
+        }
+        finally
+        {
+            parser.reset();
+        }
+    }
+
+
+    private static SAXParser getParser()
+    {
+        SAXParser parser = parsers.get();
+        if (parser == null)
+        {
+            try
+            {
+                synchronized (factory)
+                {
+                    parser = factory.newSAXParser();
+                }
+                parsers.set(parser);
+            }
+            catch (Exception e)
+            {
+                Utils.error("Could not create SAXParser:" + e);
+            }
+        }
+        return parser;
+    }
+
+
+    public static byte[] readBody(NanoHTTPD.IHTTPSession session)
+        // Read content-length bytes of body. The reads block until
+        // data arrives, or the socket times out, so there is no
+        // need to sleep and retry. Returns null on a short read.
+    {
+        int content_length = Utils.parseInt(session.getHeaders().get("content-length"));
+        InputStream input_stream = session.getInputStream();
+
+        int offset = 0;
+        byte buf[] = new byte[content_length];
+        try
+        {
+            while (offset < content_length)
+            {
+                int got = input_stream.read(buf,offset,content_length - offset);
+                if (got < 0)
+                    break;
+                offset += got;
+            }
+        }
+        catch (Exception e)
+        {
+            Utils.warning(0,0,"Error reading post: content_len=" + content_length + " offset=" + offset + " exception:"+e);
+            return null;
+        }
+
+        if (offset < content_length)
+        {
+            Utils.warning(0,0,"Short post: content_len=" + content_length + " got=" + offset);
+            return null;
+        }
+        return buf;
+    }
+
+
+    //--------------------------------------
+    // SAX handler
+    //--------------------------------------
+
+    private class argumentHandler extends DefaultHandler
+        // Records the text of each element that has no child
+        // elements. The text of outer elements is not kept.
+    {
+        private StringBuilder text = new StringBuilder();
+        private boolean is_leaf = false;
+
+        @Override
+        public void startElement(String uri, String local_name, String name, Attributes attributes)
+        {
+            text.setLength(0);
+            is_leaf = true;
+        }
+
+        @Override
+        public void characters(char ch[], int start, int length)
+        {
+            if (is_leaf)
+                text.append(ch,start,length);
+        }
+
+        @Override
+        public void endElement(String uri, String local_name, String name)
+        {
+            if (is_leaf && !values.containsKey(name))
+                values.put(name,text.toString());
+            is_leaf = false;
+        }
+    }
+
+
+}   // class soapRequest
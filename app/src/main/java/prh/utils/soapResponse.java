@@ -0,0 +1,202 @@
+//----------------------------------------------------------
+// soapResponse - builds one SOAP action reply
+//----------------------------------------------------------
+// The envelope, the action's return values, and the footer
+// are appended to a single StringBuilder, sized up front by
+// the caller if it knows (i.e. Browse sums the lengths of the
+// cached DIDL of its items), instead of being built up with
+// String += and copied on every append.
+//
+// Values that need didl-lite escaping are escaped straight
+// into the buffer by appendLite(), without an intermediate
+// escaped copy of the whole DIDL.
+//
+// The reply is still sent with a Content-Length, rather than
+// chunked, as some renderers and control points do not handle
+// chunked SOAP replies.
+
+package prh.utils;
+
+import java.util.HashMap;
+
+import fi.iki.elonen.NanoHTTPD;
+import prh.server.HTTPServer;
+
+
+public class soapResponse
+{
+    private static int DEFAULT_SIZE = 1024;
+        // enough for the envelope and a few values
+
+    private final StringBuilder xml;
+    private final String urn;
+    private final String action;
+    private boolean finished = false;
+
+
+    public soapResponse(String the_urn, String service, String the_action)
+    {
+        this(the_urn,service,the_action,0);
+    }
+
+
+    public soapResponse(String the_urn, String service, String the_action, int size_hint)
+        // size_hint is the expected length of the body, if known
+    {
+        urn = the_urn;
+        action = the_action;
+        xml = new StringBuilder(DEFAULT_SIZE + size_hint);
+        appendHeader(xml,urn,service,action);
+    }
+
+
+    //--------------------------------------
+    // body
+    //--------------------------------------
+
+    public soapResponse append(String text)
+        // append text that is already escaped
+    {
+        xml.append(text);
+        return this;
+    }
+
+
+    public soapResponse appendLite(String text)
+        // append text with didl-lite escaping
+    {
+        appendLite(xml,text);
+        return this;
+    }
+
+
+    public soapResponse appendHash(HashMap<String,String> hash)
+        // the action's return values
+    {
+        appendHash(xml,hash,false);
+        return this;
+    }
+
+
+    //--------------------------------------
+    // finish
+    //--------------------------------------
+
+    public soapResponse finish()
+    {
+        return finish("");
+    }
+
+
+    public soapResponse finish(String extra)
+        // close the <Result> if any, and append the (escaped)
+        // extra elements that follow it, and the footer.
+    {
+        if (!finished)
+        {
+            finished = true;
+            appendFooter(xml,urn,action,extra);
+        }
+        return this;
+    }
+
+
+    public String toString()
+        // finishes the response, if not already done
+    {
+        finish();
+        return xml.toString();
+    }
+
+
+    public int length()
+    {
+        return xml.length();
+    }
+
+
+    public NanoHTTPD.Response toResponse(HTTPServer server)
+    {
+        return server.newFixedLengthResponse(
+            NanoHTTPD.Response.Status.OK,
+            "text/xml",
+            toString());
+    }
+
+
+    //--------------------------------------
+    // static appenders
+    //--------------------------------------
+    // shared with the String versions in httpUtils
+
+    public static void appendHeader(StringBuilder out, String urn, String service, String action)
+    {
+        out.append("<?xml version=\"1.0\"?>")
+           .append("<s:Envelope ")
+           .append("xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" ")
+           .append("s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">")
+           .append("<s:Body>")
+           .append("<u:").append(action).append("Response xmlns:u=\"urn:")
+           .append(urn).append(":service:").append(service).append(":1\">");
+
+        // open home does not have a wrapper tag
+        // each command is different
+        // dlna wraps it in <Result>
+
+        if (!urn.equals(httpUtils.open_service_urn))
+            out.append("<Result>");
+    }
+
+
+    public static void appendFooter(StringBuilder out, String urn, String action, String extra)
+    {
+        if (!urn.equals(httpUtils.open_service_urn))
+            out.append("</Result>");
+        out.append(extra)
+           .append("</u:").append(action).append("Response>")
+           .append("</s:Body>")
+           .append("</s:Envelope>");
+    }
+
+
+    public static void appendHash(StringBuilder out, HashMap<String,String> hash, boolean property_set)
+        // property_set adds <e:property>..</e:property> around the elements
+    {
+        for (String key : hash.keySet())
+        {
+            if (property_set)
+                out.append("<e:property>");
+            out.append('<').append(key).append('>')
+               .append(hash.get(key))
+               .append("</").append(key).append('>');
+            if (property_set)
+                out.append("</e:property>");
+        }
+    }
+
+
+    public static void appendLite(StringBuilder out, String text)
+        // same as httpUtils.encode_lite(), into the buffer
+    {
+        if (text == null)
+            return;
+        int len = text.length();
+        int done = 0;
+        for (int i=0; i<len; i++)
+        {
+            String rep;
+            switch (text.charAt(i))
+            {
+                case '&': rep = "&amp;"; break;
+                case '<': rep = "&lt;"; break;
+                case '>': rep = "&gt;"; break;
+                default: continue;
+            }
+            out.append(text,done,i).append(rep);
+            done = i + 1;
+        }
+        out.append(text,done,len);
+    }
+
+
+}   // class soapResponse
@@ -0,0 +1,221 @@
+package prh.artisan;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+
+import org.junit.Test;
+
+import prh.types.objectHash;
+import prh.utils.microBenchmark;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class TrackCursorBenchmark
+    // Compares building Tracks from a 50k row tracks query with
+    // the original Record.from_cursor(), which called getColumnName()
+    // and getType() and put() a boxed value into a hash by name for
+    // every column of every row, against one Record.rowMapper gotten
+    // for the cursor and reused for every row, as Browse does.
+    // tracksScan() reports rows per second for each, when run
+    // with -Dartisan.benchmark=true.
+{
+    private static int NUM_ROWS = 50000;
+
+    private static String GENRES[] = { "Rock", "Jazz", "Blues", "Classical", "Folk" };
+
+    private static String EXTRA_COLUMN = "score";
+        // a float column that is not a Track field
+
+
+    private static class tracksCursor implements Cursor
+        // An in memory cursor with the columns of the tracks table,
+        // and an extra float column. Every 7th row has a NULL position
+        // and every 11th a NULL genre. It implements Cursor itself,
+        // as the unit test android.jar has no code in AbstractCursor.
+    {
+        private final String names[];
+        private final Object values[][];
+        private int row = 0;
+
+        tracksCursor(int num_rows)
+        {
+            Record.fieldSet fields = Track.FIELDS;
+            names = new String[fields.numFields() + 1];
+            for (int col=0; col<fields.numFields(); col++)
+                names[col] = fields.getName(col);
+            names[fields.numFields()] = EXTRA_COLUMN;
+
+            values = new Object[num_rows][names.length];
+            for (int r=0; r<num_rows; r++)
+            {
+                int album = r / 12;
+                for (int col=0; col<names.length; col++)
+                {
+                    String name = names[col];
+                    if (name.equals(EXTRA_COLUMN))
+                        values[r][col] = r / 4.0f;
+                    else if (name.equals("position") && r % 7 == 0)
+                        values[r][col] = null;
+                    else if (name.equals("genre"))
+                        values[r][col] = r % 11 == 0 ? null : GENRES[album % GENRES.length];
+                    else if (fields.isInt(col))
+                        values[r][col] = r * 31 + col;
+                    else if (name.startsWith("album") || name.equals("artist") || name.equals("parent_id"))
+                        values[r][col] = name + " " + album;
+                    else
+                        values[r][col] = name + " " + r;
+                }
+            }
+        }
+
+        @Override public int getCount()                 { return values.length; }
+        @Override public int getPosition()              { return row; }
+        @Override public boolean moveToPosition(int r)  { row = r; return r >= 0 && r < values.length; }
+        @Override public boolean move(int offset)       { return moveToPosition(row + offset); }
+        @Override public boolean moveToFirst()          { return moveToPosition(0); }
+        @Override public boolean moveToLast()           { return moveToPosition(values.length - 1); }
+        @Override public boolean moveToNext()           { return moveToPosition(row + 1); }
+        @Override public boolean moveToPrevious()       { return moveToPosition(row - 1); }
+        @Override public boolean isFirst()              { return row == 0; }
+        @Override public boolean isLast()               { return row == values.length - 1; }
+        @Override public boolean isBeforeFirst()        { return row < 0; }
+        @Override public boolean isAfterLast()          { return row >= values.length; }
+
+        @Override public String[] getColumnNames()      { return names; }
+        @Override public int getColumnCount()           { return names.length; }
+        @Override public String getColumnName(int col)  { return names[col]; }
+        @Override public int getColumnIndex(String name)
+        {
+            for (int col=0; col<names.length; col++)
+                if (names[col].equals(name))
+                    return col;
+            return -1;
+        }
+        @Override public int getColumnIndexOrThrow(String name)
+        {
+            int col = getColumnIndex(name);
+            if (col < 0)
+                throw new IllegalArgumentException("no column " + name);
+            return col;
+        }
+
+        @Override public int getType(int col)
+        {
+            Object value = values[row][col];
+            return
+                value == null ? FIELD_TYPE_NULL :
+                value instanceof Integer ? FIELD_TYPE_INTEGER :
+                value instanceof Float ? FIELD_TYPE_FLOAT :
+                FIELD_TYPE_STRING;
+        }
+        @Override public boolean isNull(int col)        { return values[row][col] == null; }
+        @Override public String getString(int col)      { Object v = values[row][col]; return v == null ? null : v.toString(); }
+        @Override public int getInt(int col)            { Object v = values[row][col]; return v == null ? 0 : ((Number) v).intValue(); }
+        @Override public short getShort(int col)        { return (short) getInt(col); }
+        @Override public long getLong(int col)          { return getInt(col); }
+        @Override public float getFloat(int col)        { Object v = values[row][col]; return v == null ? 0 : ((Number) v).floatValue(); }
+        @Override public double getDouble(int col)      { return getFloat(col); }
+        @Override public byte[] getBlob(int col)        { return null; }
+        @Override public void copyStringToBuffer(int col, CharArrayBuffer buffer) { }
+
+        @Override public void deactivate()              { }
+        @Override public boolean requery()              { return true; }
+        @Override public void close()                   { }
+        @Override public boolean isClosed()             { return false; }
+        @Override public void registerContentObserver(ContentObserver observer)     { }
+        @Override public void unregisterContentObserver(ContentObserver observer)   { }
+        @Override public void registerDataSetObserver(DataSetObserver observer)     { }
+        @Override public void unregisterDataSetObserver(DataSetObserver observer)   { }
+        @Override public void setNotificationUri(ContentResolver cr, Uri uri)       { }
+        @Override public Uri getNotificationUri()       { return null; }
+        @Override public boolean getWantsAllOnMoveCalls() { return false; }
+        @Override public void setExtras(Bundle extras)  { }
+        @Override public Bundle getExtras()             { return null; }
+        @Override public Bundle respond(Bundle extras)  { return null; }
+    }
+
+
+    private static objectHash baselineRow(Cursor cursor)
+        // Record.from_cursor() as it was before Record had
+        // slots, when a Record was an objectHash by name
+    {
+        objectHash rec = new objectHash();
+        for (int i=0; i<cursor.getColumnCount(); i++)
+        {
+            int type = cursor.getType(i);
+            String name = cursor.getColumnName(i);
+            switch (type)
+            {
+                case Cursor.FIELD_TYPE_STRING:
+                    rec.put(name,new String(cursor.getString(i)));
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    rec.put(name,new Integer(cursor.getInt(i)));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    rec.put(name,new Float(cursor.getFloat(i)));
+                    break;
+            }
+        }
+        return rec;
+    }
+
+
+    private static void assertSameFields(String what, objectHash expected, Track track)
+    {
+        assertEquals(what + " keys",expected.keySet(),track.keySet());
+        for (String name : expected.keySet())
+            assertEquals(what + " " + name,expected.get(name),track.get(name));
+    }
+
+
+    @Test
+    public void sameResults()
+    {
+        tracksCursor cursor = new tracksCursor(200);
+        Record.rowMapper mapper = Record.rowMapper.get(Track.FIELDS,cursor);
+        for (int r=0; r<200; r++)
+        {
+            cursor.moveToPosition(r);
+            objectHash expected = baselineRow(cursor);
+            assertSameFields("row " + r + " mapper",expected,new Track(cursor,mapper));
+            assertSameFields("row " + r + " cursor",expected,new Track(cursor));
+        }
+    }
+
+
+    @Test
+    public void tracksScan()
+    {
+        microBenchmark.assumeEnabled();
+        final tracksCursor cursor = new tracksCursor(NUM_ROWS);
+        final Record.rowMapper mapper = Record.rowMapper.get(Track.FIELDS,cursor);
+
+        microBenchmark.compare("tracks scan (rows)",NUM_ROWS,new microBenchmark.body()
+        {
+            int r = 0;
+            public int run()
+            {
+                cursor.moveToPosition(r++ % NUM_ROWS);
+                return baselineRow(cursor).size();
+            }
+        },
+        new microBenchmark.body()
+        {
+            int r = 0;
+            public int run()
+            {
+                cursor.moveToPosition(r++ % NUM_ROWS);
+                return new Track(cursor,mapper).getInt(0);
+            }
+        });
+    }
+
+
+}   // class TrackCursorBenchmark
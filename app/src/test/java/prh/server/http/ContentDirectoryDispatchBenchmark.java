@@ -0,0 +1,85 @@
+package prh.server.http;
+
+import org.junit.Test;
+
+import prh.utils.microBenchmark;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class ContentDirectoryDispatchBenchmark
+    // Checks that folderJpgId() and mediaId() parse uris the same
+    // as the regexes ContentDirectory.response() used to run on every
+    // media and folder.jpg request. dispatch() times the two, when
+    // run with -Dartisan.benchmark=true.
+{
+    private static String URIS[] = {
+        "media/12345678.mp3",
+        "media/abcdef0123456789.flac",
+        "media/99.m4a",
+        "1a2b3c4d5e6f/folder.jpg",
+        "some/deep/folder_id/folder.jpg",
+        "control",
+        "event",
+    };
+
+
+    private static String oldFolderJpgId(String uri)
+    {
+        if (!uri.matches("(.*)/folder.jpg"))
+            return null;
+        return uri.replaceAll("/folder.jpg$", "");
+    }
+
+    private static String oldMediaId(String uri)
+    {
+        if (!uri.matches("media/.*"))
+            return null;
+        uri = uri.replaceAll("^media/","");
+        return uri.replaceAll("\\..*?$", "");
+    }
+
+
+    @Test
+    public void sameResults()
+    {
+        for (String uri : URIS)
+        {
+            assertEquals(uri,oldFolderJpgId(uri),ContentDirectory.folderJpgId(uri));
+            assertEquals(uri,oldMediaId(uri),ContentDirectory.mediaId(uri));
+        }
+    }
+
+
+    @Test
+    public void dispatch()
+    {
+        microBenchmark.assumeEnabled();
+        microBenchmark.compare("dispatch",200000,new microBenchmark.body()
+        {
+            int i = 0;
+            public int run()
+            {
+                String uri = URIS[i++ % URIS.length];
+                String id = oldFolderJpgId(uri);
+                if (id == null)
+                    id = oldMediaId(uri);
+                return id == null ? 0 : id.length();
+            }
+        },
+        new microBenchmark.body()
+        {
+            int i = 0;
+            public int run()
+            {
+                String uri = URIS[i++ % URIS.length];
+                String id = ContentDirectory.folderJpgId(uri);
+                if (id == null)
+                    id = ContentDirectory.mediaId(uri);
+                return id == null ? 0 : id.length();
+            }
+        });
+    }
+
+
+}   // class ContentDirectoryDispatchBenchmark
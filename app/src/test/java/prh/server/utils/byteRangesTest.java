@@ -0,0 +1,166 @@
+package prh.server.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class byteRangesTest
+    // Table driven cases for Range and If-Range. Each RANGES row
+    // is a header, a file size, and the expected result, which is
+    // FULL, UNSATISFIABLE, or the merged ranges as "first-last,...".
+{
+    private static long SIZE = 1000;
+
+    private static Object RANGES[][] = {
+
+        // not a byte range, or no header
+
+        { null,                         SIZE,   "FULL" },
+        { "",                           SIZE,   "FULL" },
+        { "items=0-99",                 SIZE,   "FULL" },
+        { "BYTES=0-99",                 SIZE,   "0-99" },
+
+        // first-last
+
+        { "bytes=0-99",                 SIZE,   "0-99" },
+        { "bytes=999-999",              SIZE,   "999-999" },
+        { "bytes= 10-19 ",              SIZE,   "10-19" },
+
+        // suffix -length
+
+        { "bytes=-100",                 SIZE,   "900-999" },
+        { "bytes=-1",                   SIZE,   "999-999" },
+        { "bytes=-5000",                SIZE,   "0-999" },
+        { "bytes=-0",                   SIZE,   "UNSATISFIABLE" },
+
+        // open ended first-
+
+        { "bytes=0-",                   SIZE,   "0-999" },
+        { "bytes=900-",                 SIZE,   "900-999" },
+        { "bytes=1000-",                SIZE,   "UNSATISFIABLE" },
+
+        // last clamped to the end of the file
+
+        { "bytes=500-5000",             SIZE,   "500-999" },
+        { "bytes=999-1000",             SIZE,   "999-999" },
+
+        // unsatisfiable specs are dropped, 416 if none are left
+
+        { "bytes=1000-2000",            SIZE,   "UNSATISFIABLE" },
+        { "bytes=1000-2000,0-0",        SIZE,   "0-0" },
+        { "bytes=1000-,-0",             SIZE,   "UNSATISFIABLE" },
+        { "bytes=0-",                   0,      "UNSATISFIABLE" },
+        { "bytes=-10",                  0,      "UNSATISFIABLE" },
+
+        // coalescing
+
+        { "bytes=0-99,100-199",         SIZE,   "0-199" },
+        { "bytes=0-150,100-199",        SIZE,   "0-199" },
+        { "bytes=100-199,0-99",         SIZE,   "0-199" },
+        { "bytes=10-20,12-15",          SIZE,   "10-20" },
+        { "bytes=0-99,101-199",         SIZE,   "0-99,101-199" },
+        { "bytes=200-299,0-99",         SIZE,   "0-99,200-299" },
+        { "bytes=0-99,-100",            SIZE,   "0-99,900-999" },
+        { "bytes=0-499,-600",           SIZE,   "0-999" },
+        { "bytes=0-9,20-29,5-24",       SIZE,   "0-29" },
+
+        // invalid syntax ignores the header
+
+        { "bytes=",                     SIZE,   "FULL" },
+        { "bytes=99",                   SIZE,   "FULL" },
+        { "bytes=-",                    SIZE,   "FULL" },
+        { "bytes=5-3",                  SIZE,   "FULL" },
+        { "bytes=a-b",                  SIZE,   "FULL" },
+        { "bytes=+5-9",                 SIZE,   "FULL" },
+        { "bytes=0-9,x",                SIZE,   "FULL" },
+        { "bytes=1000-2000,x",          SIZE,   "FULL" },
+        { "bytes=99999999999999999999-",SIZE,   "FULL" },
+
+        // MAX_RANGES
+
+        { specs(16),                    SIZE,   "0-0,2-2,4-4,6-6,8-8,10-10,12-12,14-14," +
+                                                "16-16,18-18,20-20,22-22,24-24,26-26,28-28,30-30" },
+        { specs(17),                    SIZE,   "FULL" },
+    };
+
+
+    private static String IF_RANGE_ETAG = "\"abc123\"";
+    private static String IF_RANGE_DATE = "Tue, 13 Oct 2026 10:00:00 GMT";
+
+    private static Object IF_RANGE[][] = {
+        // If-Range                         honor Range?
+
+        { null,                             true },
+        { "\"abc123\"",                     true },
+        { " \"abc123\" ",                   true },
+        { "\"abc124\"",                     false },
+        { "W/\"abc123\"",                   false },
+        { "Tue, 13 Oct 2026 10:00:00 GMT",  true },
+        { "Tue, 13 Oct 2026 10:00:01 GMT",  false },
+    };
+
+
+    private static String specs(int num)
+        // num single byte specs with gaps between them
+    {
+        String rslt = "bytes=";
+        for (int i=0; i<num; i++)
+            rslt += (i > 0 ? "," : "") + (i * 2) + "-" + (i * 2);
+        return rslt;
+    }
+
+
+    private static String describe(byteRanges ranges)
+    {
+        if (ranges.getHow() != byteRanges.how.PARTIAL)
+            return ranges.getHow().toString();
+        String rslt = "";
+        for (byteRanges.range range : ranges.getRanges())
+            rslt += (rslt.isEmpty() ? "" : ",") + range.start + "-" + range.end;
+        return rslt;
+    }
+
+
+    @Test
+    public void rangeTable()
+    {
+        for (Object row[] : RANGES)
+        {
+            String header = (String) row[0];
+            long size = ((Number) row[1]).longValue();
+            String expected = (String) row[2];
+
+            byteRanges ranges = new byteRanges(header,size);
+            String what = "'" + header + "' size=" + size;
+            assertEquals(what,expected,describe(ranges));
+            assertEquals(what + " multipart",expected.contains(","),ranges.isMultipart());
+        }
+    }
+
+
+    @Test
+    public void contentRangeHeaders()
+    {
+        byteRanges ranges = new byteRanges("bytes=-100",SIZE);
+        byteRanges.range range = ranges.getRanges().get(0);
+        assertEquals(100,range.length());
+        assertEquals("bytes 900-999/1000",range.contentRange(SIZE));
+        assertEquals("bytes */1000",byteRanges.unsatisfiedContentRange(SIZE));
+    }
+
+
+    @Test
+    public void ifRangeTable()
+    {
+        for (Object row[] : IF_RANGE)
+        {
+            String if_range = (String) row[0];
+            boolean expected = (Boolean) row[1];
+            assertEquals("'" + if_range + "'",expected,
+                byteRanges.ifRangeMatches(if_range,IF_RANGE_ETAG,IF_RANGE_DATE));
+        }
+    }
+
+
+}   // class byteRangesTest
@@ -0,0 +1,232 @@
+package prh.types;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import prh.artisan.Track;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class trackListTest
+    // The gap buffer, the lazy renumbering of the identity index,
+    // and duplicates, checked against an ArrayList doing the same.
+    // Empty Tracks are all equals(), so the ArrayList is searched
+    // by identity, as trackList does.
+{
+    private static Track[] tracks(int num)
+    {
+        Track rslt[] = new Track[num];
+        for (int i=0; i<num; i++)
+            rslt[i] = new Track();
+        return rslt;
+    }
+
+
+    private static int identityIndexOf(List<Track> expected, Track track)
+    {
+        for (int i=0; i<expected.size(); i++)
+            if (expected.get(i) == track)
+                return i;
+        return -1;
+    }
+
+
+    private static void assertSameList(List<Track> expected, trackList list)
+    {
+        assertEquals("size",expected.size(),list.size());
+        for (int i=0; i<expected.size(); i++)
+            assertSame("get(" + i + ")",expected.get(i),list.get(i));
+        for (Track track : expected)
+            assertEquals("indexOf",identityIndexOf(expected,track),list.indexOf(track));
+    }
+
+
+    @Test
+    public void insertAtHeadMiddleAndTail()
+    {
+        Track t[] = tracks(5);
+        trackList list = new trackList();
+        List<Track> expected = new ArrayList<Track>();
+
+        list.add(t[0]);         expected.add(t[0]);         // tail of empty
+        list.add(0,t[1]);       expected.add(0,t[1]);       // head
+        list.add(t[2]);         expected.add(t[2]);         // tail
+        list.add(1,t[3]);       expected.add(1,t[3]);       // middle
+        list.add(2,t[4]);       expected.add(2,t[4]);       // after the last insert
+
+        assertSameList(expected,list);
+    }
+
+
+    @Test
+    public void removeAtHeadMiddleAndTail()
+    {
+        Track t[] = tracks(6);
+        trackList list = new trackList();
+        List<Track> expected = new ArrayList<Track>();
+        for (Track track : t)
+        {
+            list.add(track);
+            expected.add(track);
+        }
+
+        assertSame(expected.remove(0),list.remove(0));
+        assertSameList(expected,list);
+        assertSame(expected.remove(expected.size() - 1),list.remove(list.size() - 1));
+        assertSameList(expected,list);
+        assertSame(expected.remove(2),list.remove(2));
+        assertSameList(expected,list);
+
+        assertEquals(-1,list.indexOf(t[0]));
+        assertEquals(-1,list.indexOf(t[5]));
+        assertFalse(list.contains(t[3]));
+    }
+
+
+    @Test
+    public void indexOfAfterEdits()
+    {
+        Track t[] = tracks(4);
+        trackList list = new trackList();
+        list.add(t[0]);
+        list.add(t[1]);
+        list.add(t[2]);
+        assertEquals(2,list.indexOf(t[2]));     // index built
+
+        list.add(0,t[3]);                       // everything moves up
+        assertEquals(0,list.indexOf(t[3]));
+        assertEquals(1,list.indexOf(t[0]));
+        assertEquals(3,list.indexOf(t[2]));
+
+        list.remove(1);                         // t[0] leaves
+        assertEquals(-1,list.indexOf(t[0]));
+        assertEquals(1,list.indexOf(t[1]));
+        assertEquals(2,list.indexOf(t[2]));
+
+        list.set(1,t[0]);                       // t[1] replaced by t[0]
+        assertEquals(-1,list.indexOf(t[1]));
+        assertEquals(1,list.indexOf(t[0]));
+
+        list.clear();
+        assertEquals(0,list.size());
+        assertEquals(-1,list.indexOf(t[2]));
+        assertEquals(-1,list.indexOf("not a track"));
+    }
+
+
+    @Test
+    public void removeObjectWithDuplicate()
+        // as with List, the lowest index is found and removed
+    {
+        Track t[] = tracks(2);
+        trackList list = new trackList();
+        list.add(t[0]);
+        list.add(t[1]);
+        list.add(t[0]);
+        assertEquals(0,list.indexOf(t[0]));
+
+        assertTrue(list.remove(t[0]));
+        assertEquals(2,list.size());
+        assertSame(t[1],list.get(0));
+        assertSame(t[0],list.get(1));
+        assertEquals(1,list.indexOf(t[0]));
+
+        assertTrue(list.remove(t[0]));
+        assertEquals(-1,list.indexOf(t[0]));
+        assertFalse(list.remove(t[0]));
+    }
+
+
+    @Test
+    public void iteratorSeesEditsAsConcurrentModification()
+    {
+        Track t[] = tracks(3);
+        trackList list = new trackList();
+        list.add(t[0]);
+        list.add(t[1]);
+
+        Iterator<Track> it = list.iterator();
+        it.next();
+        list.add(t[2]);
+        try
+        {
+            it.next();
+            fail("expected ConcurrentModificationException after add");
+        }
+        catch (ConcurrentModificationException e)
+        {
+        }
+
+        it = list.iterator();
+        it.next();
+        list.remove(0);
+        try
+        {
+            it.next();
+            fail("expected ConcurrentModificationException after remove");
+        }
+        catch (ConcurrentModificationException e)
+        {
+        }
+
+        // removing through the iterator is fine
+
+        it = list.iterator();
+        it.next();
+        it.remove();
+        assertEquals(1,list.size());
+        assertSame(t[2],list.get(0));
+        assertEquals(0,list.indexOf(t[2]));
+    }
+
+
+    @Test
+    public void randomEditsMatchArrayList()
+        // enough edits to grow the buffer and move the gap both ways
+    {
+        Random random = new Random(1234);
+        Track t[] = tracks(50);
+        trackList list = new trackList();
+        List<Track> expected = new ArrayList<Track>();
+
+        for (int i=0; i<2000; i++)
+        {
+            int op = random.nextInt(10);
+            if (op < 5 || expected.isEmpty())
+            {
+                int at = random.nextInt(expected.size() + 1);
+                Track track = t[random.nextInt(t.length)];
+                list.add(at,track);
+                expected.add(at,track);
+            }
+            else if (op < 8)
+            {
+                int at = random.nextInt(expected.size());
+                assertSame(expected.remove(at),list.remove(at));
+            }
+            else
+            {
+                Track track = t[random.nextInt(t.length)];
+                int at = identityIndexOf(expected,track);
+                if (at >= 0)
+                    expected.remove(at);
+                assertEquals(at >= 0,list.remove(track));
+            }
+            if (i % 50 == 0)
+                assertSameList(expected,list);
+        }
+        assertSameList(expected,list);
+    }
+
+
+}   // class trackListTest
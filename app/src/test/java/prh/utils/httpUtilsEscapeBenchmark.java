@@ -0,0 +1,171 @@
+package prh.utils;
+
+import org.junit.Test;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class httpUtilsEscapeBenchmark
+    // Checks the single pass encode_lite(), encode_xml() and
+    // decode_xml() against the replaceAll() chains they replaced,
+    // over the kind of fields that go into a DIDL. Most need
+    // no escaping at all, a few have an & or non-ascii letters.
+    // The timing tests run with -Dartisan.benchmark=true.
+{
+    private static String FIELDS[] = {
+        "Kind of Blue",
+        "Miles Davis",
+        "So What",
+        "1959",
+        "Jazz",
+        "http://192.168.0.100:8008/ContentDirectory/media/1a2b3c4d.mp3",
+        "Simon & Garfunkel",
+        "Bridge Over Troubled Water",
+        "Sigur R\u00f3s",
+        "\u00c1g\u00e6tis byrjun",
+        "Beyonc\u00e9",
+        "AC/DC",
+        "Guns N' Roses",
+        "<unknown>",
+        "object.item.audioItem.musicTrack",
+    };
+
+    private static String DECODE_FIELDS[] = {
+        "Kind of Blue",
+        "Miles Davis",
+        "Simon &amp; Garfunkel",
+        "&lt;unknown&gt;",
+        "Guns N' Roses",
+        "&amp;lt;dc:title&amp;gt;So What&amp;lt;/dc:title&amp;gt;",
+        "object.item.audioItem.musicTrack",
+    };
+
+
+    //--------------------------------------------
+    // the old versions
+    //--------------------------------------------
+
+    private static String oldEncodeLite(String in)
+    {
+        if (in==null) in = "";
+        String out = in;
+        out = out.replaceAll("&","&amp;");
+        out = out.replaceAll("<","&lt;");
+        out = out.replaceAll(">","&gt;");
+        return out;
+    }
+
+    private static String oldEncodeXml(String value)
+    {
+        value = value.replaceAll("&","&amp;");
+        value = value.replaceAll("\"","&#34;");
+        value = value.replaceAll("<","&#60;");
+        value = value.replaceAll(">","&#62;");
+
+        Pattern pattern = Pattern.compile("[^\\x20-\\x7f]");
+        StringBuffer output = new StringBuffer();
+        Matcher matcher = pattern.matcher(value);
+        while (matcher.find())
+        {
+            String rep = matcher.group();
+            rep = "&#" + ((int) rep.charAt(0)) + ";";
+            matcher.appendReplacement(output, rep);
+        }
+        matcher.appendTail(output);
+        return output.toString();
+    }
+
+    private static String oldDecodeXml(String value)
+        // the numeric entity pass parses the digits, as the
+        // old code meant to, so the two can be compared
+    {
+        value = value.replaceAll("&amp;","&");
+        value = value.replaceAll("&quote;","\"");
+        value = value.replaceAll("&lt;","<");
+        value = value.replaceAll("&gt;",">");
+
+        Pattern pattern = Pattern.compile("&#(\\d+);");
+        StringBuffer output = new StringBuffer();
+        Matcher matcher = pattern.matcher(value);
+        while (matcher.find())
+        {
+            char chr = (char) Integer.parseInt(matcher.group(1));
+            matcher.appendReplacement(output, Matcher.quoteReplacement("" + chr));
+        }
+        matcher.appendTail(output);
+        return output.toString();
+    }
+
+
+    //--------------------------------------------
+    // tests
+    //--------------------------------------------
+
+    @Test
+    public void sameResults()
+    {
+        for (String field : FIELDS)
+        {
+            assertEquals(field,oldEncodeLite(field),httpUtils.encode_lite(field));
+            assertEquals(field,oldEncodeXml(field),httpUtils.encode_xml(field));
+        }
+        for (String field : DECODE_FIELDS)
+            assertEquals(field,oldDecodeXml(field),httpUtils.decode_xml(field));
+    }
+
+
+    @Test
+    public void encodeLite()
+    {
+        microBenchmark.assumeEnabled();
+        microBenchmark.compare("encode_lite",200000,new microBenchmark.body()
+        {
+            int i = 0;
+            public int run() { return oldEncodeLite(FIELDS[i++ % FIELDS.length]).length(); }
+        },
+        new microBenchmark.body()
+        {
+            int i = 0;
+            public int run() { return httpUtils.encode_lite(FIELDS[i++ % FIELDS.length]).length(); }
+        });
+    }
+
+
+    @Test
+    public void encodeXml()
+    {
+        microBenchmark.assumeEnabled();
+        microBenchmark.compare("encode_xml",200000,new microBenchmark.body()
+        {
+            int i = 0;
+            public int run() { return oldEncodeXml(FIELDS[i++ % FIELDS.length]).length(); }
+        },
+        new microBenchmark.body()
+        {
+            int i = 0;
+            public int run() { return httpUtils.encode_xml(FIELDS[i++ % FIELDS.length]).length(); }
+        });
+    }
+
+
+    @Test
+    public void decodeXml()
+    {
+        microBenchmark.assumeEnabled();
+        microBenchmark.compare("decode_xml",200000,new microBenchmark.body()
+        {
+            int i = 0;
+            public int run() { return oldDecodeXml(DECODE_FIELDS[i++ % DECODE_FIELDS.length]).length(); }
+        },
+        new microBenchmark.body()
+        {
+            int i = 0;
+            public int run() { return httpUtils.decode_xml(DECODE_FIELDS[i++ % DECODE_FIELDS.length]).length(); }
+        });
+    }
+
+
+}   // class httpUtilsEscapeBenchmark
@@ -0,0 +1,82 @@
+//----------------------------------------------------------
+// microBenchmark - a minimal timing loop for the JVM tests
+//----------------------------------------------------------
+// Runs a body enough times to warm up the JIT, then times
+// several rounds and reports the best, in operations per
+// second. Good enough to compare two ways of doing the same
+// thing on the same machine, which is all these are for.
+//
+// The timing tests are skipped unless asked for, so that a
+// normal ./gradlew test only runs the equivalence checks:
+//
+//     ./gradlew test -Dartisan.benchmark=true
+
+package prh.utils;
+
+import static org.junit.Assume.assumeTrue;
+
+
+public class microBenchmark
+{
+    public interface body
+    {
+        int run();
+            // does one operation and returns something
+            // derived from it, so the JIT cannot drop it
+    }
+
+    private static int WARMUP_ROUNDS = 5;
+    private static int TIMED_ROUNDS = 5;
+
+    private static volatile int sink;
+
+
+    public static void assumeEnabled()
+        // call first in a timing test to skip it
+        // unless -Dartisan.benchmark=true
+    {
+        assumeTrue(Boolean.getBoolean("artisan.benchmark"));
+    }
+
+
+    public static void compare(String name, int ops_per_round, body old_body, body new_body)
+        // time the old and new ways, and print both and the speedup
+    {
+        double old_rate = opsPerSec(name + " old",ops_per_round,old_body);
+        double new_rate = opsPerSec(name + " new",ops_per_round,new_body);
+        System.out.println(String.format("%-40s %14.1fx",name + " speedup",new_rate / old_rate));
+    }
+
+
+    public static double opsPerSec(String name, int ops_per_round, body the_body)
+    {
+        for (int round=0; round<WARMUP_ROUNDS; round++)
+            runRound(ops_per_round,the_body);
+
+        long best = Long.MAX_VALUE;
+        for (int round=0; round<TIMED_ROUNDS; round++)
+        {
+            long elapsed = runRound(ops_per_round,the_body);
+            if (elapsed < best)
+                best = elapsed;
+        }
+
+        double ops_per_sec = ops_per_round * 1e9 / Math.max(best,1);
+        System.out.println(String.format("%-40s %14.0f ops/sec",name,ops_per_sec));
+        return ops_per_sec;
+    }
+
+
+    private static long runRound(int ops, body the_body)
+    {
+        int acc = 0;
+        long start = System.nanoTime();
+        for (int i=0; i<ops; i++)
+            acc += the_body.run();
+        long elapsed = System.nanoTime() - start;
+        sink += acc;
+        return elapsed;
+    }
+
+
+}   // class microBenchmark